@@ -31,4 +31,20 @@ public abstract class AndroidFragmentRequestQueue<T extends Packet> extends Abst
             });
         }
     }
+
+    @Override
+    public void dispatchFragment(final int command, final String packetId, final Packet fragment, final boolean last) {
+        //dispatch on main thread, posted fragments keep their order
+        if (Looper.getMainLooper().getThread() == Thread.currentThread()) {
+            AndroidFragmentRequestQueue.super.dispatchFragment(command, packetId, fragment, last);
+        }
+        else {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    AndroidFragmentRequestQueue.super.dispatchFragment(command, packetId, fragment, last);
+                }
+            });
+        }
+    }
 }
@@ -26,6 +26,8 @@ public class AndroidRequestContext extends RequestContext {
 
     @Override
     public void startTimeoutTimer() {
+        //重新计时,流式响应每收到一个分段都会调用
+        handler.removeCallbacks(timeoutRunnable);
         handler.postDelayed(timeoutRunnable,readTimeout * 1000);
     }
 
@@ -2,19 +2,48 @@ package bizsocket.core;
 
 import bizsocket.tcp.Packet;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
 
 /**
- * 支持包分段的队列
+ * 支持包分段的队列.
+ * 分段可以乱序到达,每个序列号在{@link #setFragmentTimeout(long, TimeUnit)}内没有收齐时丢弃;
+ * 所有未收齐的分段超过{@link #setMaxFragmentBytes(long)}时先丢弃最久没有收到新分段的.
+ * 等待响应的请求使用{@link StreamResponseHandler}时分段不合并,按分片序号逐段回调
  * Created by tong on 16/3/8.
  */
 public abstract class AbstractFragmentRequestQueue<T extends Packet> extends RequestQueue {
-    private final Map<Integer,FragmentInfo<T>> fragmentInfoMap = new ConcurrentHashMap<Integer,FragmentInfo<T>>();
+    public static final long DEFAULT_FRAGMENT_TIMEOUT_MILLIS = 30 * 1000;
+    public static final long DEFAULT_MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+
+    //按最后收到分段的时间排列,第一个是最久没有更新的; guarded by this
+    private final LinkedHashMap<Integer,FragmentInfo<T>> fragmentInfoMap = new LinkedHashMap<Integer,FragmentInfo<T>>(16, 0.75f, true);
+    private final PacketWeigher weigher;
+    private volatile long fragmentTimeoutMillis = DEFAULT_FRAGMENT_TIMEOUT_MILLIS;
+    private volatile long maxFragmentBytes = DEFAULT_MAX_FRAGMENT_BYTES;
+    private long fragmentBytes;
 
     public AbstractFragmentRequestQueue(AbstractBizSocket bizSocket) {
+        this(bizSocket, PacketWeigher.SERIALIZED_LENGTH);
+    }
+
+    /**
+     * @param bizSocket
+     * @param weigher 估算未收齐的分段占用的内存
+     */
+    public AbstractFragmentRequestQueue(AbstractBizSocket bizSocket, PacketWeigher weigher) {
         super(bizSocket);
+        if (weigher == null) {
+            throw new IllegalArgumentException("weigher can not be null");
+        }
+        this.weigher = weigher;
     }
 
     /**
@@ -22,7 +51,7 @@ public abstract class AbstractFragmentRequestQueue<T extends Packet> extends Req
      * @param fragmentInfo
      * @return
      */
-    public abstract T mergeFragment(FragmentInfo fragmentInfo);
+    public abstract T mergeFragment(FragmentInfo<T> fragmentInfo);
 
     /**
      * 获取分段总数量
@@ -52,33 +81,198 @@ public abstract class AbstractFragmentRequestQueue<T extends Packet> extends Req
      */
     public abstract int getFragmentIndex(T packet);
 
+    /**
+     * 获取分段的包体,不包含包头和分段标记,{@link #mergeFragmentBodies(FragmentInfo)}会移走返回的buffer中的数据
+     * @param packet
+     * @return
+     */
+    public abstract Buffer getFragmentBody(T packet);
+
+    /**
+     * 按顺序把所有分段的包体拼接到一个buffer,数据段直接移动不复制,可以在{@link #mergeFragment(FragmentInfo)}中使用
+     * @param fragmentInfo
+     * @return
+     */
+    public Buffer mergeFragmentBodies(FragmentInfo<T> fragmentInfo) {
+        Buffer result = new Buffer();
+        for (T packet : fragmentInfo.getPackets()) {
+            Buffer body = getFragmentBody(packet);
+            result.write(body, body.size());
+        }
+        return result;
+    }
+
+    /**
+     * 序列号在超时前没有收齐,或者因为内存上限被丢弃时调用
+     * @param fragmentInfo
+     */
+    protected void onFragmentDropped(FragmentInfo<T> fragmentInfo) {
+
+    }
+
     @Override
     public void processPacket(Packet packet) {
-        if (isFragment((T) packet)) {
-            int sequence = getSequence((T) packet);
-            FragmentInfo fragmentInfo = getFragmentInfoBySeq(sequence);
+        //这个队列只接收T类型的包
+        @SuppressWarnings("unchecked")
+        T fragment = (T) packet;
+        if (fragment == null || !isFragment(fragment)) {
+            super.processPacket(packet);
+            return;
+        }
+        int sequence = getSequence(fragment);
+        int index = getFragmentIndex(fragment);
+        int count = getFragmentCount(fragment);
+        if (index < 0 || index >= count) {
+            logger.debug("invalid fragment index, sequence: " + sequence + " index: " + index);
+            recyclePacket(packet);
+            return;
+        }
+        //在锁外估算一次,分段离开时按记录的大小扣除
+        int weight = weigher.weigh(packet);
+        FragmentInfo<T> fragmentInfo;
+        synchronized (this) {
+            fragmentInfo = fragmentInfoMap.get(sequence);
             if (fragmentInfo == null) {
-                fragmentInfo = new FragmentInfo(sequence,getFragmentCount((T) packet));
+                fragmentInfo = new FragmentInfo<T>(sequence,count);
+                if (isStreaming(fragment)) {
+                    fragmentInfo.streaming = true;
+                    fragmentInfo.command = packet.getCommand();
+                    fragmentInfo.packetId = packet.getPacketID();
+                }
                 putFragmentInfo(sequence,fragmentInfo);
             }
-            int index = getFragmentIndex((T) packet);
-            fragmentInfo.putFragment(index,packet);
+        }
+        List<FragmentInfo<T>> dropped = new ArrayList<FragmentInfo<T>>();
+        boolean complete;
+        //流式的分段按顺序回调,同一个序列号的分段依次处理
+        synchronized (fragmentInfo) {
+            List<T> ready = null;
+            synchronized (this) {
+                if (fragmentInfoMap.get(sequence) != fragmentInfo
+                        || index >= fragmentInfo.getTotalSize()
+                        || index < fragmentInfo.nextIndex
+                        || fragmentInfo.getFragment(index) != null) {
+                    logger.debug("ignore fragment, sequence: " + sequence + " index: " + index);
+                    recyclePacket(packet);
+                    return;
+                }
+                fragmentInfo.putFragment(index, fragment, weight);
+                fragmentBytes += weight;
+                if (fragmentInfo.streaming) {
+                    long bytes = fragmentInfo.bytes;
+                    ready = fragmentInfo.takeReady();
+                    fragmentBytes -= bytes - fragmentInfo.bytes;
+                    complete = fragmentInfo.nextIndex == fragmentInfo.getTotalSize();
+                } else {
+                    complete = isComplete(fragmentInfo);
+                }
+                if (complete) {
+                    removeFragmentInfo(sequence,fragmentInfo);
+                } else {
+                    evictFragments(dropped);
+                }
+            }
+            if (ready != null) {
+                for (int i = 0; i < ready.size(); i++) {
+                    dispatchFragment(fragmentInfo.command, fragmentInfo.packetId, ready.get(i), complete && i == ready.size() - 1);
+                }
+            }
+        }
+        dropFragments(dropped);
 
-            if (isComplete(fragmentInfo)) {
-                Packet targetPacket = mergeFragment(fragmentInfo);
-                if (targetPacket != null) {
-                    super.processPacket(targetPacket);
+        if (complete && !fragmentInfo.streaming) {
+            Packet targetPacket = mergeFragment(fragmentInfo);
+            if (targetPacket != null) {
+                super.processPacket(targetPacket);
+            }
+        }
+    }
 
-                    removeFragmentInfo(sequence,fragmentInfo);
+    /**
+     * 是否逐段回调这个分段所属的响应,默认等待响应的请求中有{@link StreamResponseHandler}时逐段回调.
+     * 序列号的第一个分段到达时判断
+     * @param packet
+     * @return
+     */
+    protected boolean isStreaming(T packet) {
+        for (RequestContext context : getRequestContext(packet.getCommand(), packet.getPacketID())) {
+            if (context.isStreaming()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按顺序分发流式响应的一个分段,不经过拦截器和串行上下文
+     * @param command
+     * @param packetId 第一个分段的包id
+     * @param fragment
+     * @param last 是否是最后一个分段
+     */
+    public void dispatchFragment(int command, String packetId, Packet fragment, boolean last) {
+        Collection<RequestContext> relativeContexts = getRequestContext(command, packetId);
+        for (RequestContext context : relativeContexts) {
+            context.sendFragmentMessage(command, null, fragment);
+            if (!last) {
+                //还有分段在路上,重新计算超时
+                context.startTimeoutTimer();
+            }
+        }
+        if (last) {
+            for (RequestContext context : relativeContexts) {
+                context.sendCompleteMessage(command, null);
+            }
+            removeRequestContexts(relativeContexts);
+        }
+        recyclePacket(fragment);
+    }
+
+    //超过内存上限时移除最久没有更新的,当前的序列号也可能被移除
+    private void evictFragments(List<FragmentInfo<T>> dropped) {
+        Iterator<FragmentInfo<T>> iterator = fragmentInfoMap.values().iterator();
+        while (fragmentBytes > maxFragmentBytes && iterator.hasNext()) {
+            FragmentInfo<T> eldest = iterator.next();
+            iterator.remove();
+            onFragmentInfoRemoved(eldest);
+            dropped.add(eldest);
+            logger.debug("evict fragments, sequence: " + eldest.getSequence());
+        }
+    }
+
+    private void dropFragments(List<FragmentInfo<T>> dropped) {
+        for (FragmentInfo<T> fragmentInfo : dropped) {
+            for (T packet : fragmentInfo.slots()) {
+                recyclePacket(packet);
+            }
+            if (fragmentInfo.streaming) {
+                //已经回调了部分分段,不能再等重发
+                Collection<RequestContext> relativeContexts = getRequestContext(fragmentInfo.command, fragmentInfo.packetId);
+                for (RequestContext context : relativeContexts) {
+                    context.sendFailureMessage(fragmentInfo.command, new RequestTimeoutException("分段没有收齐"));
                 }
+                removeRequestContexts(relativeContexts);
             }
-        } else {
-            super.processPacket(packet);
+            onFragmentDropped(fragmentInfo);
         }
     }
 
-    private void removeFragmentInfo(int sequence, FragmentInfo fragmentInfo) {
+    private synchronized boolean removeFragmentInfo(int sequence, FragmentInfo<T> fragmentInfo) {
+        if (fragmentInfoMap.get(sequence) != fragmentInfo) {
+            return false;
+        }
         fragmentInfoMap.remove(sequence);
+        onFragmentInfoRemoved(fragmentInfo);
+        return true;
+    }
+
+    private void onFragmentInfoRemoved(FragmentInfo<T> fragmentInfo) {
+        fragmentBytes -= fragmentInfo.bytes;
+        HashedWheelTimer.Timeout timeout = fragmentInfo.timeout;
+        if (timeout != null) {
+            fragmentInfo.timeout = null;
+            timeout.cancel();
+        }
     }
 
     /**
@@ -86,7 +280,7 @@ public abstract class AbstractFragmentRequestQueue<T extends Packet> extends Req
      * @param sequence
      * @return
      */
-    public FragmentInfo getFragmentInfoBySeq(int sequence) {
+    public synchronized FragmentInfo<T> getFragmentInfoBySeq(int sequence) {
         return fragmentInfoMap.get(sequence);
     }
 
@@ -95,8 +289,24 @@ public abstract class AbstractFragmentRequestQueue<T extends Packet> extends Req
      * @param sequence
      * @param fragmentInfo
      */
-    public void putFragmentInfo(int sequence, FragmentInfo fragmentInfo) {
-        fragmentInfoMap.put(sequence,fragmentInfo);
+    public synchronized void putFragmentInfo(final int sequence, final FragmentInfo<T> fragmentInfo) {
+        FragmentInfo<T> previous = fragmentInfoMap.put(sequence,fragmentInfo);
+        if (previous == fragmentInfo) {
+            return;
+        }
+        if (previous != null) {
+            onFragmentInfoRemoved(previous);
+        }
+        fragmentBytes += fragmentInfo.bytes;
+        fragmentInfo.timeout = getTimeoutTimer().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                if (removeFragmentInfo(sequence, fragmentInfo)) {
+                    logger.debug("fragments timeout, sequence: " + sequence);
+                    dropFragments(Collections.<FragmentInfo<T>>singletonList(fragmentInfo));
+                }
+            }
+        }, fragmentTimeoutMillis, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -104,16 +314,58 @@ public abstract class AbstractFragmentRequestQueue<T extends Packet> extends Req
      * @param fragmentInfo
      * @return
      */
-    public boolean isComplete(FragmentInfo fragmentInfo) {
-        return fragmentInfo.getPackets() != null
-                && fragmentInfo.getPackets().size() == fragmentInfo.getTotalSize();
+    public boolean isComplete(FragmentInfo<T> fragmentInfo) {
+        return fragmentInfo.getReceivedCount() == fragmentInfo.getTotalSize();
+    }
+
+    /**
+     * 设置一个序列号从收到第一个分段开始多久内没有收齐时丢弃,默认30秒
+     * @param timeout
+     * @param unit
+     */
+    public void setFragmentTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout >= 1,but: " + timeout);
+        }
+        this.fragmentTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * 设置所有未收齐的分段最多占用多少字节,默认4M
+     * @param maxFragmentBytes
+     */
+    public void setMaxFragmentBytes(long maxFragmentBytes) {
+        if (maxFragmentBytes <= 0) {
+            throw new IllegalArgumentException("maxFragmentBytes >= 1,but: " + maxFragmentBytes);
+        }
+        this.maxFragmentBytes = maxFragmentBytes;
+    }
+
+    /**
+     * 未收齐的分段占用的字节数
+     * @return
+     */
+    public synchronized long getFragmentBytes() {
+        return fragmentBytes;
     }
 
     /**
      * 清空分片的包
      */
     public void clearFragment() {
-        fragmentInfoMap.clear();
+        List<FragmentInfo<T>> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<FragmentInfo<T>>(fragmentInfoMap.values());
+            for (FragmentInfo<T> fragmentInfo : dropped) {
+                onFragmentInfoRemoved(fragmentInfo);
+            }
+            fragmentInfoMap.clear();
+        }
+        for (FragmentInfo<T> fragmentInfo : dropped) {
+            for (T packet : fragmentInfo.slots()) {
+                recyclePacket(packet);
+            }
+        }
     }
 
     @Override
@@ -127,15 +379,29 @@ public abstract class AbstractFragmentRequestQueue<T extends Packet> extends Req
     }
 
     /**
-     * 分段数据
+     * 分段数据,按分片序号保存已经收到的分段.
+     * 分片总数来自网络数据,不按总数预先分配
      * @param <T>
      */
     public static class FragmentInfo<T extends Packet> {
         private int sequence;//包的序列号,业务使用
         private int totalSize;//有包分片时，分片总数
-        private List<T> packets;
+        //分片序号 -> 分段
+        private final TreeMap<Integer,Slot<T>> packets = new TreeMap<Integer,Slot<T>>();
+        private int receivedCount;
+        //已经收到的分段的字节数
+        long bytes;
+        HashedWheelTimer.Timeout timeout;
+        //逐段回调时下一个要回调的分片序号,之前的分段已经回调并释放
+        boolean streaming;
+        int nextIndex;
+        int command;
+        String packetId;
 
         public FragmentInfo(int sequence, int totalSize) {
+            if (totalSize <= 0) {
+                throw new IllegalArgumentException("totalSize >= 1,but: " + totalSize);
+            }
             this.sequence = sequence;
             this.totalSize = totalSize;
         }
@@ -153,25 +419,107 @@ public abstract class AbstractFragmentRequestQueue<T extends Packet> extends Req
         }
 
         public void setTotalSize(int totalSize) {
+            if (totalSize < receivedCount || totalSize <= 0) {
+                throw new IllegalArgumentException("totalSize >= " + Math.max(receivedCount, 1) + ",but: " + totalSize);
+            }
             this.totalSize = totalSize;
+            SortedMap<Integer,Slot<T>> removed = packets.tailMap(totalSize);
+            receivedCount -= removed.size();
+            for (Slot<T> slot : removed.values()) {
+                bytes -= slot.weight;
+            }
+            removed.clear();
         }
 
+        public int getReceivedCount() {
+            return receivedCount;
+        }
+
+        /**
+         * 按分片序号排列的分段,没有收齐时返回null;逐段回调的分段回调后不再保留
+         * @return
+         */
         public List<T> getPackets() {
-            return packets;
+            if (receivedCount != totalSize) {
+                return null;
+            }
+            return slots();
+        }
+
+        public T getFragment(int index) {
+            Slot<T> slot = packets.get(index);
+            return slot != null ? slot.packet : null;
         }
 
         public void setPackets(List<T> packets) {
-            this.packets = packets;
+            this.packets.clear();
+            receivedCount = 0;
+            bytes = 0;
+            for (int i = 0; i < packets.size(); i++) {
+                putFragment(i, packets.get(i));
+            }
         }
 
         public void putFragment(int index,T packet) {
-            if (packets == null) {
-                packets = new ArrayList<T>(totalSize);
-            }
-            if (index >= totalSize) {
+            putFragment(index, packet, 0);
+        }
+
+        /**
+         * @param weight 分段的字节数,计入{@link #bytes},分段离开时扣除
+         */
+        void putFragment(int index, T packet, int weight) {
+            if (index < 0 || index >= totalSize) {
                 throw new IllegalStateException("Invalid fragment index");
             }
-            packets.add(index,packet);
+            Slot<T> previous = packet != null ? packets.put(index, new Slot<T>(packet, weight)) : packets.remove(index);
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+            if (packet != null) {
+                bytes += weight;
+            }
+            if (previous == null && packet != null) {
+                receivedCount++;
+            }
+            else if (previous != null && packet == null) {
+                receivedCount--;
+            }
+        }
+
+        //取出可以按顺序回调的分段
+        List<T> takeReady() {
+            List<T> ready = new ArrayList<T>();
+            Slot<T> slot;
+            while (nextIndex < totalSize && (slot = packets.remove(nextIndex)) != null) {
+                ready.add(slot.packet);
+                bytes -= slot.weight;
+                nextIndex++;
+            }
+            return ready;
+        }
+
+        public boolean isStreaming() {
+            return streaming;
+        }
+
+        //已经收到的分段,按分片序号排列
+        List<T> slots() {
+            List<T> result = new ArrayList<T>(packets.size());
+            for (Slot<T> slot : packets.values()) {
+                result.add(slot.packet);
+            }
+            return result;
+        }
+    }
+
+    private static final class Slot<T extends Packet> {
+        final T packet;
+        //放入时估算的字节数
+        final int weight;
+
+        Slot(T packet, int weight) {
+            this.packet = packet;
+            this.weight = weight;
         }
     }
 }
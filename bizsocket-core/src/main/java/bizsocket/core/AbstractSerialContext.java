@@ -1,6 +1,8 @@
 package bizsocket.core;
 
 import bizsocket.tcp.Packet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by tong on 16/9/27.
@@ -11,10 +13,14 @@ public abstract class AbstractSerialContext {
     private long createMillis;
     private final SerialSignal serialSignal;
     private final RequestContext requestContext;
-    private boolean expired;
+    private volatile boolean expired;
+    private volatile long deadlineMillis;
+    private volatile FanOut fanOut;
+    private volatile HashedWheelTimer.Timeout deadlineTimeout;
 
     public AbstractSerialContext(SerialSignal serialSignal, RequestContext requestContext) {
         createMillis = System.currentTimeMillis();
+        deadlineMillis = createMillis + EXPIRED_MILLIS;
         this.serialSignal = serialSignal;
         this.requestContext = requestContext;
     }
@@ -29,11 +35,26 @@ public abstract class AbstractSerialContext {
 
     public void setExpired(boolean expired) {
         this.expired = expired;
+        if (expired) {
+            cancelDeadline();
+        }
     }
 
     //是否过期
     public boolean isExpired() {
-        return expired || System.currentTimeMillis() - createMillis >= EXPIRED_MILLIS;
+        return expired || System.currentTimeMillis() >= deadlineMillis;
+    }
+
+    /**
+     * 设置从创建开始多久后过期,默认60秒.过期时正在进行的fan-out结束
+     * @param deadline
+     * @param unit
+     */
+    public void setDeadline(long deadline, TimeUnit unit) {
+        if (deadline <= 0) {
+            throw new IllegalArgumentException("deadline >= 1,but: " + deadline);
+        }
+        this.deadlineMillis = createMillis + unit.toMillis(deadline);
     }
 
     /**
@@ -54,11 +75,170 @@ public abstract class AbstractSerialContext {
      */
     public abstract Packet processPacket(RequestQueue requestQueue, Packet packet);
 
-    //是否属于这个上下文的包
+    //是否属于这个上下文的包,RequestQueue只用命令和包id索引到的包调用,子类只能在此基础上收窄
     public boolean shouldProcess(RequestQueue requestQueue,Packet packet) {
         int command = packet.getCommand();
         String requestPacketId = getRequestPacketId();
         String currentPacketId = packet.getPacketID();
         return (requestPacketId != null && requestPacketId.equals(currentPacketId)) || (serialSignal.isStrongReference(command) || serialSignal.isWeekReference(command));
     }
+
+    /**
+     * 发送一组子请求,子请求的响应不经过{@link #processPacket(RequestQueue, Packet)}也不分发,
+     * 收到{@link FanOut#getQuorum()}个响应或者到了截止时间时调用{@link #onFanOutComplete(RequestQueue, FanOut)}.
+     * 同一时间只能有一组子请求
+     * @param requestQueue
+     * @param fanOut
+     */
+    public void fanOut(RequestQueue requestQueue, FanOut fanOut) {
+        FanOut current = this.fanOut;
+        if (current != null && !current.isFinished()) {
+            throw new IllegalStateException("fan-out already in progress: " + this);
+        }
+        this.fanOut = fanOut;
+        long remainingMillis = deadlineMillis - System.currentTimeMillis();
+        if (remainingMillis <= 0 || expired) {
+            finishFanOut(requestQueue, fanOut);
+            return;
+        }
+        deadlineTimeout = requestQueue.getTimeoutTimer().newTimeout(new DeadlineTask(requestQueue, fanOut), remainingMillis, TimeUnit.MILLISECONDS);
+        if (fanOut.isQuorumReached()) {
+            finishFanOut(requestQueue, fanOut);
+            return;
+        }
+        sendFanOutRequests(requestQueue, fanOut);
+    }
+
+    public FanOut getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * 收到子请求的响应
+     * @param fanOut
+     * @param index 子请求的下标
+     * @param packet
+     */
+    protected void onFanOutResponse(FanOut fanOut, int index, Packet packet) {
+
+    }
+
+    /**
+     * 收到足够的响应或者到了截止时间时调用,截止时间到时响应可能不够{@link FanOut#getQuorum()}个
+     * @param requestQueue
+     * @param fanOut
+     * @return 合并后作为入口请求响应的包,命令和包id会被设置成入口请求的;为null时入口请求失败
+     */
+    protected Packet onFanOutComplete(RequestQueue requestQueue, FanOut fanOut) {
+        return null;
+    }
+
+    /**
+     * 处理子请求的响应
+     * @return 是否是子请求的响应
+     */
+    boolean dispatchFanOutPacket(RequestQueue requestQueue, Packet packet) {
+        FanOut fanOut = this.fanOut;
+        if (fanOut == null) {
+            return false;
+        }
+        String packetId = packet.getPacketID();
+        int index = fanOut.onResponse(packetId, packet);
+        if (index == -1) {
+            return false;
+        }
+        requestQueue.untrackSerialPacket(this, packetId);
+        //子请求的响应在完成前一直被引用,不可复用
+        packet.setFlags(packet.getFlags() & ~Packet.FLAG_RECYCLABLE);
+        onFanOutResponse(fanOut, index, packet);
+        if (fanOut.isQuorumReached()) {
+            finishFanOut(requestQueue, fanOut);
+        } else {
+            sendFanOutRequests(requestQueue, fanOut);
+        }
+        return true;
+    }
+
+    boolean isFanOutPacket(Packet packet) {
+        FanOut fanOut = this.fanOut;
+        return fanOut != null && fanOut.isPending(packet.getPacketID());
+    }
+
+    private void sendFanOutRequests(RequestQueue requestQueue, FanOut fanOut) {
+        int index;
+        while ((index = fanOut.nextSendIndex()) != -1) {
+            RequestContext context;
+            try {
+                context = requestQueue.getBizSocket().buildRequestContext(fanOut.getRequest(index), null);
+            } catch (Throwable e) {
+                e.printStackTrace();
+                context = null;
+            }
+            if (context == null || context.getRequestPacket() == null) {
+                fanOut.onSendFailure(null);
+                continue;
+            }
+            String packetId = context.getRequestPacket().getPacketID();
+            //先登记再发送,响应可能在发送返回前到达
+            fanOut.onSend(index, packetId, context);
+            requestQueue.trackSerialPacket(this, packetId);
+            requestQueue.sendSerialRequest(context);
+        }
+        //子请求发送失败后不可能再收到足够的响应,不用等到截止时间
+        if (!fanOut.isQuorumReachable()) {
+            finishFanOut(requestQueue, fanOut);
+        }
+    }
+
+    private void finishFanOut(RequestQueue requestQueue, FanOut fanOut) {
+        Map<String,RequestContext> pendingContexts = fanOut.finish();
+        if (pendingContexts == null) {
+            return;
+        }
+        cancelDeadline();
+        for (Map.Entry<String,RequestContext> entry : pendingContexts.entrySet()) {
+            requestQueue.untrackSerialPacket(this, entry.getKey());
+            requestQueue.cancelSerialRequest(entry.getValue());
+        }
+        Packet result = null;
+        Throwable error = null;
+        try {
+            result = onFanOutComplete(requestQueue, fanOut);
+        } catch (Throwable e) {
+            error = e;
+        }
+        if (result == null && error == null) {
+            if (fanOut.isQuorumReached()) {
+                error = new IllegalStateException("fan-out没有结果");
+            } else if (!fanOut.isQuorumReachable()) {
+                error = new IllegalStateException("fan-out的子请求发送失败");
+            } else {
+                error = new RequestTimeoutException("fan-out超时");
+            }
+        }
+        requestQueue.finishSerialContext(this, result, error);
+    }
+
+    private void cancelDeadline() {
+        HashedWheelTimer.Timeout timeout = deadlineTimeout;
+        if (timeout != null) {
+            deadlineTimeout = null;
+            timeout.cancel();
+        }
+    }
+
+    private class DeadlineTask implements Runnable {
+        private final RequestQueue requestQueue;
+        private final FanOut fanOut;
+
+        DeadlineTask(RequestQueue requestQueue, FanOut fanOut) {
+            this.requestQueue = requestQueue;
+            this.fanOut = fanOut;
+        }
+
+        @Override
+        public void run() {
+            finishFanOut(requestQueue, fanOut);
+        }
+    }
 }
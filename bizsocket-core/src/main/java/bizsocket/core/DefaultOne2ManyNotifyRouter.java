@@ -5,17 +5,52 @@ import bizsocket.logger.LoggerFactory;
 import bizsocket.tcp.Packet;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Subscribers are indexed by command. route only visits the subscribers of the packet's
+ * command, it reads an immutable array and takes no lock. subscribe and unsubscribe copy
+ * the array of one command, unsubscribe finds the contexts of a tag or handler through
+ * a reverse index.
+ *
+ * Commands added with {@link #addConflatingCmd(int, Executor)} are not delivered on the
+ * routing thread. Every subscriber has a single-slot mailbox that keeps only the newest
+ * packet and is drained on the executor, a slow subscriber skips stale packets instead
+ * of delaying the others.
+ *
+ * Sticky commands keep their last packets in a bounded store and replay them to every
+ * new subscriber, see {@link StickyCmd}.
+ *
  * Created by tong on 16/10/4.
  */
 public class DefaultOne2ManyNotifyRouter implements One2ManyNotifyRouter {
+    public static final long DEFAULT_MAX_STICKY_BYTES = 4 * 1024 * 1024;
+
+    private static final NotifyContext[] EMPTY = new NotifyContext[0];
+
     private final Logger logger = LoggerFactory.getLogger(DefaultOne2ManyNotifyRouter.class.getSimpleName());
 
-    private final Collection<NotifyContext> notifyContexts = new CopyOnWriteArrayList<NotifyContext>();
-    private final Map<Integer,Packet> packetMap = new ConcurrentHashMap<>();
-    private final Set<StickyContext> stickyCmds = Collections.synchronizedSet(new HashSet<StickyContext>());
+    //command -> subscribers, the arrays are never modified, only replaced
+    private final Map<Integer,NotifyContext[]> notifyContexts = new ConcurrentHashMap<Integer,NotifyContext[]>();
+    //tag or responseHandler -> subscribers, guarded by this
+    private final Map<Object,List<NotifyContext>> ownerIndex = new IdentityHashMap<Object,List<NotifyContext>>();
+    private final Map<Integer,Executor> conflatingCmds = new ConcurrentHashMap<Integer,Executor>();
+    private final StickyStore stickyStore;
+
+    public DefaultOne2ManyNotifyRouter() {
+        this(DEFAULT_MAX_STICKY_BYTES, PacketWeigher.SERIALIZED_LENGTH);
+    }
+
+    /**
+     * @param maxStickyBytes 所有粘性命令缓存的包占用内存的上限
+     * @param weigher 估算包占用的内存
+     */
+    public DefaultOne2ManyNotifyRouter(long maxStickyBytes, PacketWeigher weigher) {
+        stickyStore = new StickyStore(maxStickyBytes, weigher);
+    }
 
     /**
      * 添加对粘性通知的支持
@@ -23,7 +58,18 @@ public class DefaultOne2ManyNotifyRouter implements One2ManyNotifyRouter {
      */
     @Override
     public void addStickyCmd(int cmd,PacketValidator triggerPacketValidator) {
-        stickyCmds.add(new StickyContext(cmd, triggerPacketValidator));
+        if (triggerPacketValidator == null) {
+            throw new IllegalArgumentException("triggerPacketValidator can not be null");
+        }
+        addStickyCmd(new StickyCmd.Builder(cmd).validator(triggerPacketValidator).build());
+    }
+
+    @Override
+    public void addStickyCmd(StickyCmd stickyCmd) {
+        if (stickyCmd == null) {
+            throw new IllegalArgumentException("stickyCmd can not be null");
+        }
+        stickyStore.addStickyCmd(stickyCmd);
     }
 
     /**
@@ -32,17 +78,48 @@ public class DefaultOne2ManyNotifyRouter implements One2ManyNotifyRouter {
      */
     @Override
     public void removeStickyCmd(int command) {
-        StickyContext stickyContext = null;
-        for (StickyContext context : stickyCmds) {
-            if (context.cmd == command) {
-                stickyContext = context;
-                break;
-            }
+        stickyStore.removeStickyCmd(command);
+    }
+
+    /**
+     * 获取粘性命令缓存的包占用的内存
+     * @return
+     */
+    public long getStickyBytes() {
+        return stickyStore.getBytes();
+    }
+
+    /**
+     * 获取因数量或内存上限被移除的粘性包数量
+     * @return
+     */
+    public long getStickyEvictionCount() {
+        return stickyStore.getEvictionCount();
+    }
+
+    @Override
+    public void addConflatingCmd(int cmd, Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor can not be null");
         }
-        if (stickyContext != null) {
-            stickyCmds.remove(stickyContext);
-            packetMap.remove(command);
+        conflatingCmds.put(cmd, executor);
+    }
+
+    @Override
+    public void removeConflatingCmd(int cmd) {
+        conflatingCmds.remove(cmd);
+    }
+
+    @Override
+    public synchronized long getConflatedCount(Object tagOrResponseHandler) {
+        List<NotifyContext> contexts = ownerIndex.get(tagOrResponseHandler);
+        long count = 0;
+        if (contexts != null) {
+            for (NotifyContext notifyContext : contexts) {
+                count += notifyContext.conflatedCount.get();
+            }
         }
+        return count;
     }
 
     @Override
@@ -51,13 +128,27 @@ public class DefaultOne2ManyNotifyRouter implements One2ManyNotifyRouter {
             return;
         }
         NotifyContext notifyContext = new NotifyContext(tag,cmd,responseHandler);
-        notifyContexts.add(notifyContext);
+        synchronized (this) {
+            NotifyContext[] contexts = notifyContexts.get(cmd);
+            if (contexts == null) {
+                contexts = EMPTY;
+            }
+            NotifyContext[] newContexts = Arrays.copyOf(contexts, contexts.length + 1);
+            newContexts[contexts.length] = notifyContext;
+            notifyContexts.put(cmd, newContexts);
 
-        Packet packet = null;
-        if (stickyCmds.contains(cmd) && (packet = packetMap.get(cmd)) != null) {
-            //如果是粘性广播命令并且有缓存的包，立即回调一次
-            logger.debug("Sticky callback: " + packet);
-            sendSuccessMessage(notifyContext,cmd,packet);
+            addOwner(tag, notifyContext);
+            if (responseHandler != tag) {
+                addOwner(responseHandler, notifyContext);
+            }
+        }
+
+        if (stickyStore.isSticky(cmd)) {
+            //如果是粘性广播命令并且有缓存的包，按到达顺序立即回调
+            for (Packet packet : stickyStore.get(cmd)) {
+                logger.debug("Sticky callback: " + packet);
+                sendSuccessMessage(notifyContext,cmd,packet);
+            }
         }
     }
 
@@ -66,14 +157,62 @@ public class DefaultOne2ManyNotifyRouter implements One2ManyNotifyRouter {
         if (tagOrResponseHandler == null) {
             return;
         }
-        List<NotifyContext> preDelList = new ArrayList<NotifyContext>();
-        for (NotifyContext notifyContext : notifyContexts) {
-            if (notifyContext.tag == tagOrResponseHandler || notifyContext.responseHandler == tagOrResponseHandler) {
-                preDelList.add(notifyContext);
+        synchronized (this) {
+            List<NotifyContext> preDelList = ownerIndex.remove(tagOrResponseHandler);
+            if (preDelList == null) {
+                return;
+            }
+            for (NotifyContext notifyContext : preDelList) {
+                notifyContext.removed = true;
+                removeOwner(notifyContext.tag, notifyContext);
+                removeOwner(notifyContext.responseHandler, notifyContext);
+                removeNotifyContext(notifyContext);
             }
         }
+    }
 
-        notifyContexts.removeAll(preDelList);
+    private void addOwner(Object owner, NotifyContext notifyContext) {
+        List<NotifyContext> contexts = ownerIndex.get(owner);
+        if (contexts == null) {
+            contexts = new ArrayList<NotifyContext>(1);
+            ownerIndex.put(owner, contexts);
+        }
+        contexts.add(notifyContext);
+    }
+
+    private void removeOwner(Object owner, NotifyContext notifyContext) {
+        List<NotifyContext> contexts = ownerIndex.get(owner);
+        if (contexts != null) {
+            contexts.remove(notifyContext);
+            if (contexts.isEmpty()) {
+                ownerIndex.remove(owner);
+            }
+        }
+    }
+
+    private void removeNotifyContext(NotifyContext notifyContext) {
+        NotifyContext[] contexts = notifyContexts.get(notifyContext.cmd);
+        if (contexts == null) {
+            return;
+        }
+        int index = -1;
+        for (int i = 0; i < contexts.length; i++) {
+            if (contexts[i] == notifyContext) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        if (contexts.length == 1) {
+            notifyContexts.remove(notifyContext.cmd);
+            return;
+        }
+        NotifyContext[] newContexts = new NotifyContext[contexts.length - 1];
+        System.arraycopy(contexts, 0, newContexts, 0, index);
+        System.arraycopy(contexts, index + 1, newContexts, index, contexts.length - index - 1);
+        notifyContexts.put(notifyContext.cmd, newContexts);
     }
 
     @Override
@@ -82,70 +221,72 @@ public class DefaultOne2ManyNotifyRouter implements One2ManyNotifyRouter {
             logger.error("can not route command: " + command + " packet: " + packet);
             return;
         }
-        for (NotifyContext notifyContext : notifyContexts) {
-            if (notifyContext.cmd == command) {
-                sendSuccessMessage(notifyContext,command,packet);
+        NotifyContext[] contexts = notifyContexts.get(command);
+        if (contexts != null) {
+            Executor executor = conflatingCmds.get(command);
+            if (executor != null) {
+                //the mailboxes hold the packet after the dispatcher recycles it
+                packet.setFlags(packet.getFlags() & ~Packet.FLAG_RECYCLABLE);
+                for (NotifyContext notifyContext : contexts) {
+                    notifyContext.offer(packet, executor);
+                }
+            } else {
+                for (NotifyContext notifyContext : contexts) {
+                    sendSuccessMessage(notifyContext,command,packet);
+                }
             }
         }
 
-        StickyContext stickyContext = null;
-        for (StickyContext context : stickyCmds) {
-            if (context.cmd == command) {
-                stickyContext = context;
-                break;
-            }
-        }
-        if (stickyContext != null
-                && stickyContext.triggerPacketValidator != null
-                && stickyContext.triggerPacketValidator.verify(packet)) {
-            packet.setFlags(packet.getFlags() | Packet.FLAG_RECYCLABLE);
-            packetMap.put(packet.getCommand(),packet);
-        }
+        stickyStore.put(packet);
     }
 
     public void sendSuccessMessage(NotifyContext notifyContext, int command, Packet packet) {
         notifyContext.sendSuccessMessage(command, packet);
     }
 
-    private static class StickyContext {
+    private static class NotifyContext implements Runnable {
         int cmd;
-        PacketValidator triggerPacketValidator;
+        Object tag;
+        ResponseHandler responseHandler;
+        volatile boolean removed;
 
-        public StickyContext(int cmd, PacketValidator triggerPacketValidator) {
+        //newest undelivered packet of a conflating command
+        final AtomicReference<Packet> mailbox = new AtomicReference<Packet>();
+        final AtomicBoolean drainScheduled = new AtomicBoolean();
+        final AtomicLong conflatedCount = new AtomicLong();
+        volatile Executor executor;
+
+        public NotifyContext(Object tag,int cmd,ResponseHandler responseHandler) {
             this.cmd = cmd;
-            this.triggerPacketValidator = triggerPacketValidator;
+            this.tag = tag;
+            this.responseHandler = responseHandler;
+        }
 
-            if (this.triggerPacketValidator == null) {
-                throw new IllegalArgumentException("triggerPacketValidator can not be null");
+        void offer(Packet packet, Executor executor) {
+            if (mailbox.getAndSet(packet) != null) {
+                conflatedCount.incrementAndGet();
             }
+            this.executor = executor;
+            scheduleDrain();
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            StickyContext that = (StickyContext) o;
-
-            return cmd == that.cmd;
-
+        private void scheduleDrain() {
+            if (drainScheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
         }
 
         @Override
-        public int hashCode() {
-            return cmd;
-        }
-    }
-
-    private static class NotifyContext {
-        int cmd;
-        Object tag;
-        ResponseHandler responseHandler;
-
-        public NotifyContext(Object tag,int cmd,ResponseHandler responseHandler) {
-            this.cmd = cmd;
-            this.tag = tag;
-            this.responseHandler = responseHandler;
+        public void run() {
+            Packet packet = mailbox.getAndSet(null);
+            if (packet != null && !removed) {
+                sendSuccessMessage(cmd, packet);
+            }
+            drainScheduled.set(false);
+            //a packet may have arrived after getAndSet
+            if (mailbox.get() != null) {
+                scheduleDrain();
+            }
         }
 
         public void sendSuccessMessage(int command, Packet packet) {
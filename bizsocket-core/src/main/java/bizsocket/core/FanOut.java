@@ -0,0 +1,168 @@
+package bizsocket.core;
+
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.Request;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 串行上下文发起的一组子请求,通过{@link AbstractSerialContext#fanOut(RequestQueue, FanOut)}发送.
+ * 子请求的响应按包id对应到发送顺序的下标,收到{@link #getQuorum()}个响应后完成
+ */
+public class FanOut {
+    private final List<Request> requests;
+    private final Packet[] responses;
+    //还没有响应的子请求
+    private final RequestContext[] contexts;
+    //包id -> 还没有响应的子请求下标
+    private final Map<String,Integer> pendingIndexes = new HashMap<String,Integer>();
+    private int maxConcurrency = Integer.MAX_VALUE;
+    private int quorum;
+    private int nextIndex;
+    //已经占用并发名额还没有响应的子请求数
+    private int inFlight;
+    private int responseCount;
+    private boolean finished;
+
+    public FanOut(List<Request> requests) {
+        if (requests == null) {
+            throw new IllegalArgumentException("requests can not be null");
+        }
+        this.requests = new ArrayList<Request>(requests);
+        this.responses = new Packet[requests.size()];
+        this.contexts = new RequestContext[requests.size()];
+        this.quorum = requests.size();
+    }
+
+    /**
+     * 设置最多同时有多少个子请求在等待响应,默认不限制
+     * @param maxConcurrency
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency >= 1,but: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * 设置收到多少个子请求的响应后完成,默认所有子请求
+     * @param quorum
+     */
+    public void setQuorum(int quorum) {
+        if (quorum < 0 || quorum > requests.size()) {
+            throw new IllegalArgumentException("0 <= quorum <= " + requests.size() + ",but: " + quorum);
+        }
+        this.quorum = quorum;
+    }
+
+    public int getQuorum() {
+        return quorum;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    public Request getRequest(int index) {
+        return requests.get(index);
+    }
+
+    /**
+     * 获取子请求的响应
+     * @param index 子请求的下标
+     * @return 还没有响应时返回null
+     */
+    public synchronized Packet getResponse(int index) {
+        return responses[index];
+    }
+
+    public synchronized int getResponseCount() {
+        return responseCount;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    synchronized boolean isQuorumReached() {
+        return responseCount >= quorum;
+    }
+
+    //已有的响应加上还在等待和还没发送的子请求是否还够quorum,发送失败的子请求不会再有响应
+    synchronized boolean isQuorumReachable() {
+        return responseCount + inFlight + requests.size() - nextIndex >= quorum;
+    }
+
+    /**
+     * 取出可以发送的子请求下标,并占用并发名额
+     * @return
+     */
+    synchronized int nextSendIndex() {
+        if (finished || nextIndex >= requests.size() || inFlight >= maxConcurrency) {
+            return -1;
+        }
+        inFlight++;
+        return nextIndex++;
+    }
+
+    synchronized void onSend(int index, String packetId, RequestContext context) {
+        pendingIndexes.put(packetId, index);
+        contexts[index] = context;
+    }
+
+    //子请求没有发送出去,让出并发名额
+    synchronized void onSendFailure(String packetId) {
+        if (packetId != null) {
+            pendingIndexes.remove(packetId);
+        }
+        inFlight--;
+    }
+
+    synchronized boolean isPending(String packetId) {
+        return packetId != null && pendingIndexes.containsKey(packetId);
+    }
+
+    /**
+     * 记录子请求的响应
+     * @param packetId
+     * @param packet
+     * @return 子请求的下标,不是这组子请求的响应返回-1
+     */
+    synchronized int onResponse(String packetId, Packet packet) {
+        Integer index = packetId != null && !finished ? pendingIndexes.remove(packetId) : null;
+        if (index == null) {
+            return -1;
+        }
+        responses[index] = packet;
+        contexts[index] = null;
+        responseCount++;
+        inFlight--;
+        return index;
+    }
+
+    /**
+     * 标记完成
+     * @return 包id -> 还没有响应的子请求,已经完成过返回null
+     */
+    synchronized Map<String,RequestContext> finish() {
+        if (finished) {
+            return null;
+        }
+        finished = true;
+        Map<String,RequestContext> pendingContexts = new LinkedHashMap<String,RequestContext>();
+        for (Map.Entry<String,Integer> entry : pendingIndexes.entrySet()) {
+            pendingContexts.put(entry.getKey(), contexts[entry.getValue()]);
+            contexts[entry.getValue()] = null;
+        }
+        pendingIndexes.clear();
+        return pendingContexts;
+    }
+}
@@ -0,0 +1,366 @@
+package bizsocket.core;
+
+import bizsocket.logger.Logger;
+import bizsocket.logger.LoggerFactory;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One thread that fires all request deadlines. Timeouts are hashed into the buckets
+ * of a wheel that advances once per tick, scheduling and cancelling are O(1) and
+ * the number of threads does not grow with the number of pending requests.
+ *
+ * <pre>
+ * HashedWheelTimer.Timeout timeout = HashedWheelTimer.getDefault().newTimeout(task, 30, TimeUnit.SECONDS);
+ * ...
+ * timeout.cancel();
+ * </pre>
+ *
+ * Deadlines fire within one tick after they are due. Expired tasks are handed off to
+ * an executor, so a slow task does not delay the deadlines of other requests.
+ */
+public class HashedWheelTimer {
+    public static final long DEFAULT_TICK_MILLIS = 50;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    public static final int DEFAULT_TASK_THREADS = 2;
+
+    //timeouts moved into the wheel per tick, the rest waits for the next tick
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private static final int STATE_INIT = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_SHUTDOWN = 2;
+
+    private final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class.getSimpleName());
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor taskExecutor;
+    //the executor created by this timer is shut down with it
+    private final ThreadPoolExecutor ownedExecutor;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+    private volatile long startTime;
+    private Thread workerThread;
+    //only accessed by the worker thread
+    private long tick;
+
+    public HashedWheelTimer() {
+        this("Request Timeout Timer", DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @param name the name of the timer thread
+     * @param tickDuration the precision of the timer
+     * @param unit
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this(name, tickDuration, unit, ticksPerWheel, null);
+    }
+
+    /**
+     * @param name the name of the timer thread
+     * @param tickDuration the precision of the timer
+     * @param unit
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     * @param taskExecutor runs the expired tasks, null creates {@link #DEFAULT_TASK_THREADS} daemon threads
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel, Executor taskExecutor) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration >= 1,but: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel must be in [1, 2^30],but: " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        if (taskExecutor == null) {
+            this.ownedExecutor = createTaskExecutor(name + " Task");
+            this.taskExecutor = ownedExecutor;
+        } else {
+            this.ownedExecutor = null;
+            this.taskExecutor = taskExecutor;
+        }
+    }
+
+    private static ThreadPoolExecutor createTaskExecutor(final String threadName) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_TASK_THREADS, DEFAULT_TASK_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        //idle timers keep no task threads
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Schedules the task to run once after the delay. The timer thread is started by
+     * the first call.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new IllegalArgumentException("task can not be null");
+        }
+        start();
+        long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        Timeout timeout = new Timeout(this, task, deadline);
+        pendingTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread, timeouts that did not fire yet never fire.
+     */
+    public void shutdown() {
+        if (state.getAndSet(STATE_SHUTDOWN) == STATE_STARTED && workerThread != null) {
+            workerThread.interrupt();
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private void start() {
+        switch (state.get()) {
+            case STATE_STARTED:
+                return;
+            case STATE_SHUTDOWN:
+                throw new IllegalStateException("timer has been shut down");
+            default:
+                synchronized (this) {
+                    if (state.get() == STATE_INIT) {
+                        startTime = System.nanoTime();
+                        workerThread = new Thread(new Worker());
+                        workerThread.setName(name);
+                        workerThread.setDaemon(true);
+                        //the worker runs while the state is STARTED
+                        state.set(STATE_STARTED);
+                        workerThread.start();
+                    }
+                }
+                start();
+        }
+    }
+
+    /**
+     * Returns the timer shared by all request queues.
+     */
+    public static HashedWheelTimer getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static class DefaultHolder {
+        static final HashedWheelTimer INSTANCE = new HashedWheelTimer();
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (state.get() == STATE_STARTED) {
+                long deadline = waitForNextTick();
+                if (deadline < 0) {
+                    continue;
+                }
+                removeCancelledTimeouts();
+                transferPendingTimeouts();
+                wheel[(int) (tick & mask)].expireTimeouts(deadline);
+                tick++;
+            }
+            logger.debug("timer thread shutdown");
+        }
+
+        /**
+         * @return the deadline of the current tick relative to the start time, or -1 if interrupted
+         */
+        private long waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            while (true) {
+                long current = System.nanoTime() - startTime;
+                long sleepMillis = (deadline - current + 999999) / 1000000;
+                if (sleepMillis <= 0) {
+                    return current;
+                }
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+            }
+        }
+
+        private void transferPendingTimeouts() {
+            for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+                Timeout timeout = pendingTimeouts.poll();
+                if (timeout == null) {
+                    return;
+                }
+                if (timeout.state.get() == Timeout.STATE_CANCELLED) {
+                    continue;
+                }
+                //the first tick that ends at or after the deadline
+                long calculated = (timeout.deadline - 1) / tickNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                //a timeout that is already due goes into the current bucket
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+
+        private void removeCancelledTimeouts() {
+            Timeout timeout;
+            while ((timeout = cancelledTimeouts.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts hashed to one tick, only touched by the worker thread.
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expireTimeouts(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.state.get() == Timeout.STATE_CANCELLED) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static final class Timeout {
+        private static final int STATE_WAITING = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(STATE_WAITING);
+
+        //only accessed by the worker thread
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+        private Bucket bucket;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running. The timeout leaves its bucket on the next tick.
+         *
+         * @return false if the task already ran or was cancelled before
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(STATE_WAITING, STATE_CANCELLED)) {
+                return false;
+            }
+            timer.cancelledTimeouts.offer(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(STATE_WAITING, STATE_EXPIRED)) {
+                return;
+            }
+            try {
+                timer.taskExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch (Throwable e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                timer.logger.error("timeout task rejected: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package bizsocket.core;
 
 import bizsocket.tcp.Packet;
+import java.util.concurrent.Executor;
 
 /**
  * Created by tong on 16/10/4.
@@ -13,12 +14,38 @@ public interface One2ManyNotifyRouter {
      */
     void addStickyCmd(int cmd,PacketValidator triggerPacketValidator);
 
+    /**
+     * 添加对粘性通知的支持,可以按key保留最近的多个包
+     * @param stickyCmd
+     */
+    void addStickyCmd(StickyCmd stickyCmd);
+
     /**
      * 移除粘性广播命令
      * @param cmd
      */
     void removeStickyCmd(int cmd);
 
+    /**
+     * 合并推送:订阅者来不及处理时只保留最新的包,在executor上回调,不阻塞路由线程
+     * @param cmd
+     * @param executor  回调订阅者的线程
+     */
+    void addConflatingCmd(int cmd, Executor executor);
+
+    /**
+     * 恢复在路由线程上逐个回调
+     * @param cmd
+     */
+    void removeConflatingCmd(int cmd);
+
+    /**
+     * 获取被合并(丢弃)的推送数量
+     * @param tagOrResponseHandler
+     * @return
+     */
+    long getConflatedCount(Object tagOrResponseHandler);
+
     /**
      * 订阅事件
      * @param tag
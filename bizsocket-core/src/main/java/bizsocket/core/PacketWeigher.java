@@ -0,0 +1,37 @@
+package bizsocket.core;
+
+import bizsocket.tcp.Packet;
+import java.io.IOException;
+import okio.Buffer;
+
+/**
+ * 估算缓存、粘性通知和分段占用的字节数
+ */
+public interface PacketWeigher {
+    /**
+     * 按包序列化后的字节数计算,包含包头.
+     * 需要编码一次整个包,使用方对每个包只估算一次;包里已经记录了长度时提供不需要编码的实现
+     */
+    PacketWeigher SERIALIZED_LENGTH = new PacketWeigher() {
+        @Override
+        public int weigh(Packet packet) {
+            //写到buffer中只占用okio的共享segment,不再复制成数组
+            Buffer buffer = new Buffer();
+            try {
+                packet.writeTo(buffer);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            long size = buffer.size();
+            buffer.clear();
+            return (int) size;
+        }
+    };
+
+    /**
+     * 估算包占用的内存
+     * @param packet
+     * @return 字节数
+     */
+    int weigh(Packet packet);
+}
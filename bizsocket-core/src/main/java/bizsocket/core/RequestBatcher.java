@@ -0,0 +1,68 @@
+package bizsocket.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 收集一个时间窗口内要发送的请求,窗口结束或者数量达到上限时交给{@link RequestQueue}合并发送
+ */
+class RequestBatcher {
+    private final RequestQueue requestQueue;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    //guarded by this
+    private final LinkedHashSet<RequestContext> pendingContexts = new LinkedHashSet<RequestContext>();
+    private HashedWheelTimer.Timeout flushTimeout;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    RequestBatcher(RequestQueue requestQueue, long windowMillis, int maxBatchSize) {
+        this.requestQueue = requestQueue;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    void add(RequestContext context) {
+        List<RequestContext> batch = null;
+        synchronized (this) {
+            //断线重连后未发送的请求会被再次提交
+            if (!pendingContexts.add(context)) {
+                return;
+            }
+            if (pendingContexts.size() >= maxBatchSize) {
+                batch = drain();
+            } else if (flushTimeout == null) {
+                flushTimeout = requestQueue.getTimeoutTimer().newTimeout(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (batch != null) {
+            requestQueue.sendBatch(batch);
+        }
+    }
+
+    void flush() {
+        List<RequestContext> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        if (!batch.isEmpty()) {
+            requestQueue.sendBatch(batch);
+        }
+    }
+
+    private List<RequestContext> drain() {
+        if (flushTimeout != null) {
+            flushTimeout.cancel();
+            flushTimeout = null;
+        }
+        List<RequestContext> batch = new ArrayList<RequestContext>(pendingContexts);
+        pendingContexts.clear();
+        return batch;
+    }
+}
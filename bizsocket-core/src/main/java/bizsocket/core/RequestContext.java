@@ -5,14 +5,17 @@ import bizsocket.logger.LoggerFactory;
 import bizsocket.tcp.Packet;
 import bizsocket.tcp.Request;
 import okio.ByteString;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by tong on 16/3/7.
  */
-public class RequestContext implements ResponseHandler {
+public class RequestContext implements StreamResponseHandler {
     /**
      * 请求已发送
      */
@@ -38,6 +41,11 @@ public class RequestContext implements ResponseHandler {
      */
     public static final int FLAG_NOT_SUPPORT_REPEAT = 1 << 5;
 
+    /**
+     * 命令和请求体都相同的请求合并到正在进行的请求,只发送一个包,响应或失败通知所有请求
+     */
+    public static final int FLAG_SINGLE_FLIGHT = 1 << 6;
+
     protected final Logger logger = LoggerFactory.getLogger(RequestContext.class.getSimpleName());
 
     private final Request request;
@@ -55,8 +63,22 @@ public class RequestContext implements ResponseHandler {
      */
     private int flags = FLAG_CHECK_CONNECT_STATUS;
     private OnRequestTimeoutListener onRequestTimeoutListener;
-    private Timer timer;
+    private HashedWheelTimer timeoutTimer;
+    private volatile HashedWheelTimer.Timeout timeout;
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            callRequestTimeout();
+        }
+    };
     protected long readTimeout = Configuration.DEFAULT_READ_TIMEOUT;
+    //合并到这个请求的相同请求; guarded by this
+    private List<RequestContext> followers;
+    private boolean flightFinished;
+    //已经开始逐段回调,后来的请求收不到之前的分段,不能再合并
+    private boolean streamStarted;
+    //发起请求的调用方已经取消,请求只为followers保留
+    private volatile boolean callerCancelled;
 
     public RequestContext(Request request, Packet requestPacket, ResponseHandler responseHandler) {
         this.request = request;
@@ -94,29 +116,151 @@ public class RequestContext implements ResponseHandler {
 
     @Override
     public void sendSuccessMessage(int command, ByteString requestBody, Packet packet) {
-        if (responseHandler != null) {
+        if (responseHandler != null && !callerCancelled) {
             responseHandler.sendSuccessMessage(command, this.request.body(), packet);
         }
+        for (RequestContext follower : finishFlight()) {
+            follower.sendSuccessMessage(command, requestBody, packet);
+        }
     }
 
     @Override
     public void sendFailureMessage(int command, Throwable error) {
-        if (responseHandler != null) {
+        if (responseHandler != null && !callerCancelled) {
             responseHandler.sendFailureMessage(command, error);
         }
+        for (RequestContext follower : finishFlight()) {
+            follower.sendFailureMessage(command, error);
+        }
     }
 
-    public void startTimeoutTimer() {
-        if (timer != null) {
-            timer.cancel();
-        }
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                callRequestTimeout();
+    @Override
+    public void sendFragmentMessage(int command, ByteString requestBody, Packet fragment) {
+        synchronized (this) {
+            streamStarted = true;
+        }
+        if (responseHandler instanceof StreamResponseHandler && !callerCancelled) {
+            ((StreamResponseHandler) responseHandler).sendFragmentMessage(command, this.request.body(), fragment);
+        }
+        for (RequestContext follower : getFollowers()) {
+            follower.sendFragmentMessage(command, requestBody, fragment);
+        }
+    }
+
+    @Override
+    public void sendCompleteMessage(int command, ByteString requestBody) {
+        if (responseHandler instanceof StreamResponseHandler && !callerCancelled) {
+            ((StreamResponseHandler) responseHandler).sendCompleteMessage(command, this.request.body());
+        }
+        //只有流式的请求会合并到流式请求
+        for (RequestContext follower : finishFlight()) {
+            follower.sendCompleteMessage(command, requestBody);
+        }
+    }
+
+    /**
+     * 分段的响应是否逐段回调
+     * @return
+     */
+    public boolean isStreaming() {
+        return responseHandler instanceof StreamResponseHandler;
+    }
+
+    /**
+     * 合并一个相同的请求,这个请求的响应或失败同时通知它
+     * @param follower
+     * @return 这个请求已经有结果或者已经开始逐段回调时返回false
+     */
+    public synchronized boolean addFollower(RequestContext follower) {
+        if (flightFinished || streamStarted) {
+            return false;
+        }
+        if (followers == null) {
+            followers = new ArrayList<RequestContext>();
+        }
+        followers.add(follower);
+        return true;
+    }
+
+    public synchronized int getFollowerCount() {
+        return followers == null ? 0 : followers.size();
+    }
+
+    /**
+     * 移除被取消的follower
+     * @param tagOrResponseHandler
+     * @return 调用方已经取消并且没有follower,请求可以从队列移除
+     */
+    synchronized boolean removeFollowers(Object tagOrResponseHandler) {
+        if (followers != null) {
+            Iterator<RequestContext> iterator = followers.iterator();
+            while (iterator.hasNext()) {
+                RequestContext follower = iterator.next();
+                if (follower.getTag() == tagOrResponseHandler || follower.getResponseHandler() == tagOrResponseHandler) {
+                    iterator.remove();
+                }
             }
-        },readTimeout * 1000);
+        }
+        return callerCancelled && getFollowerCount() == 0;
+    }
+
+    /**
+     * 调用方取消了请求
+     * @return 还有follower在等待时返回true,请求需要继续保留在队列中
+     */
+    synchronized boolean cancelCaller() {
+        if (getFollowerCount() == 0) {
+            flightFinished = true;
+            return false;
+        }
+        callerCancelled = true;
+        return true;
+    }
+
+    private synchronized List<RequestContext> getFollowers() {
+        if (followers == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<RequestContext>(followers);
+    }
+
+    /**
+     * 结束这次请求,follower只交出一次,之后的结果不再通知它们
+     * @return
+     */
+    synchronized List<RequestContext> finishFlight() {
+        flightFinished = true;
+        if (followers == null) {
+            return Collections.emptyList();
+        }
+        List<RequestContext> result = followers;
+        followers = null;
+        return result;
+    }
+
+    /**
+     * 设置超时计时器,默认使用共享的{@link HashedWheelTimer#getDefault()}
+     * @param timeoutTimer
+     */
+    public void setTimeoutTimer(HashedWheelTimer timeoutTimer) {
+        this.timeoutTimer = timeoutTimer;
+    }
+
+    public HashedWheelTimer getTimeoutTimer() {
+        return timeoutTimer != null ? timeoutTimer : HashedWheelTimer.getDefault();
+    }
+
+    public void startTimeoutTimer() {
+        cancelTimeoutTimer();
+        timeout = getTimeoutTimer().newTimeout(timeoutTask, readTimeout, TimeUnit.SECONDS);
+    }
+
+    private void cancelTimeoutTimer() {
+        HashedWheelTimer.Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+            timeout = null;
+        }
     }
 
     protected void callRequestTimeout() {
@@ -137,10 +281,7 @@ public class RequestContext implements ResponseHandler {
 
     public void onRemoveFromQueue() {
         logger.debug("remove from queue: " + toString());
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
-        }
+        cancelTimeoutTimer();
     }
 
     public Map getAttach() {
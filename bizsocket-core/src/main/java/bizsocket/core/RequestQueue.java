@@ -1,23 +1,38 @@
 package bizsocket.core;
 
-import bizsocket.core.internal.RequestContextQueue;
+import bizsocket.core.internal.RequestContextTable;
+import bizsocket.core.internal.SerialContextTable;
 import bizsocket.logger.Logger;
 import bizsocket.logger.LoggerFactory;
 import bizsocket.tcp.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
 
 /**
  * Created by tong on 16/3/7.
  */
 public class RequestQueue implements PacketListener,ConnectionListener {
     protected final Logger logger = LoggerFactory.getLogger(SocketConnection.class.getSimpleName());
-    private final List<RequestContext> requestContextList = new RequestContextQueue();
-    private final Set<SerialSignal> serialSignalList = Collections.synchronizedSet(new HashSet<SerialSignal>());
-    private final List<AbstractSerialContext> mSerialContexts = Collections.synchronizedList(new ArrayList<AbstractSerialContext>());
+    private final RequestContextTable requestContextTable = new RequestContextTable();
+    //过期的串行上下文每隔这么久清理一次
+    private static final long SERIAL_SWEEP_MILLIS = 5 * 1000;
+
+    //入口命令 -> 串行信号
+    private final Map<Integer,SerialSignal> serialSignals = new ConcurrentHashMap<Integer,SerialSignal>();
+    private final SerialContextTable serialContextTable = new SerialContextTable();
+    private final Object serialSweepLock = new Object();
+    private HashedWheelTimer.Timeout serialSweepTimeout;
     private final InterceptorChain interceptorChain;
     private final AbstractBizSocket bizSocket;
     private ResponseHandler globalNotifyHandler;
+    private HashedWheelTimer timeoutTimer = HashedWheelTimer.getDefault();
+    //命令 + 请求体 -> 正在进行的single-flight请求
+    private final ConcurrentHashMap<FlightKey,RequestContext> inFlightContexts = new ConcurrentHashMap<FlightKey,RequestContext>();
+    private final Set<Integer> singleFlightCmds = Collections.newSetFromMap(new ConcurrentHashMap<Integer,Boolean>());
+    private volatile RequestBatcher requestBatcher;
 
     public RequestQueue(AbstractBizSocket bizSocket) {
         this.bizSocket = bizSocket;
@@ -32,29 +47,29 @@ public class RequestQueue implements PacketListener,ConnectionListener {
             return;
         }
         prepareContext(context);
-        boolean existed = requestContextList.contains(context);
+        boolean existed = requestContextTable.contains(context);
         if (!existed) {
             if ((context.getFlags() & RequestContext.FLAG_CLEAR_QUEUE) != 0) {
-                removeRequestContexts(requestContextList);
+                onRequestContextsRemoved(requestContextTable.clear());
+            }
+            if ((context.getFlags() & (RequestContext.FLAG_SINGLE_FLIGHT | RequestContext.FLAG_NOT_SUPPORT_REPEAT)) != 0) {
+                if (joinInFlight(context)) {
+                    return;
+                }
             }
             if ((context.getFlags() & RequestContext.FLAG_NOT_SUPPORT_REPEAT) != 0) {
-                Collection contexts = getRequestContext(new Filter() {
-                    @Override
-                    public boolean filter(RequestContext ctx) {
-                        return ctx.getRequestCommand() == context.getRequestCommand();
-                    }
-                });
-
-                if (!contexts.isEmpty()) {
-                    //TODO 如果发现重复需要选择一种策略,移除之前的把当前的添加进去，或者当前的不加入队列
+                if (requestContextTable.containsCommand(context.getRequestCommand())) {
+                    //同一个命令不同请求体的请求还没有结果
+                    inFlightContexts.remove(new FlightKey(context), context);
+                    context.sendFailureMessage(context.getRequestCommand(), new RequestRepeatException("重复的请求"));
                     return;
                 }
             }
             if ((context.getFlags() & RequestContext.FLAG_JUMP_QUEUE) != 0) {
-                requestContextList.add(0,context);
+                requestContextTable.addFirst(context);
             }
             else {
-                requestContextList.add(context);
+                requestContextTable.add(context);
             }
             InterceptorChain chain = getInterceptorChain();
             boolean result = chain.invokePostRequestHandle(context);
@@ -83,14 +98,66 @@ public class RequestQueue implements PacketListener,ConnectionListener {
                 }
 
                 logger.debug("build serial context: " + serialContext);
-                mSerialContexts.add(serialContext);
+                serialContextTable.add(serialContext);
+                scheduleSerialSweep();
             } else {
                 logger.debug("repeat request: " + serialContext);
             }
-            return;
         }
+    }
+
+    /**
+     * 有相同的请求正在进行时合并到这个请求,否则当前请求成为正在进行的请求
+     * @param context
+     * @return 是否合并到了其他请求
+     */
+    private boolean joinInFlight(RequestContext context) {
+        FlightKey key = new FlightKey(context);
+        while (true) {
+            RequestContext leader = inFlightContexts.putIfAbsent(key, context);
+            if (leader == null) {
+                return false;
+            }
+            if (leader.addFollower(context)) {
+                logger.debug("join in-flight request: " + leader);
+                return true;
+            }
+            //已经有结果等待移除,或者流式响应已经开始,当前请求成为新的正在进行的请求
+            inFlightContexts.remove(key, leader);
+        }
+    }
+
+    /**
+     * 这个命令的请求开启{@link RequestContext#FLAG_SINGLE_FLIGHT}
+     * @param cmd
+     */
+    public void addSingleFlightCmd(int cmd) {
+        singleFlightCmds.add(cmd);
+    }
 
-        removeExpiredSerialContexts();
+    public void removeSingleFlightCmd(int cmd) {
+        singleFlightCmds.remove(cmd);
+    }
+
+    /**
+     * 获取正在进行的single-flight请求
+     * @param cmd
+     * @param requestBody
+     * @return
+     */
+    public RequestContext getInFlightContext(int cmd, ByteString requestBody) {
+        return getInFlightContext(cmd, requestBody, false);
+    }
+
+    /**
+     * 获取正在进行的single-flight请求,流式和普通的请求不会互相合并
+     * @param cmd
+     * @param requestBody
+     * @param streaming 是否是{@link StreamResponseHandler}的请求
+     * @return
+     */
+    public RequestContext getInFlightContext(int cmd, ByteString requestBody, boolean streaming) {
+        return inFlightContexts.get(new FlightKey(cmd, requestBody, streaming));
     }
 
     /**
@@ -98,6 +165,10 @@ public class RequestQueue implements PacketListener,ConnectionListener {
      * @param requestContext
      */
     private void prepareContext(final RequestContext requestContext) {
+        if (singleFlightCmds.contains(requestContext.getRequestCommand())) {
+            requestContext.setFlags(requestContext.getFlags() | RequestContext.FLAG_SINGLE_FLIGHT);
+        }
+        requestContext.setTimeoutTimer(timeoutTimer);
         requestContext.setOnRequestTimeoutListener(new RequestContext.OnRequestTimeoutListener() {
             @Override
             public void onRequestTimeout(RequestContext context) {
@@ -124,27 +195,32 @@ public class RequestQueue implements PacketListener,ConnectionListener {
         if (requestContexts == null) {
             return;
         }
-        requestContextList.removeAll(requestContexts);
+        requestContextTable.removeAll(requestContexts);
+        onRequestContextsRemoved(requestContexts);
+    }
 
+    //结束已经移除的请求,相同的请求不能再合并到它们
+    private void onRequestContextsRemoved(Collection<RequestContext> requestContexts) {
         for (RequestContext context : requestContexts) {
+            if ((context.getFlags() & (RequestContext.FLAG_SINGLE_FLIGHT | RequestContext.FLAG_NOT_SUPPORT_REPEAT)) != 0) {
+                context.finishFlight();
+                inFlightContexts.remove(new FlightKey(context), context);
+            }
             recyclePacket(context.getRequestPacket());
         }
     }
 
+    /**
+     * 扫描整个队列,响应包的匹配走按命令和包id的索引
+     * @param filter
+     * @return
+     */
     public Collection<RequestContext> getRequestContext(Filter filter) {
         if (filter == null) {
             throw new RuntimeException("filter can not be null");
         }
         List<RequestContext> resultList = new ArrayList<RequestContext>();
-//
-//        for (int i = 0;i < requestContextList.size();i++) {
-//            RequestContext context = requestContextList.get(i);
-//            if (filter.filter(context)) {
-//                resultList.add(context);
-//            }
-//        }
-//
-        for (RequestContext context : requestContextList) {
+        for (RequestContext context : requestContextTable.snapshot()) {
             if (filter.filter(context)) {
                 resultList.add(context);
             }
@@ -152,18 +228,28 @@ public class RequestQueue implements PacketListener,ConnectionListener {
         return resultList;
     }
 
+    /**
+     * 获取等待这个响应的请求
+     * @param command
+     * @param packetID 响应包的id
+     * @return
+     */
+    public Collection<RequestContext> getRequestContext(int command, String packetID) {
+        return requestContextTable.get(command, packetID == null ? "" : packetID);
+    }
+
     public void sendRequest(RequestContext context) {
-        if ((context.getFlags() & RequestContext.FLAG_CHECK_CONNECT_STATUS) == 0
-                || ((context.getFlags() & RequestContext.FLAG_CHECK_CONNECT_STATUS) != 0 && bizSocket.isConnected())) {
+        if (canSend(context)) {
             //Logger.e("connected , send request ...");
+            RequestBatcher batcher = this.requestBatcher;
+            if (batcher != null && (context.getFlags() & RequestContext.FLAG_JUMP_QUEUE) == 0) {
+                //等待和窗口内的其他请求合并发送
+                batcher.add(context);
+                return;
+            }
             //已连接发送请求
             if (sendPacket(context.getRequestPacket())) {
-                context.setFlags(context.getFlags() | RequestContext.FLAG_REQUEST_ALREADY_SEND);
-                onPacketSend(context);
-
-                if (context.getResponseHandler() == null) {
-                    removeRequestContext(context);
-                }
+                onRequestSend(context);
             }
         }
         else {
@@ -172,6 +258,84 @@ public class RequestQueue implements PacketListener,ConnectionListener {
         }
     }
 
+    private boolean canSend(RequestContext context) {
+        return (context.getFlags() & RequestContext.FLAG_CHECK_CONNECT_STATUS) == 0 || bizSocket.isConnected();
+    }
+
+    private void onRequestSend(RequestContext context) {
+        context.setFlags(context.getFlags() | RequestContext.FLAG_REQUEST_ALREADY_SEND);
+        onPacketSend(context);
+
+        if (context.getResponseHandler() == null) {
+            removeRequestContext(context);
+        }
+    }
+
+    /**
+     * 把一个窗口内的请求合并成一个批量包发送,{@link PacketFactory#getBatchPacket(List)}不支持时逐个发送
+     * @param contexts
+     */
+    void sendBatch(List<RequestContext> contexts) {
+        List<RequestContext> sendList = new ArrayList<RequestContext>(contexts.size());
+        List<Packet> packets = new ArrayList<Packet>(contexts.size());
+        for (RequestContext context : contexts) {
+            //窗口内被取消、超时或者断开连接的请求不发送,断开的重连后重新发送
+            if (requestContextTable.contains(context)
+                    && (context.getFlags() & RequestContext.FLAG_REQUEST_ALREADY_SEND) == 0
+                    && canSend(context)) {
+                sendList.add(context);
+                packets.add(context.getRequestPacket());
+            }
+        }
+        if (sendList.isEmpty()) {
+            return;
+        }
+        Packet batchPacket = packets.size() > 1 ? bizSocket.getPacketFactory().getBatchPacket(packets) : null;
+        if (batchPacket == null) {
+            for (RequestContext context : sendList) {
+                if (sendPacket(context.getRequestPacket())) {
+                    onRequestSend(context);
+                }
+            }
+            return;
+        }
+        logger.debug("send batch packet, size: " + sendList.size());
+        if (sendPacket(batchPacket)) {
+            for (RequestContext context : sendList) {
+                onRequestSend(context);
+            }
+        }
+    }
+
+    /**
+     * 开启批量发送,一个时间窗口内的请求合并成一个批量包发送,需要PacketFactory支持批量包.
+     * 插队的请求不等待
+     * @param window 小于等于0时关闭批量发送
+     * @param unit
+     * @param maxBatchSize 窗口内的请求达到这个数量时立即发送
+     */
+    public void setBatchWindow(long window, TimeUnit unit, int maxBatchSize) {
+        if (maxBatchSize <= 1) {
+            throw new IllegalArgumentException("maxBatchSize >= 2,but: " + maxBatchSize);
+        }
+        RequestBatcher previous = this.requestBatcher;
+        long windowMillis = unit.toMillis(window);
+        this.requestBatcher = windowMillis > 0 ? new RequestBatcher(this, windowMillis, maxBatchSize) : null;
+        if (previous != null) {
+            previous.flush();
+        }
+    }
+
+    /**
+     * 立即发送等待合并的请求
+     */
+    public void flushBatch() {
+        RequestBatcher batcher = this.requestBatcher;
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+
     public boolean sendPacket(Packet requestPacket) {
         if (bizSocket.getSocketConnection() != null) {
             bizSocket.getSocketConnection().sendPacket(requestPacket);
@@ -189,13 +353,9 @@ public class RequestQueue implements PacketListener,ConnectionListener {
     private AbstractSerialContext getSerialContext(RequestContext context) {
         Packet packet = context.getRequestPacket();
         if (packet != null) {
-            for (AbstractSerialContext serialContext : mSerialContexts) {
-                if (serialContext.getSerialSignal().getEntranceCommand() == context.getRequestCommand()
-                        && serialContext.getRequestPacketId() != null
-                        && serialContext.getRequestPacketId().equals(packet.getPacketID())
-                        && !serialContext.isExpired()) {
-                    return serialContext;
-                }
+            AbstractSerialContext serialContext = serialContextTable.getByEntrance(context.getRequestCommand(), packet.getPacketID());
+            if (serialContext != null && !serialContext.isExpired()) {
+                return serialContext;
             }
         }
         return null;
@@ -211,15 +371,35 @@ public class RequestQueue implements PacketListener,ConnectionListener {
     //移除过期的上线文
     private void removeExpiredSerialContexts() {
         List<AbstractSerialContext> preDelList = new ArrayList<AbstractSerialContext>();
-        for (AbstractSerialContext serialContext : mSerialContexts) {
-            if (serialContext != null && serialContext.isExpired()) {
+        for (AbstractSerialContext serialContext : serialContextTable.snapshot()) {
+            if (serialContext.isExpired()) {
                 preDelList.add(serialContext);
             }
         }
 
-        mSerialContexts.removeAll(preDelList);
+        serialContextTable.removeAll(preDelList);
+        if (!preDelList.isEmpty()) {
+            logger.debug("serialContexts remove: " + preDelList);
+        }
+    }
 
-        //Log.e(TAG, "serialContexts remove: " + preDelList);
+    //还有串行上下文时定时清理过期的
+    private void scheduleSerialSweep() {
+        synchronized (serialSweepLock) {
+            if (serialSweepTimeout != null || serialContextTable.size() == 0) {
+                return;
+            }
+            serialSweepTimeout = timeoutTimer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (serialSweepLock) {
+                        serialSweepTimeout = null;
+                    }
+                    removeExpiredSerialContexts();
+                    scheduleSerialSweep();
+                }
+            }, SERIAL_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -228,36 +408,85 @@ public class RequestQueue implements PacketListener,ConnectionListener {
      * @param entranceCommand
      * @return
      */
-    private SerialSignal getSerialSignal(Integer entranceCommand) {
-        if (entranceCommand != null) {
-            for (SerialSignal signal : serialSignalList) {
-                if (signal.getEntranceCommand() == entranceCommand) {
-                    return signal;
-                }
-            }
-        }
-        return null;
+    private SerialSignal getSerialSignal(int entranceCommand) {
+        return serialSignals.get(entranceCommand);
     }
 
-    //获取串行上下文
+    //获取串行上下文,只检查按命令或者包id索引到的上下文
     private AbstractSerialContext getSerialContext(Packet responsePacket) {
-//        for (int i = 0; i < mSerialContexts.size(); i++) {
-//            AbstractSerialContext serialContext = mSerialContexts.get(i);
-//            if (serialContext != null && serialContext.shouldProcess(this,responsePacket)) {
-//                return serialContext;
-//            }
-//        }
-
-        for (AbstractSerialContext serialContext : mSerialContexts) {
-            if (serialContext != null && serialContext.shouldProcess(this,responsePacket)) {
+        for (AbstractSerialContext serialContext : serialContextTable.getCandidates(responsePacket.getCommand(), responsePacket.getPacketID())) {
+            if (!serialContext.isExpired()
+                    && (serialContext.isFanOutPacket(responsePacket) || serialContext.shouldProcess(this,responsePacket))) {
                 return serialContext;
             }
         }
         return null;
     }
 
+    //串行上下文发出的子请求,响应按包id找到上下文
+    void trackSerialPacket(AbstractSerialContext serialContext, String packetId) {
+        serialContextTable.addPacketId(serialContext, packetId);
+    }
+
+    void untrackSerialPacket(AbstractSerialContext serialContext, String packetId) {
+        serialContextTable.removePacketId(serialContext, packetId);
+    }
+
+    /**
+     * 发送串行上下文的子请求,和普通请求一样检查连接状态和合并发送,断开时等待重连后发送.
+     * 子请求没有回调,发送后离开队列,响应按包id交给串行上下文
+     * @param context
+     */
+    void sendSerialRequest(RequestContext context) {
+        prepareContext(context);
+        requestContextTable.add(context);
+        sendRequest(context);
+    }
+
+    //还没有发送的子请求不再发送
+    void cancelSerialRequest(RequestContext context) {
+        if (requestContextTable.remove(context)) {
+            recyclePacket(context.getRequestPacket());
+        }
+    }
+
+    /**
+     * 结束串行上下文,把结果作为入口请求的响应分发
+     * @param serialContext
+     * @param result 为null时入口请求失败
+     * @param error
+     */
+    void finishSerialContext(AbstractSerialContext serialContext, Packet result, Throwable error) {
+        serialContext.setExpired(true);
+        serialContextTable.remove(serialContext);
+        RequestContext context = serialContext.getRequestContext();
+        //入口请求已经被取消或者超时
+        if (!requestContextTable.contains(context)) {
+            recyclePacket(result);
+            return;
+        }
+        if (result == null) {
+            logger.debug("serial context failed: " + serialContext);
+            context.sendFailureMessage(context.getRequestCommand(), error);
+            removeRequestContext(context);
+            return;
+        }
+        result.setCommand(context.getRequestCommand());
+        result.setPacketID(context.getRequestPacket().getPacketID());
+        boolean intercepted = getInterceptorChain().invokePesponseHandle(result.getCommand(),result);
+        if (intercepted) {
+            recyclePacket(result);
+            return;
+        }
+        dispatchPacket(result);
+    }
+
+    /**
+     * 添加串行信号,同一个入口命令只保留最后添加的
+     * @param serialSignal
+     */
     public void addSerialSignal(SerialSignal serialSignal) {
-        serialSignalList.add(serialSignal);
+        serialSignals.put(serialSignal.getEntranceCommand(), serialSignal);
     }
 
     /**
@@ -266,15 +495,8 @@ public class RequestQueue implements PacketListener,ConnectionListener {
      */
     public void dispatchPacket(final Packet responsePacket) {
         responsePacket.onDispatch();
-        final int command = responsePacket.getCommand();
-        final String packetID = responsePacket.getPacketID() == null ? "" : responsePacket.getPacketID();
-        Collection<RequestContext> relativeContexts = getRequestContext(new Filter() {
-            @Override
-            public boolean filter(RequestContext context) {
-                return command == context.getRequestCommand()
-                        && packetID.equals(context.getRequestPacket().getPacketID());
-            }
-        });
+        int command = responsePacket.getCommand();
+        Collection<RequestContext> relativeContexts = getRequestContext(command, responsePacket.getPacketID());
 
         for (RequestContext context : relativeContexts) {
             context.sendSuccessMessage(command,null,responsePacket);
@@ -333,12 +555,16 @@ public class RequestQueue implements PacketListener,ConnectionListener {
         AbstractSerialContext serialContext = getSerialContext(packet);
         if (serialContext != null) {
             logger.debug("about serial packet: " + packet);
+            if (serialContext.dispatchFanOutPacket(this, packet)) {
+                //fan-out子请求的响应
+                return false;
+            }
             Packet processPacket = serialContext.processPacket(this,packet);
             if (processPacket == null) {
                 return false;
             }
 
-            boolean result = mSerialContexts.remove(serialContext);
+            boolean result = serialContextTable.remove(serialContext);
             if (result) {
                 logger.debug("serialContext remove: " + serialContext);
             }
@@ -357,6 +583,16 @@ public class RequestQueue implements PacketListener,ConnectionListener {
             e.printStackTrace();
         }
 
+        List<Packet> packets = bizSocket.getPacketFactory().splitBatchPacket(packet);
+        if (packets != null) {
+            //批量响应按单个响应分发
+            for (Packet responsePacket : packets) {
+                processPacket(responsePacket);
+            }
+            recyclePacket(packet);
+            return;
+        }
+
         if (prepareDispatchPacket(packet)) {
             boolean intercepted = getInterceptorChain().invokePesponseHandle(packet.getCommand(),packet);
             if (intercepted) {
@@ -375,6 +611,22 @@ public class RequestQueue implements PacketListener,ConnectionListener {
         return interceptorChain;
     }
 
+    public HashedWheelTimer getTimeoutTimer() {
+        return timeoutTimer;
+    }
+
+    /**
+     * 设置请求超时使用的计时器,默认所有队列共享{@link HashedWheelTimer#getDefault()}
+     * 超时回调在计时器的任务线程中执行,慢的ResponseHandler会占用共享的任务线程,不要在回调中阻塞
+     * @param timeoutTimer
+     */
+    public void setTimeoutTimer(HashedWheelTimer timeoutTimer) {
+        if (timeoutTimer == null) {
+            throw new IllegalArgumentException("timeoutTimer can not be null");
+        }
+        this.timeoutTimer = timeoutTimer;
+    }
+
     public void setGlobalNotifyHandler(ResponseHandler globalNotifyHandler) {
         this.globalNotifyHandler = globalNotifyHandler;
     }
@@ -387,20 +639,65 @@ public class RequestQueue implements PacketListener,ConnectionListener {
             }
         });
 
-        Collection<AbstractSerialContext> abstractSerialContexts = new ArrayList<>();
+        //合并到其他请求的调用方取消时只是不再通知,调用方都取消的请求才移除
+        List<RequestContext> abandoned = new ArrayList<RequestContext>();
+        for (RequestContext leader : inFlightContexts.values()) {
+            if (leader.removeFollowers(tagOrResponseHandler) && !requestContexts.contains(leader)) {
+                abandoned.add(leader);
+            }
+        }
+        Iterator<RequestContext> iterator = requestContexts.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().cancelCaller()) {
+                iterator.remove();
+            }
+        }
+        requestContexts.addAll(abandoned);
+
+        List<AbstractSerialContext> abstractSerialContexts = new ArrayList<>();
         for (RequestContext context : requestContexts) {
-            for (AbstractSerialContext serialContext : mSerialContexts) {
-                if (context == serialContext.getRequestContext()) {
-                    abstractSerialContexts.add(serialContext);
-                    serialContext.setExpired(true);
-                }
+            AbstractSerialContext serialContext = getSerialContext(context);
+            if (serialContext != null && context == serialContext.getRequestContext()) {
+                abstractSerialContexts.add(serialContext);
+                serialContext.setExpired(true);
             }
         }
         removeRequestContexts(requestContexts);
-        mSerialContexts.removeAll(abstractSerialContexts);
+        serialContextTable.removeAll(abstractSerialContexts);
     }
 
     public interface Filter {
         boolean filter(RequestContext context);
     }
+
+    private static final class FlightKey {
+        final int command;
+        final ByteString body;
+        //逐段回调和合并后回调的请求不能共享一个响应
+        final boolean streaming;
+
+        FlightKey(RequestContext context) {
+            this(context.getRequestCommand(), context.getRequestBody(), context.isStreaming());
+        }
+
+        FlightKey(int command, ByteString body, boolean streaming) {
+            this.command = command;
+            this.body = body == null ? ByteString.EMPTY : body;
+            this.streaming = streaming;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FlightKey)) {
+                return false;
+            }
+            FlightKey other = (FlightKey) o;
+            return command == other.command && streaming == other.streaming && body.equals(other.body);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * command + body.hashCode()) + (streaming ? 1 : 0);
+        }
+    }
 }
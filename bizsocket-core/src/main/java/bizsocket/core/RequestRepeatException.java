@@ -0,0 +1,15 @@
+package bizsocket.core;
+
+/**
+ * 带{@link RequestContext#FLAG_NOT_SUPPORT_REPEAT}的请求在队列中已经有同一个命令的其他请求
+ */
+public class RequestRepeatException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public RequestRepeatException() {
+    }
+
+    public RequestRepeatException(String detailMessage) {
+        super(detailMessage);
+    }
+}
@@ -0,0 +1,106 @@
+package bizsocket.core;
+
+import bizsocket.tcp.Packet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes which packets of a sticky command are kept for late subscribers.
+ *
+ * <pre>
+ * //the latest quote of every instrument, for at most 10 seconds
+ * router.addStickyCmd(new StickyCmd.Builder(NOTIFY_PRICE)
+ *         .maxEntries(300)
+ *         .keyExtractor(instrumentCodeExtractor)
+ *         .ttl(TimeUnit.SECONDS, 10)
+ *         .build());
+ * </pre>
+ */
+public final class StickyCmd {
+    private int command;
+    private PacketValidator validator;
+    private KeyExtractor keyExtractor;
+    private int maxEntries = 1;
+    private long ttlMillis;
+
+    private StickyCmd() {
+    }
+
+    public int command() {
+        return command;
+    }
+
+    public PacketValidator validator() {
+        return validator;
+    }
+
+    public KeyExtractor keyExtractor() {
+        return keyExtractor;
+    }
+
+    public int maxEntries() {
+        return maxEntries;
+    }
+
+    public long ttlMillis() {
+        return ttlMillis;
+    }
+
+    public interface KeyExtractor {
+        /**
+         * 获取包的key,key相同的包只保留最新的一个
+         * @param packet
+         * @return null 不缓存这个包
+         */
+        Object getKey(Packet packet);
+    }
+
+    public static class Builder {
+        private final StickyCmd stickyCmd = new StickyCmd();
+
+        public Builder(int command) {
+            stickyCmd.command = command;
+        }
+
+        /**
+         * 校验将要被缓存的包的有效性,默认缓存所有包
+         */
+        public Builder validator(PacketValidator validator) {
+            stickyCmd.validator = validator;
+            return this;
+        }
+
+        /**
+         * 没有设置时每个包都是一个新的条目
+         */
+        public Builder keyExtractor(KeyExtractor keyExtractor) {
+            stickyCmd.keyExtractor = keyExtractor;
+            return this;
+        }
+
+        /**
+         * 最多保留的包数量,默认1
+         */
+        public Builder maxEntries(int maxEntries) {
+            if (maxEntries <= 0) {
+                throw new IllegalArgumentException("maxEntries >= 1,but: " + maxEntries);
+            }
+            stickyCmd.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * 包的有效期,默认一直有效
+         */
+        public Builder ttl(TimeUnit unit, long duration) {
+            if (duration < 0) {
+                throw new IllegalArgumentException("duration >= 0,but: " + duration);
+            }
+            stickyCmd.ttlMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        public StickyCmd build() {
+            return stickyCmd;
+        }
+    }
+}
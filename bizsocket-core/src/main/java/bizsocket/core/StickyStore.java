@@ -0,0 +1,186 @@
+package bizsocket.core;
+
+import bizsocket.tcp.Packet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the last packets of sticky commands for late subscribers. Every command keeps at
+ * most {@link StickyCmd#maxEntries()} packets, one per key, and all commands share one
+ * byte budget. When it is exceeded the packets stored longest ago are evicted first,
+ * whatever their command.
+ */
+class StickyStore {
+    private final long maxBytes;
+    private final PacketWeigher weigher;
+    private final Map<Integer,StickyCmd> stickyCmds = new ConcurrentHashMap<Integer,StickyCmd>();
+    //command -> key -> entry, in the order the entries were stored; guarded by this
+    private final Map<Integer,LinkedHashMap<Object,Entry>> entries = new HashMap<Integer,LinkedHashMap<Object,Entry>>();
+    //all entries in the order they were stored, the head is evicted first
+    private final LinkedHashSet<Entry> storeOrder = new LinkedHashSet<Entry>();
+    private long bytes;
+    private long evictionCount;
+    //key of commands without a key extractor, every packet is a new entry
+    private long sequence;
+
+    StickyStore(long maxBytes, PacketWeigher weigher) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes >= 1,but: " + maxBytes);
+        }
+        if (weigher == null) {
+            throw new IllegalArgumentException("weigher can not be null");
+        }
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+    }
+
+    void addStickyCmd(StickyCmd stickyCmd) {
+        StickyCmd previous = stickyCmds.put(stickyCmd.command(), stickyCmd);
+        if (previous != null) {
+            removeEntries(stickyCmd.command());
+        }
+    }
+
+    void removeStickyCmd(int command) {
+        if (stickyCmds.remove(command) != null) {
+            removeEntries(command);
+        }
+    }
+
+    boolean isSticky(int command) {
+        return stickyCmds.containsKey(command);
+    }
+
+    /**
+     * Stores the packet if its command is sticky and it passes the validator.
+     *
+     * @return true if the packet was stored, it is no longer recyclable
+     */
+    boolean put(Packet packet) {
+        int command = packet.getCommand();
+        StickyCmd stickyCmd = stickyCmds.get(command);
+        if (stickyCmd == null) {
+            return false;
+        }
+        if (stickyCmd.validator() != null && !stickyCmd.validator().verify(packet)) {
+            return false;
+        }
+        int weight = weigher.weigh(packet);
+        if (weight > maxBytes) {
+            return false;
+        }
+        long expireMillis = stickyCmd.ttlMillis() > 0 ? System.currentTimeMillis() + stickyCmd.ttlMillis() : Long.MAX_VALUE;
+
+        synchronized (this) {
+            Object key = stickyCmd.keyExtractor() != null ? stickyCmd.keyExtractor().getKey(packet) : Long.valueOf(sequence++);
+            if (key == null) {
+                return false;
+            }
+            LinkedHashMap<Object,Entry> commandEntries = entries.get(command);
+            if (commandEntries == null) {
+                commandEntries = new LinkedHashMap<Object,Entry>();
+                entries.put(command, commandEntries);
+            }
+            Entry previous = commandEntries.remove(key);
+            if (previous != null) {
+                storeOrder.remove(previous);
+                bytes -= previous.weight;
+            }
+
+            //被缓存的包不可复用
+            packet.setFlags(packet.getFlags() & ~Packet.FLAG_RECYCLABLE);
+            Entry entry = new Entry(command, key, packet, weight, expireMillis);
+            commandEntries.put(key, entry);
+            storeOrder.add(entry);
+            bytes += weight;
+
+            if (commandEntries.size() > stickyCmd.maxEntries()) {
+                removeEntry(commandEntries.values().iterator().next());
+                evictionCount++;
+            }
+            while (bytes > maxBytes) {
+                removeEntry(storeOrder.iterator().next());
+                evictionCount++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the live packets of the command, oldest first. Expired packets are dropped.
+     */
+    synchronized List<Packet> get(int command) {
+        LinkedHashMap<Object,Entry> commandEntries = entries.get(command);
+        if (commandEntries == null) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        List<Packet> packets = new ArrayList<Packet>(commandEntries.size());
+        Iterator<Entry> iterator = commandEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.expireMillis < now) {
+                iterator.remove();
+                storeOrder.remove(entry);
+                bytes -= entry.weight;
+            } else {
+                packets.add(entry.packet);
+            }
+        }
+        if (commandEntries.isEmpty()) {
+            entries.remove(command);
+        }
+        return packets;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private synchronized void removeEntries(int command) {
+        LinkedHashMap<Object,Entry> commandEntries = entries.remove(command);
+        if (commandEntries != null) {
+            for (Entry entry : commandEntries.values()) {
+                storeOrder.remove(entry);
+                bytes -= entry.weight;
+            }
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        LinkedHashMap<Object,Entry> commandEntries = entries.get(entry.command);
+        commandEntries.remove(entry.key);
+        if (commandEntries.isEmpty()) {
+            entries.remove(entry.command);
+        }
+        storeOrder.remove(entry);
+        bytes -= entry.weight;
+    }
+
+    private static class Entry {
+        final int command;
+        final Object key;
+        final Packet packet;
+        final int weight;
+        final long expireMillis;
+
+        Entry(int command, Object key, Packet packet, int weight, long expireMillis) {
+            this.command = command;
+            this.key = key;
+            this.packet = packet;
+            this.weight = weight;
+            this.expireMillis = expireMillis;
+        }
+    }
+}
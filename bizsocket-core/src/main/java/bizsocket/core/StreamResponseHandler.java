@@ -0,0 +1,29 @@
+package bizsocket.core;
+
+import bizsocket.tcp.Packet;
+import okio.ByteString;
+
+/**
+ * 分段的响应逐段回调,不等待所有分段到达后合并.
+ * 分段按分片序号依次回调,最后一段之后回调{@link #sendCompleteMessage(int, ByteString)};
+ * 失败时仍然回调{@link #sendFailureMessage(int, Throwable)}.
+ * 没有分段的响应按{@link #sendSuccessMessage(int, ByteString, Packet)}回调
+ */
+public interface StreamResponseHandler extends ResponseHandler {
+    /**
+     * 收到一个分段,回调返回后分段可能被复用,需要保留的数据要在回调中读取
+     *
+     * @param command   command code
+     * @param requestBody
+     * @param fragment
+     */
+    void sendFragmentMessage(int command, ByteString requestBody, Packet fragment);
+
+    /**
+     * 所有分段都已回调
+     *
+     * @param command   command code
+     * @param requestBody
+     */
+    void sendCompleteMessage(int command, ByteString requestBody);
+}
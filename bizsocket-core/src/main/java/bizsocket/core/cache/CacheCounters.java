@@ -0,0 +1,18 @@
+package bizsocket.core.cache;
+
+/**
+ * 一个命令的缓存统计
+ */
+final class CacheCounters {
+    final StripedCounter hits = new StripedCounter();
+    final StripedCounter misses = new StripedCounter();
+    final StripedCounter updates = new StripedCounter();
+    final StripedCounter invalidations = new StripedCounter();
+    final StripedCounter evictions = new StripedCounter();
+    final StripedCounter bytes = new StripedCounter();
+
+    CacheStats snapshot(int command) {
+        return new CacheStats(command, hits.sum(), misses.sum(), updates.sum(),
+                invalidations.sum(), evictions.sum(), bytes.sum());
+    }
+}
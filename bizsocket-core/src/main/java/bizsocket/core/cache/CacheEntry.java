@@ -0,0 +1,76 @@
+package bizsocket.core.cache;
+
+import bizsocket.tcp.Packet;
+import okio.ByteString;
+
+/**
+ * 一个请求体对应的缓存
+ */
+public class CacheEntry {
+    private final ByteString requestBody;
+    private final Packet packet;
+    private final long updateMillis;
+    private int hitCount;
+    //set by the CacheManager that accounts for this entry
+    private int weight;
+    //已经从所属的策略中移除,由策略的锁保护
+    private boolean removed;
+
+    CacheEntry(ByteString requestBody, Packet packet) {
+        this(requestBody, packet, System.currentTimeMillis());
+    }
+
+    CacheEntry(ByteString requestBody, Packet packet, long updateMillis) {
+        this.requestBody = requestBody;
+        this.packet = packet;
+        this.updateMillis = updateMillis;
+    }
+
+    public ByteString getRequestBody() {
+        return requestBody;
+    }
+
+    public Packet getPacket() {
+        return packet;
+    }
+
+    /**
+     * 缓存写入的时间
+     * @return
+     */
+    public long getUpdateMillis() {
+        return updateMillis;
+    }
+
+    /**
+     * 缓存写入后被命中的次数
+     * @return
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 估算的缓存包占用的内存
+     * @return
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    void hit() {
+        hitCount++;
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    void markRemoved() {
+        removed = true;
+    }
+}
@@ -2,23 +2,63 @@ package bizsocket.core.cache;
 
 import bizsocket.core.AbstractBizSocket;
 import bizsocket.core.Interceptor;
+import bizsocket.core.PacketWeigher;
 import bizsocket.core.RequestContext;
 import bizsocket.logger.Logger;
 import bizsocket.logger.LoggerFactory;
 import bizsocket.tcp.Packet;
+import okio.ByteString;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * 所有缓存策略的条目共用一个内存上限,超出时跨命令移除最久没有使用的条目.
+ * 每个命令的命中、写入、失效等统计通过{@link #getStats(int)}获取.
+ * 设置{@link DiskCache}后持久化策略的缓存写入磁盘,重启后连接建立前的请求也可以使用缓存
+ *
  * Created by tong on 16/10/5.
  */
 public class CacheManager implements Interceptor {
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
     private final Logger logger = LoggerFactory.getLogger(CacheManager.class.getSimpleName());
     private final Map<Integer,CacheStrategy> cacheStrategyMap = new ConcurrentHashMap<Integer, CacheStrategy>();
     private final AbstractBizSocket bizSocket;
+    private final PacketWeigher weigher;
+    private volatile long maxBytes;
+    //所有策略的条目,按访问顺序排列,第一个是最久没有使用的; guarded by itself
+    private final LinkedHashMap<CacheEntry,CacheStrategy> entries = new LinkedHashMap<CacheEntry,CacheStrategy>(16, 0.75f, true);
+    private long bytes;
+    private long evictionCount;
+    private volatile DiskCache diskCache;
+    private final ConcurrentHashMap<Integer,CacheCounters> counters = new ConcurrentHashMap<Integer,CacheCounters>();
+    //触发命令 -> 需要移除缓存的策略,写时复制; 修改时锁this
+    private final Map<Integer,CacheStrategy[]> requestTriggers = new ConcurrentHashMap<Integer,CacheStrategy[]>();
+    private final Map<Integer,CacheStrategy[]> responseTriggers = new ConcurrentHashMap<Integer,CacheStrategy[]>();
 
     public CacheManager(AbstractBizSocket bizSocket) {
+        this(bizSocket, DEFAULT_MAX_BYTES, PacketWeigher.SERIALIZED_LENGTH);
+    }
+
+    /**
+     * @param bizSocket
+     * @param maxBytes 所有缓存包占用内存的上限
+     * @param weigher 估算包占用的内存
+     */
+    public CacheManager(AbstractBizSocket bizSocket, long maxBytes, PacketWeigher weigher) {
+        if (weigher == null) {
+            throw new IllegalArgumentException("weigher can not be null");
+        }
         this.bizSocket = bizSocket;
+        this.weigher = weigher;
+        setMaxBytes(maxBytes);
         this.bizSocket.getInterceptorChain().addInterceptor(this);
     }
 
@@ -37,8 +77,12 @@ public class CacheManager implements Interceptor {
      */
     public void add(CacheStrategy entry) {
         if (entry != null) {
+            entry.setCacheManager(this);
             entry.onMount(this);
-            cacheStrategyMap.put(entry.getCommand(),entry);
+            CacheStrategy previous = cacheStrategyMap.put(entry.getCommand(),entry);
+            if (previous != null && previous != entry) {
+                detach(previous);
+            }
         }
     }
 
@@ -57,14 +101,94 @@ public class CacheManager implements Interceptor {
      * 通过命令号移除缓存策略
      */
     public void remove(int cmd) {
-        cacheStrategyMap.remove(cmd);
+        CacheStrategy cacheStrategy = cacheStrategyMap.remove(cmd);
+        if (cacheStrategy != null) {
+            detach(cacheStrategy);
+        }
     }
 
     /**
      * 移除所有的缓存策略
      */
     public void removeAll() {
-        cacheStrategyMap.clear();
+        for (Integer cmd : cacheStrategyMap.keySet()) {
+            remove(cmd);
+        }
+    }
+
+    /**
+     * 发送这些命令时调用策略的{@link CacheStrategy#onTrigger(Packet)},策略被移除时自动取消
+     * @param triggerCommands
+     * @param cacheStrategy
+     */
+    public void addRequestTrigger(int[] triggerCommands, CacheStrategy cacheStrategy) {
+        addTrigger(requestTriggers, triggerCommands, cacheStrategy);
+    }
+
+    /**
+     * 收到这些命令时调用策略的{@link CacheStrategy#onTrigger(Packet)},策略被移除时自动取消
+     * @param triggerCommands
+     * @param cacheStrategy
+     */
+    public void addResponseTrigger(int[] triggerCommands, CacheStrategy cacheStrategy) {
+        addTrigger(responseTriggers, triggerCommands, cacheStrategy);
+    }
+
+    /**
+     * 取消策略所有的触发命令
+     * @param cacheStrategy
+     */
+    public synchronized void removeTriggers(CacheStrategy cacheStrategy) {
+        removeTrigger(requestTriggers, cacheStrategy);
+        removeTrigger(responseTriggers, cacheStrategy);
+    }
+
+    private synchronized void addTrigger(Map<Integer,CacheStrategy[]> triggers, int[] triggerCommands, CacheStrategy cacheStrategy) {
+        for (int triggerCommand : triggerCommands) {
+            CacheStrategy[] strategies = triggers.get(triggerCommand);
+            if (strategies == null) {
+                triggers.put(triggerCommand, new CacheStrategy[]{cacheStrategy});
+                continue;
+            }
+            boolean exists = false;
+            for (CacheStrategy strategy : strategies) {
+                exists |= strategy == cacheStrategy;
+            }
+            if (!exists) {
+                CacheStrategy[] newStrategies = Arrays.copyOf(strategies, strategies.length + 1);
+                newStrategies[strategies.length] = cacheStrategy;
+                triggers.put(triggerCommand, newStrategies);
+            }
+        }
+    }
+
+    private void removeTrigger(Map<Integer,CacheStrategy[]> triggers, CacheStrategy cacheStrategy) {
+        Iterator<Map.Entry<Integer,CacheStrategy[]>> iterator = triggers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer,CacheStrategy[]> entry = iterator.next();
+            List<CacheStrategy> strategies = new ArrayList<CacheStrategy>(Arrays.asList(entry.getValue()));
+            if (!strategies.remove(cacheStrategy)) {
+                continue;
+            }
+            if (strategies.isEmpty()) {
+                iterator.remove();
+            } else {
+                entry.setValue(strategies.toArray(new CacheStrategy[strategies.size()]));
+            }
+        }
+    }
+
+    private void trigger(Map<Integer,CacheStrategy[]> triggers, Packet packet) {
+        if (packet == null) {
+            return;
+        }
+        CacheStrategy[] strategies = triggers.get(packet.getCommand());
+        if (strategies == null) {
+            return;
+        }
+        for (CacheStrategy cacheStrategy : strategies) {
+            cacheStrategy.onTrigger(packet);
+        }
     }
 
     /**
@@ -87,30 +211,223 @@ public class CacheManager implements Interceptor {
         }
     }
 
+    /**
+     * 获取所有缓存包占用的内存
+     * @return
+     */
+    public long getCacheBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * 获取因超出内存上限被移除的缓存数量
+     * @return
+     */
+    public long getEvictionCount() {
+        synchronized (entries) {
+            return evictionCount;
+        }
+    }
+
+    /**
+     * 获取命令的缓存统计
+     * @param cmd
+     * @return
+     */
+    public CacheStats getStats(int cmd) {
+        CacheCounters commandCounters = counters.get(cmd);
+        return commandCounters != null ? commandCounters.snapshot(cmd) : new CacheStats(cmd, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * 获取所有命令的缓存统计
+     * @return
+     */
+    public Map<Integer,CacheStats> getStats() {
+        Map<Integer,CacheStats> stats = new HashMap<Integer,CacheStats>();
+        for (Map.Entry<Integer,CacheCounters> entry : counters.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return stats;
+    }
+
+    CacheCounters getCounters(int cmd) {
+        CacheCounters commandCounters = counters.get(cmd);
+        if (commandCounters == null) {
+            CacheCounters newCounters = new CacheCounters();
+            commandCounters = counters.putIfAbsent(cmd, newCounters);
+            if (commandCounters == null) {
+                commandCounters = newCounters;
+            }
+        }
+        return commandCounters;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * 设置所有缓存包占用内存的上限,超出时立即移除最久没有使用的缓存
+     * @param maxBytes
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes >= 1,but: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        evictIfNeeded();
+    }
+
+    public DiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * 设置磁盘缓存,{@link CacheStrategy#setPersistent(boolean)}为true的策略使用
+     * @param diskCache 为null时不使用磁盘缓存
+     */
+    public void setDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    void persist(CacheStrategy cacheStrategy, CacheEntry entry) {
+        DiskCache diskCache = this.diskCache;
+        if (diskCache != null) {
+            diskCache.put(cacheStrategy.getCommand(), entry.getRequestBody(), entry.getUpdateMillis(), entry.getPacket());
+        }
+    }
+
+    CacheEntry loadPersisted(CacheStrategy cacheStrategy, ByteString requestBody) {
+        DiskCache diskCache = this.diskCache;
+        return diskCache != null ? diskCache.get(cacheStrategy.getCommand(), requestBody) : null;
+    }
+
+    /**
+     * @param requestBody 为null时删除策略所有的缓存
+     */
+    void unpersist(CacheStrategy cacheStrategy, ByteString requestBody) {
+        DiskCache diskCache = this.diskCache;
+        if (diskCache == null) {
+            return;
+        }
+        if (requestBody == null) {
+            diskCache.removeAll(cacheStrategy.getCommand());
+        } else {
+            diskCache.remove(cacheStrategy.getCommand(), requestBody);
+        }
+    }
+
+    void onEntryAdded(CacheStrategy cacheStrategy, CacheEntry entry) {
+        entry.setWeight(weigher.weigh(entry.getPacket()));
+        synchronized (entries) {
+            entries.put(entry, cacheStrategy);
+            bytes += entry.getWeight();
+        }
+        getCounters(cacheStrategy.getCommand()).bytes.add(entry.getWeight());
+        evictIfNeeded();
+    }
+
+    void onEntryAccessed(CacheEntry entry) {
+        synchronized (entries) {
+            entries.get(entry);
+        }
+    }
+
+    void onEntriesRemoved(List<CacheEntry> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+        synchronized (entries) {
+            for (CacheEntry entry : removed) {
+                CacheStrategy cacheStrategy = entries.remove(entry);
+                if (cacheStrategy != null) {
+                    bytes -= entry.getWeight();
+                    getCounters(cacheStrategy.getCommand()).bytes.add(-entry.getWeight());
+                }
+            }
+        }
+    }
+
+    private void evictIfNeeded() {
+        List<CacheEntry> evicted = null;
+        List<CacheStrategy> strategies = null;
+        synchronized (entries) {
+            Iterator<Map.Entry<CacheEntry,CacheStrategy>> iterator = entries.entrySet().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<CacheEntry,CacheStrategy> eldest = iterator.next();
+                iterator.remove();
+                bytes -= eldest.getKey().getWeight();
+                evictionCount++;
+                if (evicted == null) {
+                    evicted = new ArrayList<CacheEntry>();
+                    strategies = new ArrayList<CacheStrategy>();
+                }
+                evicted.add(eldest.getKey());
+                strategies.add(eldest.getValue());
+            }
+        }
+        //策略的锁不能在持有entries时获取
+        if (evicted != null) {
+            for (int i = 0; i < evicted.size(); i++) {
+                CacheCounters commandCounters = getCounters(strategies.get(i).getCommand());
+                commandCounters.bytes.add(-evicted.get(i).getWeight());
+                commandCounters.evictions.increment();
+                strategies.get(i).evict(evicted.get(i));
+            }
+        }
+    }
+
+    private void detach(CacheStrategy cacheStrategy) {
+        //卸载策略不删除磁盘上的缓存
+        removeTriggers(cacheStrategy);
+        cacheStrategy.removeMemoryCache();
+        cacheStrategy.setCacheManager(null);
+    }
+
     public AbstractBizSocket getBizSocket() {
         return bizSocket;
     }
 
     @Override
     public boolean postRequestHandle(RequestContext context) throws Exception {
+        trigger(requestTriggers, context.getRequestPacket());
+
         CacheStrategy cacheStrategy = get(context.getRequestCommand());
-        Packet cachedPacket = null;
-        if (cacheStrategy != null && (cachedPacket = cacheStrategy.getValidCache()) != null) {
-            logger.debug("Use cache packet " + cachedPacket);
-            context.sendSuccessMessage(context.getRequestCommand(),null, cacheStrategy.getValidCache());
-            //命中缓存
-            cacheStrategy.onHit();
-            return true;
+        if (cacheStrategy == null || !cacheStrategy.shouldUseCache(context)) {
+            return false;
         }
-        return false;
+        CacheEntry entry = cacheStrategy.getValidEntry(context.getRequestBody());
+        CacheCounters commandCounters = getCounters(context.getRequestCommand());
+        if (entry == null) {
+            commandCounters.misses.increment();
+            return false;
+        }
+        commandCounters.hits.increment();
+        logger.debug("Use cache packet " + entry.getPacket());
+        context.sendSuccessMessage(context.getRequestCommand(),null, entry.getPacket());
+        //命中缓存
+        cacheStrategy.hit(context.getRequestBody());
+        cacheStrategy.onServeCache(this, context, entry);
+        return true;
     }
 
     @Override
     public boolean postResponseHandle(int command, Packet responsePacket) throws Exception {
         CacheStrategy cacheStrategy = get(responsePacket.getCommand());
         if (cacheStrategy != null) {
-            cacheStrategy.updateCache(responsePacket);
+            //按发起请求的请求体缓存,没有对应请求的包(推送)缓存到空请求体下
+            Collection<RequestContext> contexts = bizSocket.getRequestQueue().getRequestContext(responsePacket.getCommand(), responsePacket.getPacketID());
+            if (contexts.isEmpty()) {
+                cacheStrategy.updateCache(responsePacket);
+            }
+            for (RequestContext context : contexts) {
+                cacheStrategy.updateCache(context.getRequestBody(), responsePacket);
+            }
         }
+        trigger(responseTriggers, responsePacket);
         return false;
     }
 }
@@ -0,0 +1,98 @@
+package bizsocket.core.cache;
+
+/**
+ * 一个命令的缓存统计快照,通过{@link CacheManager#getStats(int)}获取
+ */
+public final class CacheStats {
+    private final int command;
+    private final long hitCount;
+    private final long missCount;
+    private final long updateCount;
+    private final long invalidationCount;
+    private final long evictionCount;
+    private final long bytes;
+
+    CacheStats(int command, long hitCount, long missCount, long updateCount, long invalidationCount, long evictionCount, long bytes) {
+        this.command = command;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.updateCount = updateCount;
+        this.invalidationCount = invalidationCount;
+        this.evictionCount = evictionCount;
+        this.bytes = bytes;
+    }
+
+    public int getCommand() {
+        return command;
+    }
+
+    /**
+     * 使用缓存作为响应的请求数
+     * @return
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 没有可用缓存发送出去的请求数
+     * @return
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 命中率,没有请求时为0
+     * @return
+     */
+    public double getHitRate() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * 写入缓存的次数
+     * @return
+     */
+    public long getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * 因过期、触发命令或者主动移除而失效的条目数
+     * @return
+     */
+    public long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    /**
+     * 因超出条目上限或者内存上限被移除的条目数
+     * @return
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 当前缓存包占用的内存
+     * @return
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "command=" + command +
+                ", hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", updateCount=" + updateCount +
+                ", invalidationCount=" + invalidationCount +
+                ", evictionCount=" + evictionCount +
+                ", bytes=" + bytes +
+                '}';
+    }
+}
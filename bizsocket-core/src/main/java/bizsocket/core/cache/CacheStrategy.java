@@ -1,19 +1,39 @@
 package bizsocket.core.cache;
 
 import bizsocket.core.PacketValidator;
+import bizsocket.core.RequestContext;
 import bizsocket.logger.Logger;
 import bizsocket.logger.LoggerFactory;
 import bizsocket.tcp.Packet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import okio.ByteString;
 
 /**
+ * 按请求体缓存响应包,同一个命令的不同请求体各自缓存、各自过期.
+ * 缓存条目超过{@link #getMaxEntries()}时移除最久没有使用的条目.
+ * 不带请求体的方法操作空请求体对应的缓存.
+ * 挂载到{@link CacheManager}后条目还受CacheManager的总内存上限约束.
+ * 持久化的策略在CacheManager设置了{@link DiskCache}时同时写入磁盘,内存中没有的条目从磁盘加载
+ *
  * Created by tong on 16/10/5.
  */
 public class CacheStrategy {
+    public static final int DEFAULT_MAX_ENTRIES = 1;
+
     protected final Logger logger = LoggerFactory.getLogger(getClass().getSimpleName());
 
     private int command;
-    private Packet packet;
     private PacketValidator validator;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private volatile boolean persistent;
+    //按访问顺序排列,第一个是最久没有使用的
+    private final LinkedHashMap<ByteString,CacheEntry> entries = new LinkedHashMap<ByteString,CacheEntry>(16, 0.75f, true);
+    private volatile CacheManager cacheManager;
 
     public CacheStrategy(int command) {
         this.command = command;
@@ -35,6 +55,11 @@ public class CacheStrategy {
     }
 
     //当缓存被命中
+    public void onHit(CacheEntry entry) {
+
+    }
+
+    //当缓存被命中,在onHit(CacheEntry)之后调用
     public void onHit() {
 
     }
@@ -50,10 +75,56 @@ public class CacheStrategy {
     }
 
     /**
-     * 更新缓存
+     * 发送或收到通过{@link CacheManager#addRequestTrigger(int[], CacheStrategy)}、
+     * {@link CacheManager#addResponseTrigger(int[], CacheStrategy)}注册的命令时调用,默认移除所有缓存
+     * @param triggerPacket
+     */
+    public void onTrigger(Packet triggerPacket) {
+        removeCache();
+    }
+
+    /**
+     * 请求是否可以使用缓存
+     * @param context
+     * @return false 直接发送请求
+     */
+    public boolean shouldUseCache(RequestContext context) {
+        return true;
+    }
+
+    /**
+     * 缓存被作为请求的响应返回后调用
+     * @param cacheManager
+     * @param context 被缓存响应的请求
+     * @param entry
+     */
+    public void onServeCache(CacheManager cacheManager, RequestContext context, CacheEntry entry) {
+
+    }
+
+    /**
+     * 缓存是否过期,过期的缓存在下次获取时被移除
+     * @param entry
+     * @return
+     */
+    protected boolean isExpired(CacheEntry entry) {
+        return false;
+    }
+
+    /**
+     * 更新空请求体对应的缓存
      * @param networkPacket
      */
     public final void updateCache(Packet networkPacket) {
+        updateCache(null, networkPacket);
+    }
+
+    /**
+     * 更新缓存
+     * @param requestBody 响应包对应的请求体
+     * @param networkPacket
+     */
+    public final void updateCache(ByteString requestBody, Packet networkPacket) {
         if (networkPacket == null) {
             return;
         }
@@ -65,39 +136,305 @@ public class CacheStrategy {
             return;
         }
 
-        this.packet = networkPacket;
         //被缓存的包不可复用
         networkPacket.setFlags(networkPacket.getFlags() & ~Packet.FLAG_RECYCLABLE);
-        logger.debug("save or update cache packet: " + packet);
+        CacheEntry entry = new CacheEntry(keyOf(requestBody), networkPacket);
+        putEntry(entry, true);
+        logger.debug("save or update cache packet: " + networkPacket);
+        CacheManager cacheManager = this.cacheManager;
+        if (cacheManager != null) {
+            cacheManager.getCounters(command).updates.increment();
+            if (persistent) {
+                cacheManager.persist(this, entry);
+            }
+        }
 
         onUpdateCache(networkPacket);
     }
 
+    /**
+     * @param replace false时保留已经存在的条目
+     * @return 缓存中的条目
+     */
+    private CacheEntry putEntry(CacheEntry entry, boolean replace) {
+        ByteString key = entry.getRequestBody();
+        List<CacheEntry> removed = new ArrayList<CacheEntry>(1);
+        int evictionCount = 0;
+        synchronized (this) {
+            if (!replace) {
+                CacheEntry existing = entries.get(key);
+                if (existing != null) {
+                    return existing;
+                }
+            }
+            CacheEntry previous = entries.put(key, entry);
+            if (previous != null) {
+                previous.markRemoved();
+                removed.add(previous);
+            }
+            Iterator<CacheEntry> iterator = entries.values().iterator();
+            while (entries.size() > maxEntries) {
+                CacheEntry eldest = iterator.next();
+                iterator.remove();
+                eldest.markRemoved();
+                removed.add(eldest);
+                evictionCount++;
+                logger.debug("evict cache packet: " + eldest.getPacket());
+            }
+        }
+        CacheManager cacheManager = this.cacheManager;
+        if (cacheManager != null) {
+            if (evictionCount > 0) {
+                cacheManager.getCounters(command).evictions.add(evictionCount);
+            }
+            cacheManager.onEntriesRemoved(removed);
+            cacheManager.onEntryAdded(this, entry);
+        }
+        return entry;
+    }
+
     public int getCommand() {
         return command;
     }
 
     /**
-     * 获取可用的缓存
+     * 获取空请求体对应的可用缓存
      * @return
      */
     public Packet getValidCache() {
-        return packet;
+        return getValidCache(null);
     }
 
     /**
-     * 移除缓存
+     * 获取可用的缓存
+     * @param requestBody
+     * @return
      */
-    public synchronized void removeCache() {
+    public Packet getValidCache(ByteString requestBody) {
+        CacheEntry entry = getValidEntry(requestBody);
+        return entry != null ? entry.getPacket() : null;
+    }
+
+    /**
+     * 记录一次空请求体对应的缓存被命中
+     */
+    public void recordHit() {
+        hit(null);
+    }
+
+    /**
+     * 记录一次缓存被命中
+     * @param requestBody
+     */
+    public void hit(ByteString requestBody) {
+        CacheEntry entry;
+        synchronized (this) {
+            entry = entries.get(keyOf(requestBody));
+            if (entry == null) {
+                return;
+            }
+            entry.hit();
+        }
+        CacheManager cacheManager = this.cacheManager;
+        if (cacheManager != null) {
+            cacheManager.onEntryAccessed(entry);
+        }
+        onHit(entry);
+        onHit();
+    }
+
+    /**
+     * 获取未过期的缓存条目
+     * @param requestBody
+     * @return
+     */
+    protected CacheEntry getValidEntry(ByteString requestBody) {
+        ByteString key = keyOf(requestBody);
+        CacheEntry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                //内存中没有时从磁盘加载
+            } else if (isExpired(entry)) {
+                entries.remove(key);
+                entry.markRemoved();
+            } else {
+                return entry;
+            }
+        }
+        if (entry == null) {
+            return loadEntry(key);
+        }
+        logger.debug("cache expired: " + entry.getPacket());
+        notifyRemoved(Collections.singletonList(entry));
+        recordInvalidations(1);
+        unpersist(key);
         onRemoveCache();
-        this.packet = null;
+        return null;
+    }
+
+    private CacheEntry loadEntry(ByteString key) {
+        CacheManager cacheManager = this.cacheManager;
+        if (cacheManager == null || !persistent) {
+            return null;
+        }
+        CacheEntry entry = cacheManager.loadPersisted(this, key);
+        if (entry == null) {
+            return null;
+        }
+        if (isExpired(entry)) {
+            logger.debug("disk cache expired: " + entry.getPacket());
+            cacheManager.unpersist(this, key);
+            recordInvalidations(1);
+            return null;
+        }
+        logger.debug("load cache packet from disk: " + entry.getPacket());
+        return putEntry(entry, false);
+    }
+
+    /**
+     * 移除所有缓存
+     */
+    public void removeCache() {
+        unpersist(null);
+        recordInvalidations(removeMemoryCache());
+    }
+
+    /**
+     * 只移除内存中的缓存,磁盘上的保留
+     * @return 移除的条目数
+     */
+    int removeMemoryCache() {
+        List<CacheEntry> removed;
+        synchronized (this) {
+            removed = new ArrayList<CacheEntry>(entries.values());
+            entries.clear();
+            for (CacheEntry entry : removed) {
+                entry.markRemoved();
+            }
+        }
+        notifyRemoved(removed);
+        onRemoveCache();
+        return removed.size();
+    }
+
+    /**
+     * 移除请求体对应的缓存
+     * @param requestBody
+     */
+    public void removeCache(ByteString requestBody) {
+        ByteString key = keyOf(requestBody);
+        unpersist(key);
+        CacheEntry entry;
+        synchronized (this) {
+            entry = entries.remove(key);
+            if (entry == null) {
+                return;
+            }
+            entry.markRemoved();
+        }
+        notifyRemoved(Collections.singletonList(entry));
+        recordInvalidations(1);
+        onRemoveCache();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * 设置最多缓存多少个不同请求体的响应,默认1
+     * @param maxEntries
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries >= 1,but: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * 设置是否把缓存写入CacheManager的{@link DiskCache},默认false.
+     * 内存上限移除的条目仍然保留在磁盘上,过期和主动移除的条目同时从磁盘删除
+     * @param persistent
+     */
+    public void setPersistent(boolean persistent) {
+        this.persistent = persistent;
     }
 
     public void setValidator(PacketValidator validator) {
         this.validator = validator;
     }
 
-    void setPacket(Packet packet) {
-        this.packet = packet;
+    /**
+     * 获取缓存条目,不改变使用顺序也不检查是否过期
+     * @param requestBody
+     * @return
+     */
+    synchronized CacheEntry peekEntry(ByteString requestBody) {
+        ByteString key = keyOf(requestBody);
+        for (Map.Entry<ByteString,CacheEntry> entry : entries.entrySet()) {
+            if (entry.getKey().equals(key)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 被CacheManager按内存上限移除
+     * @param entry
+     */
+    void evict(CacheEntry entry) {
+        synchronized (this) {
+            //条目可能已经被更新或移除,按标记判断,不用遍历entries
+            if (entry.isRemoved()) {
+                return;
+            }
+            entries.remove(entry.getRequestBody());
+            entry.markRemoved();
+        }
+        logger.debug("evict cache packet: " + entry.getPacket());
+        onRemoveCache();
+    }
+
+    void setCacheManager(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * @param key 为null时删除所有
+     */
+    private void unpersist(ByteString key) {
+        CacheManager cacheManager = this.cacheManager;
+        if (cacheManager != null && persistent) {
+            cacheManager.unpersist(this, key);
+        }
+    }
+
+    private void recordInvalidations(int count) {
+        CacheManager cacheManager = this.cacheManager;
+        if (cacheManager != null && count > 0) {
+            cacheManager.getCounters(command).invalidations.add(count);
+        }
+    }
+
+    private void notifyRemoved(List<CacheEntry> removed) {
+        CacheManager cacheManager = this.cacheManager;
+        if (cacheManager != null) {
+            cacheManager.onEntriesRemoved(removed);
+        }
+    }
+
+    private static ByteString keyOf(ByteString requestBody) {
+        return requestBody == null ? ByteString.EMPTY : requestBody;
     }
 }
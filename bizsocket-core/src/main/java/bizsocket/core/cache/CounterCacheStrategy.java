@@ -1,15 +1,13 @@
 package bizsocket.core.cache;
 
 import bizsocket.core.PacketValidator;
-import bizsocket.tcp.Packet;
 
 /**
- * 按使用的次数移除缓存
+ * 按使用的次数移除缓存,每个请求体的缓存单独计数
  * Created by tong on 16/10/21.
  */
 public class CounterCacheStrategy extends CacheStrategy {
     private int expiresCount;
-    private int count;
 
     public CounterCacheStrategy(int command, int expiresCount) {
         this(command,expiresCount, null);
@@ -24,26 +22,26 @@ public class CounterCacheStrategy extends CacheStrategy {
     }
 
     @Override
-    public void onHit() {
-        super.onHit();
-        count ++;
-        if (count >= expiresCount) {
-            removeCache();
-        }
-        logger.debug("expiresCount: " + expiresCount + " current: " + count);
+    public void onHit(CacheEntry entry) {
+        super.onHit(entry);
+        logger.debug("expiresCount: " + expiresCount + " current: " + entry.getHitCount());
     }
 
     @Override
-    public void onUpdateCache(Packet networkPacket) {
-        count = 0;
-        logger.debug("reset count expiresCount: " + expiresCount + " current: " + count);
+    protected boolean isExpired(CacheEntry entry) {
+        return entry.getHitCount() >= expiresCount;
     }
 
     public int getExpiresCount() {
         return expiresCount;
     }
 
+    /**
+     * 获取空请求体对应的缓存被命中的次数
+     * @return
+     */
     public int getCount() {
-        return count;
+        CacheEntry entry = peekEntry(null);
+        return entry != null ? entry.getHitCount() : 0;
     }
 }
@@ -0,0 +1,502 @@
+package bizsocket.core.cache;
+
+import bizsocket.logger.Logger;
+import bizsocket.logger.LoggerFactory;
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.PacketFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * 缓存的磁盘层,持久化策略的缓存包追加写入一个内存映射文件,重启后可以在连接建立前直接使用.
+ * 第一次访问时只扫描记录头建立索引,缓存包在被请求时才通过{@link PacketFactory}解析.
+ * 覆盖和删除都追加新记录,文件写满时如果无效记录不少于有效记录就压缩文件,否则扩大文件
+ *
+ * 文件格式: magic(int) 记录...
+ * 记录格式: length(int) crc32(int) type(byte) command(int) updateMillis(long) bodyLength(int) body packet
+ */
+public class DiskCache {
+    public static final long DEFAULT_MAX_FILE_BYTES = 16 * 1024 * 1024;
+
+    private static final int INITIAL_FILE_BYTES = 64 * 1024;
+    private static final int MAGIC = 0x42534331;
+    private static final int FILE_HEADER_BYTES = 4;
+    //length + crc32
+    private static final int RECORD_HEADER_BYTES = 8;
+    //type + command + updateMillis + bodyLength
+    private static final int RECORD_META_BYTES = 17;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final byte TYPE_REMOVE_ALL = 3;
+
+    private final Logger logger = LoggerFactory.getLogger(DiskCache.class.getSimpleName());
+    private final File file;
+    private final PacketFactory packetFactory;
+    private final long maxFileBytes;
+    //command -> 请求体 -> 最后一次写入的记录
+    private final Map<Integer,Map<ByteString,Record>> index = new HashMap<Integer,Map<ByteString,Record>>();
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    //有效记录占用的字节数,其余的是可以被压缩掉的
+    private long liveBytes;
+    private boolean failed;
+
+    public DiskCache(File file, PacketFactory packetFactory) {
+        this(file, packetFactory, DEFAULT_MAX_FILE_BYTES);
+    }
+
+    /**
+     * @param file
+     * @param packetFactory 解析缓存包
+     * @param maxFileBytes 文件的上限,压缩后仍然写不下时放弃写入
+     */
+    public DiskCache(File file, PacketFactory packetFactory, long maxFileBytes) {
+        if (file == null) {
+            throw new IllegalArgumentException("file can not be null");
+        }
+        if (packetFactory == null) {
+            throw new IllegalArgumentException("packetFactory can not be null");
+        }
+        if (maxFileBytes < INITIAL_FILE_BYTES || maxFileBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maxFileBytes must be in [" + INITIAL_FILE_BYTES + ", " + Integer.MAX_VALUE + "],but: " + maxFileBytes);
+        }
+        this.file = file;
+        this.packetFactory = packetFactory;
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * 写入缓存包
+     * @param command
+     * @param requestBody
+     * @param updateMillis
+     * @param packet
+     */
+    public synchronized void put(int command, ByteString requestBody, long updateMillis, Packet packet) {
+        if (!ensureOpen()) {
+            return;
+        }
+        byte[] packetBytes = packet.toBytes();
+        Record record = append(TYPE_PUT, command, updateMillis, requestBody, packetBytes);
+        if (record == null) {
+            logger.warn("disk cache is full, ignore packet: " + packet);
+            //旧的记录已经不是最新的
+            remove(command, requestBody);
+            return;
+        }
+        apply(record, TYPE_PUT, command, requestBody);
+    }
+
+    /**
+     * 读取缓存包
+     * @param command
+     * @param requestBody
+     * @return 没有缓存或者解析失败时返回null
+     */
+    public synchronized CacheEntry get(int command, ByteString requestBody) {
+        if (!ensureOpen()) {
+            return null;
+        }
+        Map<ByteString,Record> commandRecords = index.get(command);
+        Record record = commandRecords != null ? commandRecords.get(requestBody) : null;
+        if (record == null) {
+            return null;
+        }
+        int packetOffset = record.position + RECORD_HEADER_BYTES + RECORD_META_BYTES + requestBody.size();
+        int packetLength = record.position + record.size() - packetOffset;
+        Packet packet = null;
+        try {
+            packet = packetFactory.getRemotePacket(new Buffer().write(read(packetOffset, packetLength)));
+        } catch (IOException e) {
+            logger.error("decode disk cache failed: " + e);
+        }
+        if (packet == null) {
+            remove(command, requestBody);
+            return null;
+        }
+        //被缓存的包不可复用
+        packet.setFlags(packet.getFlags() & ~Packet.FLAG_RECYCLABLE);
+        return new CacheEntry(requestBody, packet, record.updateMillis);
+    }
+
+    /**
+     * 删除请求体对应的缓存包
+     * @param command
+     * @param requestBody
+     */
+    public synchronized void remove(int command, ByteString requestBody) {
+        if (!ensureOpen()) {
+            return;
+        }
+        Map<ByteString,Record> commandRecords = index.get(command);
+        if (commandRecords == null || !commandRecords.containsKey(requestBody)) {
+            return;
+        }
+        Record record = append(TYPE_REMOVE, command, 0, requestBody, null);
+        if (record == null) {
+            //写不下删除记录,只能清空文件
+            clear();
+            return;
+        }
+        apply(record, TYPE_REMOVE, command, requestBody);
+    }
+
+    /**
+     * 删除命令的所有缓存包
+     * @param command
+     */
+    public synchronized void removeAll(int command) {
+        if (!ensureOpen() || !index.containsKey(command)) {
+            return;
+        }
+        Record record = append(TYPE_REMOVE_ALL, command, 0, ByteString.EMPTY, null);
+        if (record == null) {
+            clear();
+            return;
+        }
+        apply(record, TYPE_REMOVE_ALL, command, ByteString.EMPTY);
+    }
+
+    /**
+     * 删除所有缓存包
+     */
+    public synchronized void clear() {
+        closeFile();
+        index.clear();
+        liveBytes = 0;
+        if (file.exists() && !file.delete()) {
+            logger.error("can not delete " + file);
+            failed = true;
+        }
+    }
+
+    /**
+     * 只保留有效记录重写文件
+     */
+    public synchronized void compact() {
+        if (!ensureOpen()) {
+            return;
+        }
+        try {
+            compact(buffer.capacity());
+        } catch (IOException e) {
+            logger.error("compact disk cache failed: " + e);
+        }
+    }
+
+    /**
+     * 文件中已经写入的字节数
+     * @return
+     */
+    public synchronized long getFileBytes() {
+        return ensureOpen() ? writePosition : 0;
+    }
+
+    /**
+     * 有效记录占用的字节数
+     * @return
+     */
+    public synchronized long getLiveBytes() {
+        return ensureOpen() ? liveBytes : 0;
+    }
+
+    public synchronized int getEntryCount() {
+        if (!ensureOpen()) {
+            return 0;
+        }
+        int count = 0;
+        for (Map<ByteString,Record> commandRecords : index.values()) {
+            count += commandRecords.size();
+        }
+        return count;
+    }
+
+    /**
+     * 把修改写回磁盘并关闭文件,再次访问时重新加载
+     */
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+        }
+        closeFile();
+        index.clear();
+        liveBytes = 0;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private boolean ensureOpen() {
+        if (buffer != null) {
+            return true;
+        }
+        if (failed) {
+            return false;
+        }
+        try {
+            open();
+            return true;
+        } catch (IOException e) {
+            logger.error("open disk cache failed: " + e);
+            closeFile();
+            index.clear();
+            liveBytes = 0;
+            failed = true;
+            return false;
+        }
+    }
+
+    private void open() throws IOException {
+        index.clear();
+        liveBytes = 0;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        long size = randomAccessFile.length();
+        if (size > Integer.MAX_VALUE || (size >= FILE_HEADER_BYTES && randomAccessFile.readInt() != MAGIC)) {
+            logger.warn("unknown disk cache file, reset: " + file);
+            randomAccessFile.setLength(0);
+            size = 0;
+        }
+        map(Math.max(size, INITIAL_FILE_BYTES));
+        if (size < FILE_HEADER_BYTES) {
+            buffer.putInt(0, MAGIC);
+            writePosition = FILE_HEADER_BYTES;
+        } else {
+            load();
+        }
+    }
+
+    private void map(long capacity) throws IOException {
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    //扫描记录头建立索引,遇到没有写完的记录时停止
+    private void load() {
+        int position = FILE_HEADER_BYTES;
+        while (position + RECORD_HEADER_BYTES + RECORD_META_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_META_BYTES || length > buffer.capacity() - position - RECORD_HEADER_BYTES) {
+                break;
+            }
+            byte[] content = read(position + RECORD_HEADER_BYTES, length);
+            if (buffer.getInt(position + 4) != crc32(content)) {
+                break;
+            }
+            ByteBuffer meta = ByteBuffer.wrap(content);
+            byte type = meta.get();
+            int command = meta.getInt();
+            long updateMillis = meta.getLong();
+            int bodyLength = meta.getInt();
+            if (bodyLength < 0 || bodyLength > length - RECORD_META_BYTES) {
+                break;
+            }
+            ByteString requestBody = ByteString.of(content, RECORD_META_BYTES, bodyLength);
+            apply(new Record(position, length, updateMillis), type, command, requestBody);
+            position += RECORD_HEADER_BYTES + length;
+        }
+        writePosition = position;
+        logger.debug("load disk cache: " + file + " records: " + getEntryCount());
+    }
+
+    private void apply(Record record, byte type, int command, ByteString requestBody) {
+        Map<ByteString,Record> commandRecords = index.get(command);
+        switch (type) {
+            case TYPE_PUT:
+                if (commandRecords == null) {
+                    commandRecords = new HashMap<ByteString,Record>();
+                    index.put(command, commandRecords);
+                }
+                Record previous = commandRecords.put(requestBody, record);
+                if (previous != null) {
+                    liveBytes -= previous.size();
+                }
+                liveBytes += record.size();
+                break;
+            case TYPE_REMOVE:
+                if (commandRecords != null) {
+                    Record removed = commandRecords.remove(requestBody);
+                    if (removed != null) {
+                        liveBytes -= removed.size();
+                    }
+                    if (commandRecords.isEmpty()) {
+                        index.remove(command);
+                    }
+                }
+                break;
+            case TYPE_REMOVE_ALL:
+                if (commandRecords != null) {
+                    for (Record removed : commandRecords.values()) {
+                        liveBytes -= removed.size();
+                    }
+                    index.remove(command);
+                }
+                break;
+        }
+    }
+
+    /**
+     * 在文件末尾追加记录,先写内容再写长度,长度不为0的记录才会被加载
+     * @return 文件写不下时返回null
+     */
+    private Record append(byte type, int command, long updateMillis, ByteString requestBody, byte[] packetBytes) {
+        Buffer content = new Buffer();
+        content.writeByte(type);
+        content.writeInt(command);
+        content.writeLong(updateMillis);
+        content.writeInt(requestBody.size());
+        content.write(requestBody);
+        if (packetBytes != null) {
+            content.write(packetBytes);
+        }
+        byte[] bytes = content.readByteArray();
+        if (!ensureCapacity(RECORD_HEADER_BYTES + bytes.length)) {
+            return null;
+        }
+        int position = writePosition;
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + RECORD_HEADER_BYTES);
+        target.put(bytes);
+        //后面可能是上次没有写完的记录
+        if (position + RECORD_HEADER_BYTES + bytes.length + 4 <= buffer.capacity()) {
+            buffer.putInt(position + RECORD_HEADER_BYTES + bytes.length, 0);
+        }
+        buffer.putInt(position + 4, crc32(bytes));
+        buffer.putInt(position, bytes.length);
+        writePosition += RECORD_HEADER_BYTES + bytes.length;
+        return new Record(position, bytes.length, updateMillis);
+    }
+
+    private boolean ensureCapacity(int size) {
+        long required = (long) writePosition + size;
+        if (required <= buffer.capacity()) {
+            return true;
+        }
+        long garbage = writePosition - FILE_HEADER_BYTES - liveBytes;
+        try {
+            if (garbage > 0 && (garbage >= liveBytes || required > maxFileBytes)) {
+                compact(buffer.capacity());
+                required = (long) writePosition + size;
+                if (required <= buffer.capacity()) {
+                    return true;
+                }
+            }
+            if (required > maxFileBytes) {
+                return false;
+            }
+            long capacity = buffer.capacity();
+            while (capacity < required) {
+                capacity *= 2;
+            }
+            map(Math.min(capacity, maxFileBytes));
+            return true;
+        } catch (IOException e) {
+            logger.error("grow disk cache failed: " + e);
+            return false;
+        }
+    }
+
+    //把有效记录按原来的顺序复制到临时文件,再替换原文件
+    private void compact(long capacity) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        for (Map<ByteString,Record> commandRecords : index.values()) {
+            records.addAll(commandRecords.values());
+        }
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record lhs, Record rhs) {
+                return lhs.position < rhs.position ? -1 : (lhs.position == rhs.position ? 0 : 1);
+            }
+        });
+
+        int fileBytes = writePosition;
+        File tmpFile = new File(file.getPath() + ".tmp");
+        int[] positions = new int[records.size()];
+        int position = FILE_HEADER_BYTES;
+        RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+        try {
+            tmp.setLength(0);
+            MappedByteBuffer target = tmp.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            target.putInt(0, MAGIC);
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                target.position(position);
+                target.put(read(record.position, record.size()));
+                positions[i] = position;
+                position += record.size();
+            }
+            target.force();
+        } finally {
+            tmp.close();
+        }
+
+        closeFile();
+        if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+            throw new IOException("can not rename " + tmpFile + " to " + file);
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        map(capacity);
+        for (int i = 0; i < records.size(); i++) {
+            records.get(i).position = positions[i];
+        }
+        logger.debug("compact disk cache: " + fileBytes + " -> " + position);
+        writePosition = position;
+    }
+
+    private byte[] read(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.get(bytes);
+        return bytes;
+    }
+
+    private void closeFile() {
+        buffer = null;
+        writePosition = 0;
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            randomAccessFile = null;
+        }
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+        return (int) crc32.getValue();
+    }
+
+    private static class Record {
+        int position;
+        final int length;
+        final long updateMillis;
+
+        Record(int position, int length, long updateMillis) {
+            this.position = position;
+            this.length = length;
+            this.updateMillis = updateMillis;
+        }
+
+        int size() {
+            return RECORD_HEADER_BYTES + length;
+        }
+    }
+}
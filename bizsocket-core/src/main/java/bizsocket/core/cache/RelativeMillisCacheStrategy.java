@@ -1,16 +1,14 @@
 package bizsocket.core.cache;
 
 import bizsocket.core.PacketValidator;
-import bizsocket.tcp.Packet;
 import java.util.concurrent.TimeUnit;
 
 /**
- * 按相对时间移除缓存
+ * 按相对时间移除缓存,每个请求体的缓存从各自写入时开始计时
  * Created by tong on 16/10/21.
  */
 public class RelativeMillisCacheStrategy extends CacheStrategy {
     private long dMillis;
-    private long expiredMillis;
 
     public RelativeMillisCacheStrategy(int command, TimeUnit unit, long duration) {
         this(command,unit,duration,null);
@@ -19,19 +17,10 @@ public class RelativeMillisCacheStrategy extends CacheStrategy {
     public RelativeMillisCacheStrategy(int command, TimeUnit unit, long duration,PacketValidator validator) {
         super(command, validator);
         dMillis = unit.toMillis(duration);
-        expiredMillis = System.currentTimeMillis() + dMillis;
     }
 
     @Override
-    public Packet getValidCache() {
-        if (System.currentTimeMillis() > expiredMillis) {
-            removeCache();
-        }
-        return super.getValidCache();
-    }
-
-    @Override
-    public void onUpdateCache(Packet networkPacket) {
-        expiredMillis = System.currentTimeMillis() + dMillis;
+    protected boolean isExpired(CacheEntry entry) {
+        return System.currentTimeMillis() > entry.getUpdateMillis() + dMillis;
     }
 }
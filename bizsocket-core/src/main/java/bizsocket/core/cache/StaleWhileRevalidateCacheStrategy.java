@@ -0,0 +1,117 @@
+package bizsocket.core.cache;
+
+import bizsocket.core.PacketValidator;
+import bizsocket.core.RequestContext;
+import bizsocket.core.ResponseHandler;
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.Request;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+
+/**
+ * 缓存过了新鲜期后仍然立即返回,同时在后台发送一次请求刷新缓存.
+ * 同一个请求体同时只有一个刷新请求,刷新的响应到达后更新缓存
+ */
+public class StaleWhileRevalidateCacheStrategy extends CacheStrategy {
+    private final long freshMillis;
+    private final long maxStaleMillis;
+    //请求体 -> 刷新请求的tag
+    private final ConcurrentMap<ByteString,Object> refreshingMap = new ConcurrentHashMap<ByteString,Object>();
+    private final Set<Object> refreshTags = Collections.newSetFromMap(new ConcurrentHashMap<Object,Boolean>());
+
+    /**
+     * 过期的缓存一直可以使用
+     */
+    public StaleWhileRevalidateCacheStrategy(int command, TimeUnit unit, long freshDuration) {
+        this(command, unit, freshDuration, -1, null);
+    }
+
+    /**
+     * @param command
+     * @param unit
+     * @param freshDuration 新鲜期,期间直接使用缓存
+     * @param maxStaleDuration 新鲜期之后还可以使用的时间,小于0时一直可以使用
+     * @param validator
+     */
+    public StaleWhileRevalidateCacheStrategy(int command, TimeUnit unit, long freshDuration, long maxStaleDuration, PacketValidator validator) {
+        super(command, validator);
+        if (freshDuration < 0) {
+            throw new IllegalArgumentException("freshDuration >= 0,but: " + freshDuration);
+        }
+        this.freshMillis = unit.toMillis(freshDuration);
+        this.maxStaleMillis = maxStaleDuration < 0 ? -1 : unit.toMillis(maxStaleDuration);
+    }
+
+    /**
+     * 是否过了新鲜期
+     * @param entry
+     * @return
+     */
+    public boolean isStale(CacheEntry entry) {
+        return System.currentTimeMillis() - entry.getUpdateMillis() > freshMillis;
+    }
+
+    @Override
+    protected boolean isExpired(CacheEntry entry) {
+        return maxStaleMillis >= 0
+                && System.currentTimeMillis() - entry.getUpdateMillis() > freshMillis + maxStaleMillis;
+    }
+
+    @Override
+    public boolean shouldUseCache(RequestContext context) {
+        //刷新请求必须发送出去
+        return context.getTag() == null || !refreshTags.contains(context.getTag());
+    }
+
+    @Override
+    public void onServeCache(CacheManager cacheManager, RequestContext context, CacheEntry entry) {
+        super.onServeCache(cacheManager, context, entry);
+        if (!isStale(entry)) {
+            return;
+        }
+        final ByteString requestBody = entry.getRequestBody();
+        final Object tag = new Object();
+        if (refreshingMap.putIfAbsent(requestBody, tag) != null) {
+            //已经在刷新
+            return;
+        }
+        refreshTags.add(tag);
+        logger.debug("refresh stale cache: " + entry.getPacket());
+        Request request = new Request.Builder(context.getRequest()).tag(tag).build();
+        try {
+            cacheManager.getBizSocket().request(request, new ResponseHandler() {
+                @Override
+                public void sendSuccessMessage(int command, ByteString body, Packet responsePacket) {
+                    //CacheManager已经在拦截响应时更新了缓存
+                    finishRefresh(requestBody, tag);
+                }
+
+                @Override
+                public void sendFailureMessage(int command, Throwable error) {
+                    finishRefresh(requestBody, tag);
+                }
+            });
+        } catch (RuntimeException e) {
+            finishRefresh(requestBody, tag);
+            throw e;
+        }
+    }
+
+    /**
+     * 是否有这个请求体的刷新请求没有返回
+     * @param requestBody
+     * @return
+     */
+    public boolean isRefreshing(ByteString requestBody) {
+        return refreshingMap.containsKey(requestBody == null ? ByteString.EMPTY : requestBody);
+    }
+
+    private void finishRefresh(ByteString requestBody, Object tag) {
+        refreshingMap.remove(requestBody, tag);
+        refreshTags.remove(tag);
+    }
+}
@@ -0,0 +1,41 @@
+package bizsocket.core.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按线程分散到多个槽的计数器,多个线程同时累加时不会争用同一个缓存行.
+ * 读取时把所有槽相加,不保证和并发的累加同步
+ */
+final class StripedCounter {
+    private static final int STRIPES;
+    //每个槽独占一个缓存行
+    private static final int PADDING = 8;
+
+    static {
+        int stripes = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (stripes < processors && stripes < 16) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void add(long x) {
+        int index = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        cells.getAndAdd(index * PADDING, x);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
@@ -1,15 +1,13 @@
 package bizsocket.core.cache;
 
-import bizsocket.core.Interceptor;
 import bizsocket.core.PacketValidator;
-import bizsocket.core.RequestContext;
 import bizsocket.tcp.Packet;
 
 /**
  * 接收指定的的命令后移除缓存
  * Created by tong on 16/10/21.
  */
-public class UseUtilReceiveCmdCacheStrategy extends CacheStrategy implements Interceptor {
+public class UseUtilReceiveCmdCacheStrategy extends CacheStrategy {
 
     private int[] conflictCommands;
     private PacketValidator triggerPacketValidator;
@@ -30,18 +28,15 @@ public class UseUtilReceiveCmdCacheStrategy extends CacheStrategy implements Int
         this.triggerPacketValidator = receivePacketValidator;
     }
 
-    @Override
-    public void onMount(CacheManager cacheManager) {
-        super.onMount(cacheManager);
-
-        cacheManager.getBizSocket().getInterceptorChain().addInterceptor(this);
+    public int[] getConflictCommands() {
+        return conflictCommands.clone();
     }
 
     @Override
-    public void onUnmount(CacheManager cacheManager) {
-        super.onUnmount(cacheManager);
+    public void onMount(CacheManager cacheManager) {
+        super.onMount(cacheManager);
 
-        cacheManager.getBizSocket().getInterceptorChain().removeInterceptor(this);
+        cacheManager.addResponseTrigger(conflictCommands, this);
     }
 
     public void processTriggerPacket(Packet packet) {
@@ -53,31 +48,25 @@ public class UseUtilReceiveCmdCacheStrategy extends CacheStrategy implements Int
 
         for (int cmd : conflictCommands) {
             if (cmd == command) {
-                if (triggerPacketValidator == null) {
-                    removeCache();
-                }
-                else {
-                    if (triggerPacketValidator.verify(packet)) {
-                        logger.debug("prepare remove cache, receive packet verify success: " + packet);
-                        removeCache();
-                    }
-                    else {
-                        logger.debug("ignore remove event receive packet verify fail: " + packet);
-                    }
-                }
+                onTrigger(packet);
                 break;
             }
         }
     }
 
     @Override
-    public boolean postRequestHandle(RequestContext context) throws Exception {
-        return false;
-    }
-
-    @Override
-    public boolean postResponseHandle(int command, Packet responsePacket) throws Exception {
-        processTriggerPacket(responsePacket);
-        return false;
+    public void onTrigger(Packet triggerPacket) {
+        if (triggerPacketValidator == null) {
+            removeCache();
+        }
+        else {
+            if (triggerPacketValidator.verify(triggerPacket)) {
+                logger.debug("prepare remove cache, receive packet verify success: " + triggerPacket);
+                removeCache();
+            }
+            else {
+                logger.debug("ignore remove event receive packet verify fail: " + triggerPacket);
+            }
+        }
     }
 }
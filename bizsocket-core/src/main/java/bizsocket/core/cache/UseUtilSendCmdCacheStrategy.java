@@ -1,8 +1,6 @@
 package bizsocket.core.cache;
 
 import bizsocket.core.PacketValidator;
-import bizsocket.core.RequestContext;
-import bizsocket.tcp.Packet;
 
 /**
  * 发送指定的的命令后移除缓存
@@ -18,13 +16,8 @@ public class UseUtilSendCmdCacheStrategy extends UseUtilReceiveCmdCacheStrategy
     }
 
     @Override
-    public boolean postRequestHandle(RequestContext context) throws Exception {
-        processTriggerPacket(context.getRequestPacket());
-        return false;
-    }
-
-    @Override
-    public boolean postResponseHandle(int command, Packet responsePacket) throws Exception {
-        return false;
+    public void onMount(CacheManager cacheManager) {
+        //不调用父类,只在发送时触发
+        cacheManager.addRequestTrigger(getConflictCommands(), this);
     }
 }
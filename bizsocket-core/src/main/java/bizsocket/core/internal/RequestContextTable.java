@@ -0,0 +1,220 @@
+package bizsocket.core.internal;
+
+import bizsocket.core.RequestContext;
+import bizsocket.tcp.Packet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按入队顺序保存等待响应的请求,并按命令号和请求包id建立索引.
+ * 添加、删除和匹配响应都是O(1),只有{@link #snapshot()}会遍历整个队列.
+ * 请求进入和离开时分别回调{@link RequestContext#onAddToQueue()}和{@link RequestContext#onRemoveFromQueue()}
+ */
+public class RequestContextTable {
+    private static final List<RequestContext> EMPTY = Collections.emptyList();
+
+    private final Map<RequestContext,Node> nodes = new IdentityHashMap<RequestContext,Node>();
+    //命令号 -> 请求包id -> 节点
+    private final Map<Integer,Map<String,List<Node>>> index = new HashMap<Integer,Map<String,List<Node>>>();
+    private Node head;
+    private Node tail;
+
+    public synchronized boolean contains(RequestContext context) {
+        return nodes.containsKey(context);
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    public synchronized boolean containsCommand(int command) {
+        return index.containsKey(command);
+    }
+
+    /**
+     * 添加到队尾
+     *
+     * @return 已经在队列中时返回false
+     */
+    public boolean add(RequestContext context) {
+        return add(context, false);
+    }
+
+    /**
+     * 添加到队头
+     *
+     * @return 已经在队列中时返回false
+     */
+    public boolean addFirst(RequestContext context) {
+        return add(context, true);
+    }
+
+    private boolean add(RequestContext context, boolean first) {
+        if (context == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (nodes.containsKey(context)) {
+                return false;
+            }
+            Node node = new Node(context, context.getRequestCommand(), getPacketId(context));
+            nodes.put(context, node);
+            link(node, first);
+            Map<String,List<Node>> byId = index.get(node.command);
+            if (byId == null) {
+                byId = new HashMap<String,List<Node>>();
+                index.put(node.command, byId);
+            }
+            List<Node> list = byId.get(node.packetId);
+            if (list == null) {
+                list = new ArrayList<Node>(1);
+                byId.put(node.packetId, list);
+            }
+            list.add(node);
+        }
+        context.onAddToQueue();
+        return true;
+    }
+
+    /**
+     * @return 不在队列中时返回false
+     */
+    public boolean remove(RequestContext context) {
+        if (context == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (!unlink(context)) {
+                return false;
+            }
+        }
+        context.onRemoveFromQueue();
+        return true;
+    }
+
+    public void removeAll(Collection<RequestContext> contexts) {
+        for (RequestContext context : contexts) {
+            remove(context);
+        }
+    }
+
+    /**
+     * 清空队列
+     *
+     * @return 按入队顺序返回被移除的请求
+     */
+    public List<RequestContext> clear() {
+        List<RequestContext> removed;
+        synchronized (this) {
+            removed = snapshotLocked();
+            nodes.clear();
+            index.clear();
+            head = tail = null;
+        }
+        for (RequestContext context : removed) {
+            context.onRemoveFromQueue();
+        }
+        return removed;
+    }
+
+    /**
+     * 获取等待这个命令号和包id响应的请求
+     */
+    public synchronized List<RequestContext> get(int command, String packetId) {
+        Map<String,List<Node>> byId = index.get(command);
+        if (byId == null) {
+            return EMPTY;
+        }
+        List<Node> list = byId.get(packetId);
+        if (list == null) {
+            return EMPTY;
+        }
+        List<RequestContext> result = new ArrayList<RequestContext>(list.size());
+        for (Node node : list) {
+            result.add(node.context);
+        }
+        return result;
+    }
+
+    /**
+     * 按入队顺序获取所有请求
+     */
+    public synchronized List<RequestContext> snapshot() {
+        return snapshotLocked();
+    }
+
+    private List<RequestContext> snapshotLocked() {
+        List<RequestContext> result = new ArrayList<RequestContext>(nodes.size());
+        for (Node node = head; node != null; node = node.next) {
+            result.add(node.context);
+        }
+        return result;
+    }
+
+    private void link(Node node, boolean first) {
+        if (head == null) {
+            head = tail = node;
+        } else if (first) {
+            node.next = head;
+            head.prev = node;
+            head = node;
+        } else {
+            node.prev = tail;
+            tail.next = node;
+            tail = node;
+        }
+    }
+
+    private boolean unlink(RequestContext context) {
+        Node node = nodes.remove(context);
+        if (node == null) {
+            return false;
+        }
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            head = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        } else {
+            tail = node.prev;
+        }
+
+        Map<String,List<Node>> byId = index.get(node.command);
+        List<Node> list = byId.get(node.packetId);
+        list.remove(node);
+        if (list.isEmpty()) {
+            byId.remove(node.packetId);
+            if (byId.isEmpty()) {
+                index.remove(node.command);
+            }
+        }
+        return true;
+    }
+
+    private static String getPacketId(RequestContext context) {
+        Packet packet = context.getRequestPacket();
+        return packet == null ? null : packet.getPacketID();
+    }
+
+    private static class Node {
+        final RequestContext context;
+        //入队时记录,在队列中时索引不能变化
+        final int command;
+        final String packetId;
+        Node prev;
+        Node next;
+
+        Node(RequestContext context, int command, String packetId) {
+            this.context = context;
+            this.command = command;
+            this.packetId = packetId;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package bizsocket.core.internal;
+
+import bizsocket.core.AbstractSerialContext;
+import bizsocket.core.SerialSignal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按{@link AbstractSerialContext#shouldProcess}认领包的方式为串行上下文建立索引:
+ * 串行信号的强引用、弱引用命令号和入口请求的包id,fan-out子请求等待响应时的包id也会加入索引.
+ * 一个包只会按添加顺序经过它的命令号或包id对应的上下文
+ */
+public class SerialContextTable {
+    private static final List<AbstractSerialContext> EMPTY = Collections.emptyList();
+
+    private final Map<AbstractSerialContext,Entry> entries = new IdentityHashMap<AbstractSerialContext,Entry>();
+    private final Map<Integer,List<Entry>> commandIndex = new HashMap<Integer,List<Entry>>();
+    private final Map<String,List<Entry>> packetIdIndex = new HashMap<String,List<Entry>>();
+    private long sequence;
+
+    public synchronized boolean add(AbstractSerialContext serialContext) {
+        if (entries.containsKey(serialContext)) {
+            return false;
+        }
+        Entry entry = new Entry(serialContext, sequence++, serialContext.getRequestPacketId());
+        entries.put(serialContext, entry);
+        for (int command : entry.commands) {
+            put(commandIndex, command, entry);
+        }
+        if (entry.packetId != null) {
+            put(packetIdIndex, entry.packetId, entry);
+        }
+        return true;
+    }
+
+    public synchronized boolean remove(AbstractSerialContext serialContext) {
+        Entry entry = entries.remove(serialContext);
+        if (entry == null) {
+            return false;
+        }
+        for (int command : entry.commands) {
+            delete(commandIndex, command, entry);
+        }
+        if (entry.packetId != null) {
+            delete(packetIdIndex, entry.packetId, entry);
+        }
+        if (entry.childPacketIds != null) {
+            for (String packetId : entry.childPacketIds) {
+                delete(packetIdIndex, packetId, entry);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 为上下文发出的子请求的包id建立索引
+     */
+    public synchronized void addPacketId(AbstractSerialContext serialContext, String packetId) {
+        Entry entry = entries.get(serialContext);
+        if (entry == null || packetId == null) {
+            return;
+        }
+        if (entry.childPacketIds == null) {
+            entry.childPacketIds = new ArrayList<String>();
+        }
+        entry.childPacketIds.add(packetId);
+        put(packetIdIndex, packetId, entry);
+    }
+
+    public synchronized void removePacketId(AbstractSerialContext serialContext, String packetId) {
+        Entry entry = entries.get(serialContext);
+        if (entry == null || entry.childPacketIds == null || !entry.childPacketIds.remove(packetId)) {
+            return;
+        }
+        delete(packetIdIndex, packetId, entry);
+    }
+
+    public synchronized void removeAll(List<AbstractSerialContext> serialContexts) {
+        for (AbstractSerialContext serialContext : serialContexts) {
+            remove(serialContext);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 获取可能认领这个命令号或包id的上下文,先添加的在前
+     */
+    public synchronized List<AbstractSerialContext> getCandidates(int command, String packetId) {
+        List<Entry> byCommand = commandIndex.get(command);
+        List<Entry> byPacketId = packetId != null ? packetIdIndex.get(packetId) : null;
+        if (byCommand == null && byPacketId == null) {
+            return EMPTY;
+        }
+        //两个列表都按添加顺序排列,合并
+        List<AbstractSerialContext> result = new ArrayList<AbstractSerialContext>();
+        int i = 0;
+        int j = 0;
+        int commandSize = byCommand != null ? byCommand.size() : 0;
+        int packetIdSize = byPacketId != null ? byPacketId.size() : 0;
+        while (i < commandSize || j < packetIdSize) {
+            Entry next;
+            if (j >= packetIdSize || (i < commandSize && byCommand.get(i).sequence <= byPacketId.get(j).sequence)) {
+                next = byCommand.get(i++);
+            } else {
+                next = byPacketId.get(j++);
+            }
+            if (result.isEmpty() || result.get(result.size() - 1) != next.serialContext) {
+                result.add(next.serialContext);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 获取入口请求是这个包id的上下文
+     */
+    public synchronized AbstractSerialContext getByEntrance(int entranceCommand, String packetId) {
+        List<Entry> byPacketId = packetId != null ? packetIdIndex.get(packetId) : null;
+        if (byPacketId != null) {
+            for (Entry entry : byPacketId) {
+                if (entry.serialContext.getSerialSignal().getEntranceCommand() == entranceCommand) {
+                    return entry.serialContext;
+                }
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<AbstractSerialContext> snapshot() {
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+            }
+        });
+        List<AbstractSerialContext> result = new ArrayList<AbstractSerialContext>(sorted.size());
+        for (Entry entry : sorted) {
+            result.add(entry.serialContext);
+        }
+        return result;
+    }
+
+    private static <K> void put(Map<K,List<Entry>> index, K key, Entry entry) {
+        List<Entry> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<Entry>(1);
+            index.put(key, list);
+        }
+        //子请求的包id可能加到较早的上下文上,保持按添加顺序排列
+        int position = list.size();
+        while (position > 0 && list.get(position - 1).sequence > entry.sequence) {
+            position--;
+        }
+        list.add(position, entry);
+    }
+
+    private static <K> void delete(Map<K,List<Entry>> index, K key, Entry entry) {
+        List<Entry> list = index.get(key);
+        if (list != null) {
+            list.remove(entry);
+            if (list.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static class Entry {
+        final AbstractSerialContext serialContext;
+        final long sequence;
+        final String packetId;
+        final int[] commands;
+        List<String> childPacketIds;
+
+        Entry(AbstractSerialContext serialContext, long sequence, String packetId) {
+            this.serialContext = serialContext;
+            this.sequence = sequence;
+            this.packetId = packetId;
+            this.commands = commandsOf(serialContext.getSerialSignal());
+        }
+
+        private static int[] commandsOf(SerialSignal serialSignal) {
+            List<Integer> commands = new ArrayList<Integer>();
+            addAll(commands, serialSignal.getStrongReferences());
+            addAll(commands, serialSignal.getWeekReferences());
+            int[] result = new int[commands.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = commands.get(i);
+            }
+            return result;
+        }
+
+        private static void addAll(List<Integer> commands, int[] references) {
+            if (references == null) {
+                return;
+            }
+            for (int command : references) {
+                if (!commands.contains(command)) {
+                    commands.add(command);
+                }
+            }
+        }
+    }
+}
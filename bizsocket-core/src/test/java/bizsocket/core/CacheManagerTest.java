@@ -6,9 +6,14 @@ import client.WPBPacketFactory;
 import bizsocket.tcp.Packet;
 import client.WPBSocketClient;
 import common.WPBBizPacketValidator;
+import common.WPBPacket;
 import junit.framework.TestCase;
+import okio.ByteString;
 import org.json.JSONObject;
 import org.junit.Test;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -87,7 +92,7 @@ public class CacheManagerTest extends TestCase {
                 else {
                     assertNull(cacheStrategy.getValidCache());
                 }
-                cacheStrategy.onHit();
+                cacheStrategy.recordHit();
 
                 System.out.println("expiresCount: " + cacheStrategy.getExpiresCount() + " current: " + cacheStrategy.getCount());
             }
@@ -191,4 +196,249 @@ public class CacheManagerTest extends TestCase {
             assertNull(cacheStrategy.getValidCache());
         }
     }
+
+    @Test
+    public void testRequestBodyCache() throws Exception {
+        int command = 1;
+        CacheStrategy cacheStrategy = new CounterCacheStrategy(command, 2);
+        cacheStrategy.setMaxEntries(2);
+        cacheManager.add(cacheStrategy);
+
+        ByteString order17 = ByteString.encodeUtf8("{\"orderId\":17}");
+        ByteString order42 = ByteString.encodeUtf8("{\"orderId\":42}");
+        ByteString order99 = ByteString.encodeUtf8("{\"orderId\":99}");
+        Packet packet17 = new WPBPacketFactory().getRequestPacket(new Request.Builder().command(command).utf8body("{\"type\":1}").build());
+        Packet packet42 = new WPBPacketFactory().getRequestPacket(new Request.Builder().command(command).utf8body("{\"type\":2}").build());
+        Packet packet99 = new WPBPacketFactory().getRequestPacket(new Request.Builder().command(command).utf8body("{\"type\":3}").build());
+
+        cacheStrategy.updateCache(order17, packet17);
+        assertSame(packet17, cacheStrategy.getValidCache(order17));
+        assertNull(cacheStrategy.getValidCache(order42));
+        assertNull(cacheStrategy.getValidCache());
+
+        //the hit count of each entry is separate
+        cacheStrategy.updateCache(order42, packet42);
+        cacheStrategy.hit(order17);
+        cacheStrategy.hit(order17);
+        assertNull(cacheStrategy.getValidCache(order17));
+        assertSame(packet42, cacheStrategy.getValidCache(order42));
+
+        //order42 was used last, order17 is evicted
+        cacheStrategy.updateCache(order17, packet17);
+        cacheStrategy.getValidCache(order42);
+        cacheStrategy.updateCache(order99, packet99);
+        assertEquals(2, cacheStrategy.getEntryCount());
+        assertNull(cacheStrategy.getValidCache(order17));
+        assertSame(packet42, cacheStrategy.getValidCache(order42));
+        assertSame(packet99, cacheStrategy.getValidCache(order99));
+
+        cacheStrategy.removeCache(order42);
+        assertNull(cacheStrategy.getValidCache(order42));
+        cacheStrategy.removeCache();
+        assertEquals(0, cacheStrategy.getEntryCount());
+    }
+
+    @Test
+    public void testRelativeMillisPerEntry() throws Exception {
+        int command = 1;
+        RelativeMillisCacheStrategy cacheStrategy = new RelativeMillisCacheStrategy(command, TimeUnit.MILLISECONDS, 300);
+        cacheStrategy.setMaxEntries(10);
+        cacheManager.add(cacheStrategy);
+
+        ByteString first = ByteString.encodeUtf8("1");
+        ByteString second = ByteString.encodeUtf8("2");
+        Packet packet = new WPBPacketFactory().getRequestPacket(new Request.Builder().command(command).utf8body("{}").build());
+        cacheStrategy.updateCache(first, packet);
+        Thread.sleep(200);
+        cacheStrategy.updateCache(second, packet);
+        Thread.sleep(200);
+        assertNull(cacheStrategy.getValidCache(first));
+        assertNotNull(cacheStrategy.getValidCache(second));
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        //every packet below weighs 22 bytes, 12 of them header
+        cacheManager = new CacheManager(new WPBSocketClient(new Configuration()), 66, PacketWeigher.SERIALIZED_LENGTH);
+        CacheStrategy first = new CacheStrategy(1);
+        CacheStrategy second = new CacheStrategy(2);
+        first.setMaxEntries(10);
+        second.setMaxEntries(10);
+        cacheManager.add(first);
+        cacheManager.add(second);
+
+        ByteString a = ByteString.encodeUtf8("a");
+        ByteString b = ByteString.encodeUtf8("b");
+        first.updateCache(a, new WPBPacketFactory().getRequestPacket(new Request.Builder().command(1).utf8body("{\"p\":\"1a\"}").build()));
+        second.updateCache(a, new WPBPacketFactory().getRequestPacket(new Request.Builder().command(2).utf8body("{\"p\":\"2a\"}").build()));
+        first.updateCache(b, new WPBPacketFactory().getRequestPacket(new Request.Builder().command(1).utf8body("{\"p\":\"1b\"}").build()));
+        assertEquals(66, cacheManager.getCacheBytes());
+        assertEquals(0, cacheManager.getEvictionCount());
+
+        //first/a is used again, second/a is now the coldest entry
+        first.hit(a);
+        second.updateCache(b, new WPBPacketFactory().getRequestPacket(new Request.Builder().command(2).utf8body("{\"p\":\"2b\"}").build()));
+        assertEquals(66, cacheManager.getCacheBytes());
+        assertEquals(1, cacheManager.getEvictionCount());
+        assertNull(second.getValidCache(a));
+        assertNotNull(first.getValidCache(a));
+        assertNotNull(first.getValidCache(b));
+        assertNotNull(second.getValidCache(b));
+
+        //replacing an entry releases the old one
+        first.updateCache(b, new WPBPacketFactory().getRequestPacket(new Request.Builder().command(1).utf8body("{\"p\":\"1c\"}").build()));
+        assertEquals(66, cacheManager.getCacheBytes());
+        assertEquals(1, cacheManager.getEvictionCount());
+
+        first.removeCache();
+        assertEquals(22, cacheManager.getCacheBytes());
+        cacheManager.removeAll();
+        assertEquals(0, cacheManager.getCacheBytes());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        final int command = 1;
+        StaleWhileRevalidateCacheStrategy cacheStrategy = new StaleWhileRevalidateCacheStrategy(command, TimeUnit.MILLISECONDS, 100);
+        cacheManager.add(cacheStrategy);
+        AbstractBizSocket bizSocket = cacheManager.getBizSocket();
+        ByteString body = ByteString.encodeUtf8("{}");
+
+        Packet stalePacket = new WPBPacketFactory().getRequestPacket(new Request.Builder().command(command).utf8body("{\"v\":1}").build());
+        cacheStrategy.updateCache(body, stalePacket);
+        final List<Packet> served = new ArrayList<Packet>();
+        ResponseHandler handler = new ResponseHandler() {
+            @Override
+            public void sendSuccessMessage(int cmd, ByteString requestBody, Packet responsePacket) {
+                served.add(responsePacket);
+            }
+
+            @Override
+            public void sendFailureMessage(int cmd, Throwable error) {
+
+            }
+        };
+
+        //fresh, no refresh
+        bizSocket.request(new Request.Builder().command(command).utf8body("{}").build(), handler);
+        assertEquals(1, served.size());
+        assertFalse(cacheStrategy.isRefreshing(body));
+
+        //stale, served immediately and refreshed only once
+        Thread.sleep(200);
+        bizSocket.request(new Request.Builder().command(command).utf8body("{}").build(), handler);
+        bizSocket.request(new Request.Builder().command(command).utf8body("{}").build(), handler);
+        assertEquals(3, served.size());
+        assertSame(stalePacket, served.get(2));
+        assertTrue(cacheStrategy.isRefreshing(body));
+        Collection<RequestContext> refreshContexts = bizSocket.getRequestQueue().getRequestContext(new RequestQueue.Filter() {
+            @Override
+            public boolean filter(RequestContext context) {
+                return context.getRequestCommand() == command;
+            }
+        });
+        assertEquals(1, refreshContexts.size());
+
+        //the response of the refresh updates the cache
+        WPBPacket refreshRequest = (WPBPacket) refreshContexts.iterator().next().getRequestPacket();
+        WPBPacket freshPacket = new WPBPacket(command, refreshRequest.seq, "{\"v\":2}");
+        bizSocket.getRequestQueue().processPacket(freshPacket);
+        assertFalse(cacheStrategy.isRefreshing(body));
+        assertSame(freshPacket, cacheStrategy.getValidCache(body));
+
+        bizSocket.request(new Request.Builder().command(command).utf8body("{}").build(), handler);
+        assertSame(freshPacket, served.get(served.size() - 1));
+        assertFalse(cacheStrategy.isRefreshing(body));
+    }
+
+    @Test
+    public void testInvalidationIndex() throws Exception {
+        final int[] verifyCount = new int[1];
+        PacketValidator countingValidator = new PacketValidator() {
+            @Override
+            public boolean verify(Packet packet) {
+                verifyCount[0]++;
+                return true;
+            }
+        };
+        //strategy i caches command 100 + i and is invalidated by receiving command 200 + i % 10
+        UseUtilReceiveCmdCacheStrategy[] strategies = new UseUtilReceiveCmdCacheStrategy[50];
+        for (int i = 0; i < strategies.length; i++) {
+            strategies[i] = new UseUtilReceiveCmdCacheStrategy(100 + i, new int[]{200 + i % 10});
+            strategies[i].setTriggerPacketValidator(countingValidator);
+            cacheManager.add(strategies[i]);
+            strategies[i].updateCache(new WPBPacket(100 + i, 1, "{}"));
+        }
+        UseUtilSendCmdCacheStrategy sendStrategy = new UseUtilSendCmdCacheStrategy(300, new int[]{200});
+        cacheManager.add(sendStrategy);
+        sendStrategy.updateCache(new WPBPacket(300, 1, "{}"));
+
+        cacheManager.postResponseHandle(203, new WPBPacket(203, 1, "{}"));
+        assertEquals(5, verifyCount[0]);
+        for (int i = 0; i < strategies.length; i++) {
+            assertEquals(i % 10 == 3, strategies[i].getValidCache() == null);
+        }
+
+        //receiving 200 does not invalidate the strategy triggered by sending it
+        cacheManager.postResponseHandle(200, new WPBPacket(200, 1, "{}"));
+        assertNotNull(sendStrategy.getValidCache());
+        RequestContext context = new RequestContext(new Request.Builder().command(200).utf8body("{}").build(), new WPBPacket(200, 2, "{}"), null);
+        assertFalse(cacheManager.postRequestHandle(context));
+        assertNull(sendStrategy.getValidCache());
+        assertEquals(10, verifyCount[0]);
+
+        //removed strategies are no longer triggered
+        cacheManager.remove(strategies[4]);
+        strategies[4].updateCache(new WPBPacket(104, 1, "{}"));
+        cacheManager.postResponseHandle(204, new WPBPacket(204, 1, "{}"));
+        assertNotNull(strategies[4].getValidCache());
+        assertNull(strategies[14].getValidCache());
+        assertEquals(14, verifyCount[0]);
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        //every packet below weighs 22 bytes, 12 of them header
+        cacheManager = new CacheManager(new WPBSocketClient(new Configuration()), 66, PacketWeigher.SERIALIZED_LENGTH);
+        CacheStrategy cacheStrategy = new CacheStrategy(1);
+        cacheStrategy.setMaxEntries(2);
+        cacheManager.add(cacheStrategy);
+        cacheManager.add(new UseUtilReceiveCmdCacheStrategy(2, new int[]{3}));
+
+        ByteString a = ByteString.encodeUtf8("{\"a\":1}");
+        ByteString b = ByteString.encodeUtf8("{\"b\":1}");
+        ByteString c = ByteString.encodeUtf8("{\"c\":1}");
+        cacheStrategy.updateCache(a, new WPBPacket(1, 1, "{\"p\":\"1a\"}"));
+        cacheStrategy.updateCache(b, new WPBPacket(1, 2, "{\"p\":\"1b\"}"));
+        assertTrue(cacheManager.postRequestHandle(new RequestContext(new Request.Builder().command(1).body(a).build(), null, null)));
+        assertFalse(cacheManager.postRequestHandle(new RequestContext(new Request.Builder().command(1).body(c).build(), null, null)));
+        //a was used last, b is evicted by the entry limit
+        cacheStrategy.updateCache(c, new WPBPacket(1, 3, "{\"p\":\"1c\"}"));
+        cacheStrategy.removeCache(a);
+
+        CacheStats stats = cacheManager.getStats(1);
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(0.5, stats.getHitRate());
+        assertEquals(3, stats.getUpdateCount());
+        assertEquals(1, stats.getEvictionCount());
+        assertEquals(1, stats.getInvalidationCount());
+        assertEquals(22, stats.getBytes());
+
+        //the byte budget evicts across commands, the trigger invalidates
+        cacheManager.get(2).setMaxEntries(3);
+        cacheManager.get(2).updateCache(a, new WPBPacket(2, 1, "{\"p\":\"2a\"}"));
+        cacheManager.get(2).updateCache(b, new WPBPacket(2, 2, "{\"p\":\"2b\"}"));
+        cacheManager.get(2).updateCache(c, new WPBPacket(2, 3, "{\"p\":\"2c\"}"));
+        assertEquals(0, cacheManager.getStats(1).getBytes());
+        assertEquals(2, cacheManager.getStats(1).getEvictionCount());
+        cacheManager.postResponseHandle(3, new WPBPacket(3, 1, "{}"));
+        stats = cacheManager.getStats(2);
+        assertEquals(0, stats.getBytes());
+        assertEquals(3, stats.getInvalidationCount());
+        assertEquals(3, stats.getUpdateCount());
+
+        assertEquals(2, cacheManager.getStats().size());
+        assertEquals(0, cacheManager.getStats(4).getHitCount());
+    }
 }
@@ -6,7 +6,16 @@ import common.WPBPacket;
 import common.WPBProtocolUtil;
 import junit.framework.TestCase;
 import okio.ByteString;
+import org.json.JSONObject;
 import org.junit.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by tong on 16/10/6.
@@ -148,4 +157,168 @@ public class DefaultOne2ManyNotifyRouterTest extends TestCase {
             }
         }
     }
+
+    @Test
+    public void testManyCommands() throws Exception{
+        final int[] counts = new int[300];
+        ResponseHandler responseHandler = new ResponseHandler() {
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                counts[command]++;
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+
+            }
+        };
+        Object otherTag = new Object();
+        for (int cmd = 0; cmd < counts.length; cmd++) {
+            router.subscribe(this, cmd, responseHandler);
+            router.subscribe(otherTag, cmd, responseHandler);
+        }
+
+        router.route(7, new WPBPacket(7, ByteString.encodeUtf8("{}")));
+        assertEquals(2, counts[7]);
+        assertEquals(0, counts[8]);
+
+        router.unsubscribe(otherTag);
+        router.route(7, new WPBPacket(7, ByteString.encodeUtf8("{}")));
+        assertEquals(3, counts[7]);
+
+        router.unsubscribe(responseHandler);
+        for (int cmd = 0; cmd < counts.length; cmd++) {
+            router.route(cmd, new WPBPacket(cmd, ByteString.encodeUtf8("{}")));
+        }
+        assertEquals(3, counts[7]);
+        assertEquals(0, counts[8]);
+    }
+
+    @Test
+    public void testConflating() throws Exception{
+        final int cmd = WPBCmd.NOTIFY_PRICE.getValue();
+        final CountDownLatch blockLatch = new CountDownLatch(1);
+        final CountDownLatch lastLatch = new CountDownLatch(1);
+        final List<Packet> packets = new CopyOnWriteArrayList<Packet>();
+        final WPBPacket last = new WPBPacket(cmd, ByteString.encodeUtf8("{\"price\" : 100}"));
+        ResponseHandler slowHandler = new ResponseHandler() {
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                try {
+                    blockLatch.await();
+                } catch (InterruptedException e) {
+
+                }
+                packets.add(responsePacket);
+                if (responsePacket == last) {
+                    lastLatch.countDown();
+                }
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        router.addConflatingCmd(cmd, executor);
+        router.subscribe(this, cmd, slowHandler);
+
+        //the subscriber is blocked, routing must not wait for it
+        for (int i = 0; i < 99; i++) {
+            router.route(cmd, new WPBPacket(cmd, ByteString.encodeUtf8("{\"price\" : " + i + "}")));
+        }
+        router.route(cmd, last);
+        blockLatch.countDown();
+
+        assertTrue(lastLatch.await(5, TimeUnit.SECONDS));
+        assertSame(last, packets.get(packets.size() - 1));
+        assertTrue(packets.size() <= 2);
+        assertEquals(100 - packets.size(), router.getConflatedCount(slowHandler));
+        assertEquals(0, last.getFlags() & Packet.FLAG_RECYCLABLE);
+
+        router.removeConflatingCmd(cmd);
+        router.unsubscribe(this);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testStickyReplay() throws Exception{
+        final int cmd = WPBCmd.NOTIFY_PRICE.getValue();
+        router.addStickyCmd(new StickyCmd.Builder(cmd)
+                .maxEntries(2)
+                .keyExtractor(new StickyCmd.KeyExtractor() {
+                    @Override
+                    public Object getKey(Packet packet) {
+                        return new JSONObject(packet.getContent()).optString("code", null);
+                    }
+                })
+                .build());
+        router.route(cmd, new WPBPacket(cmd, ByteString.encodeUtf8("{\"code\" : \"A\", \"price\" : 1}")));
+        router.route(cmd, new WPBPacket(cmd, ByteString.encodeUtf8("{\"code\" : \"B\", \"price\" : 1}")));
+        router.route(cmd, new WPBPacket(cmd, ByteString.encodeUtf8("{\"code\" : \"A\", \"price\" : 2}")));
+        router.route(cmd, new WPBPacket(cmd, ByteString.encodeUtf8("{\"code\" : \"C\", \"price\" : 1}")));
+        //no key, not stored
+        router.route(cmd, new WPBPacket(cmd, ByteString.encodeUtf8("{\"price\" : 1}")));
+
+        final List<String> contents = new ArrayList<String>();
+        router.subscribe(this, cmd, new ResponseHandler() {
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                contents.add(responsePacket.getContent());
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+
+            }
+        });
+
+        //B was stored before the update of A and is the oldest entry
+        assertEquals(2, contents.size());
+        assertEquals("{\"code\" : \"A\", \"price\" : 2}", contents.get(0));
+        assertEquals("{\"code\" : \"C\", \"price\" : 1}", contents.get(1));
+
+        router.removeStickyCmd(cmd);
+        assertEquals(0, ((DefaultOne2ManyNotifyRouter) router).getStickyBytes());
+    }
+
+    @Test
+    public void testStickyTtlAndBudget() throws Exception{
+        final int cmd = WPBCmd.NOTIFY_PRICE.getValue();
+        DefaultOne2ManyNotifyRouter router = new DefaultOne2ManyNotifyRouter(50, PacketWeigher.SERIALIZED_LENGTH);
+        router.addStickyCmd(new StickyCmd.Builder(cmd).maxEntries(10).ttl(TimeUnit.MILLISECONDS, 200).build());
+        router.addStickyCmd(new StickyCmd.Builder(cmd + 1).maxEntries(10).build());
+
+        //4 packets of 20 bytes exceed the 50 byte budget, the 2 oldest are evicted
+        router.route(cmd, new WPBPacket(cmd, ByteString.encodeUtf8("{\"p\":10}")));
+        router.route(cmd + 1, new WPBPacket(cmd + 1, ByteString.encodeUtf8("{\"p\":20}")));
+        router.route(cmd, new WPBPacket(cmd, ByteString.encodeUtf8("{\"p\":11}")));
+        router.route(cmd + 1, new WPBPacket(cmd + 1, ByteString.encodeUtf8("{\"p\":21}")));
+        assertEquals(40, router.getStickyBytes());
+        assertEquals(2, router.getStickyEvictionCount());
+
+        final List<String> contents = new ArrayList<String>();
+        ResponseHandler responseHandler = new ResponseHandler() {
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                contents.add(responsePacket.getContent());
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+
+            }
+        };
+        router.subscribe(this, cmd, responseHandler);
+        router.subscribe(this, cmd + 1, responseHandler);
+        assertEquals(Arrays.asList("{\"p\":11}", "{\"p\":21}"), contents);
+
+        Thread.sleep(300);
+        contents.clear();
+        router.subscribe(this, cmd, responseHandler);
+        router.subscribe(this, cmd + 1, responseHandler);
+        assertEquals(Arrays.asList("{\"p\":21}"), contents);
+        assertEquals(20, router.getStickyBytes());
+    }
 }
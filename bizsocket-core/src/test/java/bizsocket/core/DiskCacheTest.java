@@ -0,0 +1,137 @@
+package bizsocket.core;
+
+import bizsocket.core.cache.CacheManager;
+import bizsocket.core.cache.CacheStrategy;
+import bizsocket.core.cache.DiskCache;
+import bizsocket.core.cache.RelativeMillisCacheStrategy;
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.Request;
+import client.WPBPacketFactory;
+import client.WPBSocketClient;
+import junit.framework.TestCase;
+import okio.ByteString;
+import org.junit.Test;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+public class DiskCacheTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = File.createTempFile("bizsocket", ".cache");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+        super.tearDown();
+    }
+
+    private CacheManager createCacheManager() {
+        CacheManager cacheManager = new CacheManager(new WPBSocketClient(new Configuration()));
+        cacheManager.setDiskCache(new DiskCache(file, new WPBPacketFactory()));
+        return cacheManager;
+    }
+
+    private Packet createPacket(int command, String content) {
+        return new WPBPacketFactory().getRequestPacket(new Request.Builder().command(command).utf8body(content).build());
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        ByteString first = ByteString.encodeUtf8("{\"orderId\":1}");
+        ByteString second = ByteString.encodeUtf8("{\"orderId\":2}");
+        CacheManager cacheManager = createCacheManager();
+        CacheStrategy cacheStrategy = new CacheStrategy(1);
+        cacheStrategy.setPersistent(true);
+        cacheStrategy.setMaxEntries(10);
+        cacheManager.add(cacheStrategy);
+        //not persistent
+        cacheManager.add(new CacheStrategy(2));
+
+        cacheStrategy.updateCache(first, createPacket(1, "{\"v\":1}"));
+        cacheStrategy.updateCache(second, createPacket(1, "{\"v\":2}"));
+        cacheStrategy.removeCache(second);
+        cacheManager.get(2).updateCache(createPacket(2, "{}"));
+        cacheManager.getDiskCache().close();
+
+        //restart
+        cacheManager = createCacheManager();
+        cacheStrategy = new CacheStrategy(1);
+        cacheStrategy.setPersistent(true);
+        cacheStrategy.setMaxEntries(10);
+        cacheManager.add(cacheStrategy);
+        cacheManager.add(new CacheStrategy(2));
+        assertEquals(1, cacheManager.getDiskCache().getEntryCount());
+        assertEquals(0, cacheStrategy.getEntryCount());
+
+        Packet packet = cacheStrategy.getValidCache(first);
+        assertNotNull(packet);
+        assertEquals("{\"v\":1}", packet.getContent());
+        assertEquals(0, packet.getFlags() & Packet.FLAG_RECYCLABLE);
+        assertEquals(1, cacheStrategy.getEntryCount());
+        assertTrue(cacheManager.getCacheBytes() > 0);
+        assertNull(cacheStrategy.getValidCache(second));
+        assertNull(cacheManager.get(2).getValidCache());
+
+        //unmounting keeps the disk cache, removing does not
+        cacheManager.remove(1);
+        assertEquals(1, cacheManager.getDiskCache().getEntryCount());
+        cacheManager.add(cacheStrategy);
+        cacheManager.removeAllCache();
+        assertEquals(0, cacheManager.getDiskCache().getEntryCount());
+    }
+
+    @Test
+    public void testExpireAfterReload() throws Exception {
+        CacheManager cacheManager = createCacheManager();
+        RelativeMillisCacheStrategy cacheStrategy = new RelativeMillisCacheStrategy(1, TimeUnit.MILLISECONDS, 200);
+        cacheStrategy.setPersistent(true);
+        cacheManager.add(cacheStrategy);
+        cacheStrategy.updateCache(createPacket(1, "{}"));
+        cacheManager.getDiskCache().close();
+
+        Thread.sleep(300);
+        cacheManager = createCacheManager();
+        cacheStrategy = new RelativeMillisCacheStrategy(1, TimeUnit.MILLISECONDS, 200);
+        cacheStrategy.setPersistent(true);
+        cacheManager.add(cacheStrategy);
+        //the age of the entry survives the restart
+        assertNull(cacheStrategy.getValidCache());
+        assertEquals(0, cacheManager.getDiskCache().getEntryCount());
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        DiskCache diskCache = new DiskCache(file, new WPBPacketFactory(), 64 * 1024);
+        ByteString body = ByteString.encodeUtf8("{}");
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append('x');
+        }
+        //overwriting one entry fills the file with garbage, the file never grows
+        for (int i = 0; i < 200; i++) {
+            diskCache.put(1, body, i, createPacket(1, "{\"v\":\"" + content + i + "\"}"));
+            diskCache.put(2, ByteString.encodeUtf8(String.valueOf(i % 3)), i, createPacket(2, "{}"));
+        }
+        assertEquals(4, diskCache.getEntryCount());
+        assertEquals(64 * 1024, file.length());
+        assertTrue(diskCache.getFileBytes() > diskCache.getLiveBytes());
+
+        diskCache.compact();
+        assertEquals(diskCache.getLiveBytes() + 4, diskCache.getFileBytes());
+        diskCache.removeAll(2);
+        diskCache.close();
+
+        diskCache = new DiskCache(file, new WPBPacketFactory(), 64 * 1024);
+        assertEquals(1, diskCache.getEntryCount());
+        assertEquals("{\"v\":\"" + content + 199 + "\"}", diskCache.get(1, body).getPacket().getContent());
+        assertEquals(199, diskCache.get(1, body).getUpdateMillis());
+        assertNull(diskCache.get(2, ByteString.encodeUtf8("0")));
+    }
+}
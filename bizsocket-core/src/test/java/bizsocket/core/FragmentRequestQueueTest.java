@@ -0,0 +1,325 @@
+package bizsocket.core;
+
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.Request;
+import client.WPBSocketClient;
+import common.WPBPacket;
+import junit.framework.TestCase;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class FragmentRequestQueueTest extends TestCase {
+    WPBSocketClient client;
+    WPBFragmentRequestQueue requestQueue;
+    final List<String> results = new ArrayList<String>();
+    final List<Integer> droppedSequences = new ArrayList<Integer>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        results.clear();
+        droppedSequences.clear();
+        client = new WPBSocketClient(new Configuration()) {
+            @Override
+            public RequestQueue createRequestQueue(AbstractBizSocket bizSocket) {
+                return new WPBFragmentRequestQueue(bizSocket);
+            }
+        };
+        requestQueue = (WPBFragmentRequestQueue) client.getRequestQueue();
+        requestQueue.setGlobalNotifyHandler(new ResponseHandler() {
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                results.add(responsePacket.getPacketID() + ":" + responsePacket.getContent());
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+
+            }
+        });
+    }
+
+    private WPBPacket fragment(int seq, int index, int count, String body) {
+        return new WPBPacket(1, seq, "#" + index + "/" + count + ":" + body);
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        requestQueue.processPacket(fragment(1, 2, 3, "c"));
+        requestQueue.processPacket(fragment(2, 1, 2, "y"));
+        requestQueue.processPacket(fragment(1, 0, 3, "a"));
+        //duplicate fragments are ignored
+        requestQueue.processPacket(fragment(1, 0, 3, "z"));
+        assertTrue(results.isEmpty());
+        assertEquals(54, requestQueue.getFragmentBytes());
+
+        requestQueue.processPacket(fragment(1, 1, 3, "b"));
+        requestQueue.processPacket(fragment(2, 0, 2, "x"));
+        assertEquals(2, results.size());
+        assertEquals("1:abc", results.get(0));
+        assertEquals("2:xy", results.get(1));
+        assertEquals(0, requestQueue.getFragmentBytes());
+        assertNull(requestQueue.getFragmentInfoBySeq(1));
+
+        //a fragment index out of range is dropped
+        requestQueue.processPacket(fragment(3, 5, 2, "x"));
+        assertEquals(0, requestQueue.getFragmentBytes());
+        assertNull(requestQueue.getFragmentInfoBySeq(3));
+
+        //the fragment count comes from the wire, slots are not allocated up front
+        requestQueue.processPacket(fragment(4, 0, Integer.MAX_VALUE, "x"));
+        assertEquals(Integer.MAX_VALUE, requestQueue.getFragmentInfoBySeq(4).getTotalSize());
+        assertEquals(1, requestQueue.getFragmentInfoBySeq(4).getReceivedCount());
+    }
+
+    @Test
+    public void testMaxFragmentBytes() throws Exception {
+        //every fragment weighs 18 bytes
+        requestQueue.setMaxFragmentBytes(60);
+        requestQueue.processPacket(fragment(1, 0, 2, "a"));
+        requestQueue.processPacket(fragment(2, 0, 2, "b"));
+        requestQueue.processPacket(fragment(3, 0, 2, "c"));
+        //a fragment of sequence 2 arrives again, sequence 1 is now the stalest
+        requestQueue.processPacket(fragment(2, 0, 2, "b"));
+        assertEquals(54, requestQueue.getFragmentBytes());
+
+        requestQueue.processPacket(fragment(4, 0, 2, "d"));
+        assertEquals(1, droppedSequences.size());
+        assertEquals(1, (int) droppedSequences.get(0));
+        assertNull(requestQueue.getFragmentInfoBySeq(1));
+
+        requestQueue.processPacket(fragment(2, 1, 2, "b"));
+        requestQueue.processPacket(fragment(1, 1, 2, "a"));
+        assertEquals(1, results.size());
+        assertEquals("2:bb", results.get(0));
+    }
+
+    @Test
+    public void testFragmentTimeout() throws Exception {
+        requestQueue.setFragmentTimeout(100, TimeUnit.MILLISECONDS);
+        requestQueue.processPacket(fragment(1, 0, 2, "a"));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (droppedSequences.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, droppedSequences.size());
+        assertEquals(0, requestQueue.getFragmentBytes());
+
+        //a late fragment starts over
+        requestQueue.processPacket(fragment(1, 1, 2, "b"));
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        final List<String> fragments = new ArrayList<String>();
+        client.request(new Request.Builder().command(1).utf8body("{}").build(), new StreamResponseHandler() {
+            @Override
+            public void sendFragmentMessage(int command, ByteString requestBody, Packet fragment) {
+                fragments.add(fragment.getContent());
+            }
+
+            @Override
+            public void sendCompleteMessage(int command, ByteString requestBody) {
+                fragments.add("complete");
+            }
+
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                fragments.add("success");
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+                fragments.add(error.getClass().getSimpleName());
+            }
+        });
+        RequestContext context = requestQueue.getRequestContext(new RequestQueue.Filter() {
+            @Override
+            public boolean filter(RequestContext context) {
+                return true;
+            }
+        }).iterator().next();
+        int seq = ((WPBPacket) context.getRequestPacket()).seq;
+
+        requestQueue.processPacket(fragment(seq, 1, 3, "b"));
+        assertTrue(fragments.isEmpty());
+        requestQueue.processPacket(fragment(seq, 0, 3, "a"));
+        assertEquals(2, fragments.size());
+        assertEquals("#0/3:a", fragments.get(0));
+        assertEquals("#1/3:b", fragments.get(1));
+        //delivered fragments are not kept
+        assertEquals(0, requestQueue.getFragmentBytes());
+
+        requestQueue.processPacket(fragment(seq, 2, 3, "c"));
+        assertEquals(4, fragments.size());
+        assertEquals("#2/3:c", fragments.get(2));
+        assertEquals("complete", fragments.get(3));
+        assertNull(requestQueue.getFragmentInfoBySeq(seq));
+        assertTrue(results.isEmpty());
+        assertFalse(requestQueue.getRequestContext(1, String.valueOf(seq)).iterator().hasNext());
+    }
+
+    @Test
+    public void testStreamingAndPlainDoNotShareFlight() throws Exception {
+        requestQueue.addSingleFlightCmd(1);
+        final List<String> events = new ArrayList<String>();
+        Request request = new Request.Builder().command(1).utf8body("{}").build();
+        client.request(request, new StreamResponseHandler() {
+            @Override
+            public void sendFragmentMessage(int command, ByteString requestBody, Packet fragment) {
+                events.add("stream:" + fragment.getContent());
+            }
+
+            @Override
+            public void sendCompleteMessage(int command, ByteString requestBody) {
+                events.add("stream:complete");
+            }
+
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                events.add("stream:success");
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+                events.add("stream:" + error.getClass().getSimpleName());
+            }
+        });
+        client.request(request, new ResponseHandler() {
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                events.add("plain:" + responsePacket.getContent());
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+                events.add("plain:" + error.getClass().getSimpleName());
+            }
+        });
+        //the plain request does not join the streaming one
+        RequestContext streaming = requestQueue.getInFlightContext(1, request.body(), true);
+        RequestContext plain = requestQueue.getInFlightContext(1, request.body(), false);
+        assertNotNull(streaming);
+        assertNotNull(plain);
+        assertNotSame(streaming, plain);
+        assertEquals(0, streaming.getFollowerCount());
+
+        int streamingSeq = ((WPBPacket) streaming.getRequestPacket()).seq;
+        int plainSeq = ((WPBPacket) plain.getRequestPacket()).seq;
+        requestQueue.processPacket(fragment(streamingSeq, 0, 2, "a"));
+        requestQueue.processPacket(fragment(streamingSeq, 1, 2, "b"));
+        requestQueue.processPacket(fragment(plainSeq, 1, 2, "b"));
+        requestQueue.processPacket(fragment(plainSeq, 0, 2, "a"));
+        assertEquals(4, events.size());
+        assertEquals("stream:#0/2:a", events.get(0));
+        assertEquals("stream:#1/2:b", events.get(1));
+        assertEquals("stream:complete", events.get(2));
+        assertEquals("plain:ab", events.get(3));
+    }
+
+    @Test
+    public void testStreamingFollowerAfterFirstFragment() throws Exception {
+        requestQueue.addSingleFlightCmd(1);
+        final List<String> events = new ArrayList<String>();
+        Request request = new Request.Builder().command(1).utf8body("{}").build();
+        client.request(request, createStreamHandler("a", events));
+        RequestContext first = requestQueue.getInFlightContext(1, request.body(), true);
+        int firstSeq = ((WPBPacket) first.getRequestPacket()).seq;
+        requestQueue.processPacket(fragment(firstSeq, 0, 2, "a"));
+
+        //joining now would miss fragment 0, the request goes on the wire itself
+        client.request(request, createStreamHandler("b", events));
+        RequestContext second = requestQueue.getInFlightContext(1, request.body(), true);
+        assertNotSame(first, second);
+        assertEquals(0, first.getFollowerCount());
+
+        requestQueue.processPacket(fragment(firstSeq, 1, 2, "b"));
+        int secondSeq = ((WPBPacket) second.getRequestPacket()).seq;
+        requestQueue.processPacket(fragment(secondSeq, 0, 2, "a"));
+        requestQueue.processPacket(fragment(secondSeq, 1, 2, "b"));
+        assertEquals(6, events.size());
+        assertEquals("a:#0/2:a", events.get(0));
+        assertEquals("a:#1/2:b", events.get(1));
+        assertEquals("a:complete", events.get(2));
+        assertEquals("b:#0/2:a", events.get(3));
+        assertEquals("b:#1/2:b", events.get(4));
+        assertEquals("b:complete", events.get(5));
+        assertNull(requestQueue.getInFlightContext(1, request.body(), true));
+    }
+
+    private StreamResponseHandler createStreamHandler(final String name, final List<String> events) {
+        return new StreamResponseHandler() {
+            @Override
+            public void sendFragmentMessage(int command, ByteString requestBody, Packet fragment) {
+                events.add(name + ":" + fragment.getContent());
+            }
+
+            @Override
+            public void sendCompleteMessage(int command, ByteString requestBody) {
+                events.add(name + ":complete");
+            }
+
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                events.add(name + ":success");
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+                events.add(name + ":" + error.getClass().getSimpleName());
+            }
+        };
+    }
+
+    /**
+     * Fragment content: "#index/count:body".
+     */
+    class WPBFragmentRequestQueue extends AbstractFragmentRequestQueue<WPBPacket> {
+        WPBFragmentRequestQueue(AbstractBizSocket bizSocket) {
+            super(bizSocket);
+        }
+
+        @Override
+        public WPBPacket mergeFragment(FragmentInfo<WPBPacket> fragmentInfo) {
+            WPBPacket first = fragmentInfo.getFragment(0);
+            Buffer body = mergeFragmentBodies(fragmentInfo);
+            return new WPBPacket(first.cmd, first.seq, body.readUtf8());
+        }
+
+        @Override
+        public Buffer getFragmentBody(WPBPacket packet) {
+            return new Buffer().writeUtf8(packet.content.substring(packet.content.indexOf(':') + 1));
+        }
+
+        @Override
+        public int getFragmentCount(WPBPacket packet) {
+            return Integer.parseInt(packet.content.substring(packet.content.indexOf('/') + 1, packet.content.indexOf(':')));
+        }
+
+        @Override
+        public boolean isFragment(WPBPacket packet) {
+            return packet.content.startsWith("#");
+        }
+
+        @Override
+        public int getSequence(WPBPacket packet) {
+            return packet.seq;
+        }
+
+        @Override
+        public int getFragmentIndex(WPBPacket packet) {
+            return Integer.parseInt(packet.content.substring(1, packet.content.indexOf('/')));
+        }
+
+        @Override
+        protected void onFragmentDropped(FragmentInfo<WPBPacket> fragmentInfo) {
+            droppedSequences.add(fragmentInfo.getSequence());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package bizsocket.core;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deadlines, cancellation and the thread count of many pending requests.
+ */
+public class HashedWheelTimerTest extends TestCase {
+    private HashedWheelTimer timer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        //8 buckets of 10ms, deadlines beyond 80ms take more than one round
+        timer = new HashedWheelTimer("Test Timer", 10, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        timer.shutdown();
+        super.tearDown();
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        final long start = System.nanoTime();
+        final long[] elapsed = new long[3];
+        long[] delays = {0, 50, 300};
+        for (int i = 0; i < delays.length; i++) {
+            final int index = i;
+            timer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    elapsed[index] = System.nanoTime() - start;
+                    latch.countDown();
+                }
+            }, delays[i], TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(elapsed[i] >= TimeUnit.MILLISECONDS.toNanos(delays[i]));
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final AtomicInteger fired = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                fired.incrementAndGet();
+            }
+        };
+        HashedWheelTimer.Timeout cancelled = timer.newTimeout(task, 50, TimeUnit.MILLISECONDS);
+        HashedWheelTimer.Timeout expired = timer.newTimeout(task, 50, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+
+        Thread.sleep(300);
+        assertEquals(1, fired.get());
+        assertTrue(cancelled.isCancelled());
+        assertTrue(expired.isExpired());
+        assertFalse(expired.cancel());
+    }
+
+    @Test
+    public void testSlowTaskDoesNotDelayOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fired = new CountDownLatch(1);
+        timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        try {
+            assertTrue(fired.await(1, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testThreadCountStaysFlat() throws Exception {
+        final AtomicInteger timeoutCount = new AtomicInteger();
+        RequestContext.OnRequestTimeoutListener listener = new RequestContext.OnRequestTimeoutListener() {
+            @Override
+            public void onRequestTimeout(RequestContext context) {
+                timeoutCount.incrementAndGet();
+            }
+        };
+        RequestContext[] contexts = new RequestContext[10000];
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i] = new RequestContext(null, null, null);
+            contexts[i].setTimeoutTimer(timer);
+            contexts[i].setOnRequestTimeoutListener(listener);
+            contexts[i].setReadTimeout(1);
+        }
+
+        Set<Thread> threads = getAllThreads();
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i].onAddToQueue();
+            if (i % 1000 == 0) {
+                assertNoNewThreads(threads);
+            }
+        }
+        //half of the requests get a response before the deadline
+        for (int i = 0; i < contexts.length; i += 2) {
+            contexts[i].onRemoveFromQueue();
+        }
+
+        long deadline = System.currentTimeMillis() + 3000;
+        while (timeoutCount.get() < contexts.length / 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+        assertEquals(contexts.length / 2, timeoutCount.get());
+        assertNoNewThreads(threads);
+    }
+
+    //only the timer thread and its bounded task threads may show up
+    private void assertNoNewThreads(Set<Thread> before) {
+        int taskThreads = 0;
+        for (Thread thread : getAllThreads()) {
+            if ("Test Timer Task".equals(thread.getName())) {
+                taskThreads++;
+                continue;
+            }
+            assertTrue(thread.getName(), before.contains(thread) || "Test Timer".equals(thread.getName()));
+        }
+        assertTrue(taskThreads <= HashedWheelTimer.DEFAULT_TASK_THREADS);
+    }
+
+    private Set<Thread> getAllThreads() {
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        int count = Thread.enumerate(threads);
+        Set<Thread> result = new HashSet<Thread>();
+        for (int i = 0; i < count; i++) {
+            result.add(threads[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,93 @@
+package bizsocket.core;
+
+import bizsocket.core.internal.RequestContextTable;
+import bizsocket.tcp.Request;
+import common.WPBPacket;
+import junit.framework.TestCase;
+import org.junit.Test;
+import java.util.List;
+
+public class RequestContextTableTest extends TestCase {
+    final RequestContextTable requestContextTable = new RequestContextTable();
+    int addCount;
+    int removeCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        requestContextTable.clear();
+        addCount = 0;
+        removeCount = 0;
+    }
+
+    private RequestContext createContext(int cmd, int seq) {
+        Request request = new Request.Builder().command(cmd).utf8body("{}").build();
+        return new RequestContext(request, new WPBPacket(cmd, seq, "{}"), null) {
+            @Override
+            public void onAddToQueue() {
+                addCount++;
+            }
+
+            @Override
+            public void onRemoveFromQueue() {
+                removeCount++;
+            }
+        };
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        RequestContext first = createContext(1, 1);
+        RequestContext second = createContext(1, 2);
+        RequestContext other = createContext(2, 1);
+        assertTrue(requestContextTable.add(first));
+        assertTrue(requestContextTable.add(second));
+        assertTrue(requestContextTable.add(other));
+        assertFalse(requestContextTable.add(first));
+        assertEquals(3, addCount);
+        assertEquals(3, requestContextTable.size());
+
+        List<RequestContext> result = requestContextTable.get(1, "2");
+        assertEquals(1, result.size());
+        assertSame(second, result.get(0));
+        assertSame(other, requestContextTable.get(2, "1").get(0));
+        assertTrue(requestContextTable.get(3, "1").isEmpty());
+        assertTrue(requestContextTable.get(2, "2").isEmpty());
+
+        assertTrue(requestContextTable.remove(second));
+        assertFalse(requestContextTable.remove(second));
+        assertEquals(1, removeCount);
+        assertTrue(requestContextTable.get(1, "2").isEmpty());
+        assertTrue(requestContextTable.containsCommand(1));
+
+        assertTrue(requestContextTable.remove(first));
+        assertFalse(requestContextTable.containsCommand(1));
+        assertTrue(requestContextTable.containsCommand(2));
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        RequestContext first = createContext(1, 1);
+        RequestContext second = createContext(1, 2);
+        RequestContext third = createContext(1, 3);
+        RequestContext jump = createContext(1, 4);
+        requestContextTable.add(first);
+        requestContextTable.add(second);
+        requestContextTable.add(third);
+        requestContextTable.addFirst(jump);
+        requestContextTable.remove(second);
+
+        List<RequestContext> snapshot = requestContextTable.snapshot();
+        assertEquals(3, snapshot.size());
+        assertSame(jump, snapshot.get(0));
+        assertSame(first, snapshot.get(1));
+        assertSame(third, snapshot.get(2));
+
+        List<RequestContext> removed = requestContextTable.clear();
+        assertEquals(snapshot, removed);
+        assertEquals(4, removeCount);
+        assertEquals(0, requestContextTable.size());
+        assertTrue(requestContextTable.snapshot().isEmpty());
+    }
+}
@@ -0,0 +1,455 @@
+package bizsocket.core;
+
+import bizsocket.core.cache.CacheStrategy;
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.PacketFactory;
+import bizsocket.tcp.Request;
+import client.OrderListSerialContext;
+import client.WPBPacketFactory;
+import client.WPBSocketClient;
+import common.WPBCmd;
+import common.WPBPacket;
+import junit.framework.TestCase;
+import okio.ByteString;
+import org.json.JSONObject;
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class RequestQueueTest extends TestCase {
+    WPBSocketClient client;
+    RequestQueue requestQueue;
+    final List<String> results = new ArrayList<String>();
+    volatile boolean connected;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        //never connected, requests wait in the queue
+        client = new WPBSocketClient(new Configuration());
+        requestQueue = client.getRequestQueue();
+        results.clear();
+        connected = true;
+    }
+
+    private ResponseHandler createHandler(final String name) {
+        return new ResponseHandler() {
+            @Override
+            public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                results.add(name + ":" + responsePacket.getContent());
+            }
+
+            @Override
+            public void sendFailureMessage(int command, Throwable error) {
+                results.add(name + ":" + error.getClass().getSimpleName());
+            }
+        };
+    }
+
+    private Object request(String body, String name) {
+        return client.request(new Request.Builder().command(1).utf8body(body).build(), createHandler(name));
+    }
+
+    private int queueSize() {
+        return requestQueue.getRequestContext(new RequestQueue.Filter() {
+            @Override
+            public boolean filter(RequestContext context) {
+                return true;
+            }
+        }).size();
+    }
+
+    //连接状态由connected决定,发送的包记录到sentPackets
+    private void createSendingClient(final PacketFactory packetFactory, final List<Packet> sentPackets) {
+        client = new WPBSocketClient(new Configuration()) {
+            @Override
+            protected PacketFactory createPacketFactory() {
+                return packetFactory;
+            }
+
+            @Override
+            public boolean isConnected() {
+                return connected;
+            }
+
+            @Override
+            public RequestQueue createRequestQueue(AbstractBizSocket bizSocket) {
+                return new RequestQueue(bizSocket) {
+                    @Override
+                    public boolean sendPacket(Packet requestPacket) {
+                        sentPackets.add(requestPacket);
+                        return true;
+                    }
+                };
+            }
+        };
+        requestQueue = client.getRequestQueue();
+    }
+
+    private void waitFor(int expectedSize, List<?> list) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (list.size() < expectedSize && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    private void respond(String body, String content) {
+        WPBPacket request = (WPBPacket) requestQueue.getInFlightContext(1, ByteString.encodeUtf8(body)).getRequestPacket();
+        requestQueue.processPacket(new WPBPacket(1, request.seq, content));
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        requestQueue.addSingleFlightCmd(1);
+        request("{\"id\":1}", "a");
+        request("{\"id\":1}", "b");
+        request("{\"id\":1}", "c");
+        request("{\"id\":2}", "d");
+        assertEquals(2, queueSize());
+        assertEquals(2, requestQueue.getInFlightContext(1, ByteString.encodeUtf8("{\"id\":1}")).getFollowerCount());
+
+        respond("{\"id\":1}", "{\"v\":1}");
+        assertEquals(3, results.size());
+        assertTrue(results.contains("a:{\"v\":1}"));
+        assertTrue(results.contains("b:{\"v\":1}"));
+        assertTrue(results.contains("c:{\"v\":1}"));
+        assertEquals(1, queueSize());
+        assertNull(requestQueue.getInFlightContext(1, ByteString.encodeUtf8("{\"id\":1}")));
+
+        //a new request after the response goes on the wire again
+        request("{\"id\":1}", "e");
+        assertEquals(2, queueSize());
+    }
+
+    @Test
+    public void testSingleFlightCacheHit() throws Exception {
+        requestQueue.addSingleFlightCmd(1);
+        CacheStrategy cacheStrategy = new CacheStrategy(1);
+        client.getCacheManager().add(cacheStrategy);
+        ByteString body = ByteString.encodeUtf8("{\"id\":1}");
+        cacheStrategy.updateCache(body, new WPBPacket(1, 0, "{\"v\":1}"));
+
+        //a follower that joined before the leader hit the cache
+        RequestContext leader = client.buildRequestContext(new Request.Builder().command(1).body(body).build(), createHandler("a"));
+        leader.addFollower(client.buildRequestContext(new Request.Builder().command(1).body(body).build(), createHandler("b")));
+        requestQueue.addRequestContext(leader);
+
+        //the cache hit ends the flight, the interception that follows only reaches the leader
+        assertEquals(3, results.size());
+        assertEquals("a:{\"v\":1}", results.get(0));
+        assertEquals("b:{\"v\":1}", results.get(1));
+        assertEquals("a:RequestInterceptedException", results.get(2));
+        assertEquals(0, queueSize());
+        assertNull(requestQueue.getInFlightContext(1, body));
+    }
+
+    @Test
+    public void testSingleFlightCancel() throws Exception {
+        requestQueue.addSingleFlightCmd(1);
+        Object first = request("{\"id\":1}", "a");
+        Object second = request("{\"id\":1}", "b");
+        request("{\"id\":1}", "c");
+
+        //the packet is kept while someone is still waiting
+        client.cancel(first);
+        client.cancel(second);
+        assertEquals(1, queueSize());
+        respond("{\"id\":1}", "{\"v\":1}");
+        assertEquals(1, results.size());
+        assertEquals("c:{\"v\":1}", results.get(0));
+
+        first = request("{\"id\":1}", "d");
+        second = request("{\"id\":1}", "e");
+        client.cancel(first);
+        client.cancel(second);
+        assertEquals(0, queueSize());
+        assertNull(requestQueue.getInFlightContext(1, ByteString.encodeUtf8("{\"id\":1}")));
+    }
+
+    @Test
+    public void testSingleFlightAfterClearQueue() throws Exception {
+        requestQueue.addSingleFlightCmd(1);
+        request("{\"id\":1}", "a");
+        Request request = new Request.Builder().command(2).utf8body("{}").build();
+        RequestContext clear = new RequestContext(request, new WPBPacket(2, request.body()), createHandler("clear"));
+        clear.setFlags(clear.getFlags() | RequestContext.FLAG_CLEAR_QUEUE);
+        requestQueue.addRequestContext(clear);
+        assertEquals(1, queueSize());
+        assertNull(requestQueue.getInFlightContext(1, ByteString.encodeUtf8("{\"id\":1}")));
+
+        //the duplicate does not join the cleared request
+        request("{\"id\":1}", "b");
+        assertEquals(2, queueSize());
+        respond("{\"id\":1}", "{\"v\":1}");
+        assertEquals(1, results.size());
+        assertEquals("b:{\"v\":1}", results.get(0));
+    }
+
+    @Test
+    public void testNotSupportRepeat() throws Exception {
+        RequestContext[] contexts = new RequestContext[3];
+        String[] bodies = {"{\"id\":1}", "{\"id\":1}", "{\"id\":2}"};
+        for (int i = 0; i < contexts.length; i++) {
+            Request request = new Request.Builder().command(1).utf8body(bodies[i]).build();
+            contexts[i] = new RequestContext(request, new WPBPacket(1, request.body()), createHandler(String.valueOf(i)));
+            contexts[i].setFlags(contexts[i].getFlags() | RequestContext.FLAG_NOT_SUPPORT_REPEAT);
+            requestQueue.addRequestContext(contexts[i]);
+        }
+        //the repeat joins the first request, another body of the same command fails
+        assertEquals(1, queueSize());
+        assertEquals(1, results.size());
+        assertEquals("2:RequestRepeatException", results.get(0));
+
+        respond("{\"id\":1}", "{\"v\":1}");
+        assertEquals(3, results.size());
+        assertTrue(results.contains("0:{\"v\":1}"));
+        assertTrue(results.contains("1:{\"v\":1}"));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        final List<Packet> sentPackets = new ArrayList<Packet>();
+        createSendingClient(new BatchPacketFactory(), sentPackets);
+        requestQueue.setBatchWindow(50, TimeUnit.MILLISECONDS, 10);
+        request("{\"id\":1}", "a");
+        request("{\"id\":2}", "b");
+        request("{\"id\":3}", "c");
+        assertTrue(sentPackets.isEmpty());
+
+        waitFor(1, sentPackets);
+        assertEquals(1, sentPackets.size());
+        WPBPacket batchPacket = (WPBPacket) sentPackets.get(0);
+        assertEquals(BatchPacketFactory.BATCH_CMD, batchPacket.cmd);
+
+        //every line of the batch response is dispatched on its own
+        StringBuilder response = new StringBuilder();
+        for (String line : batchPacket.content.split("\n")) {
+            String[] fields = line.split(" ", 3);
+            response.append(fields[0]).append(' ').append(fields[1]).append(" {\"r\":").append(fields[2]).append("}\n");
+        }
+        requestQueue.processPacket(new WPBPacket(BatchPacketFactory.BATCH_CMD, 0, response.toString()));
+        assertEquals(3, results.size());
+        assertEquals("a:{\"r\":{\"id\":1}}", results.get(0));
+        assertEquals("c:{\"r\":{\"id\":3}}", results.get(2));
+        assertEquals(0, queueSize());
+
+        //a full batch does not wait for the window
+        requestQueue.setBatchWindow(10, TimeUnit.SECONDS, 2);
+        request("{\"id\":4}", "d");
+        request("{\"id\":5}", "e");
+        assertEquals(2, sentPackets.size());
+        request("{\"id\":6}", "f");
+        assertEquals(2, sentPackets.size());
+        requestQueue.flushBatch();
+        //a single request is sent as it is
+        assertEquals(3, sentPackets.size());
+        assertEquals(1, ((WPBPacket) sentPackets.get(2)).cmd);
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        final List<Packet> sentPackets = new ArrayList<Packet>();
+        createSendingClient(new WPBPacketFactory(), sentPackets);
+        int listCmd = WPBCmd.QUERY_ORDER_LIST.getValue();
+        client.addSerialSignal(new SerialSignal(OrderListSerialContext.class, listCmd, new int[]{listCmd}));
+        client.request(new Request.Builder().command(listCmd).utf8body("{}").build(), createHandler("list"));
+        assertEquals(1, sentPackets.size());
+
+        StringBuilder orders = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            orders.append(i == 0 ? "" : ",").append("{\"orderId\":").append(1000 + i).append("}");
+        }
+        WPBPacket listPacket = (WPBPacket) sentPackets.get(0);
+        requestQueue.processPacket(new WPBPacket(listCmd, listPacket.seq, "{\"code\":\"200\",\"result\":[" + orders + "]}"));
+        //at most 4 order type queries are waiting at the same time
+        assertEquals(5, sentPackets.size());
+        assertTrue(results.isEmpty());
+
+        //responses are matched by packet id, in any order
+        respondOrderType((WPBPacket) sentPackets.get(3));
+        assertEquals(6, sentPackets.size());
+        respondOrderType((WPBPacket) sentPackets.get(1));
+        assertEquals(7, sentPackets.size());
+        for (int i = 2; i < 7; i++) {
+            if (i != 3) {
+                respondOrderType((WPBPacket) sentPackets.get(i));
+            }
+        }
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).startsWith("list:"));
+        assertTrue(results.get(0).contains("\"orderType\":1005"));
+        assertEquals(0, queueSize());
+    }
+
+    private void respondOrderType(WPBPacket request) throws Exception {
+        requestQueue.processPacket(new WPBPacket(request.cmd, request.seq, orderTypeResponse(request.content)));
+    }
+
+    private String orderTypeResponse(String requestContent) throws Exception {
+        String orderId = new JSONObject(requestContent).getString("orderId");
+        return "{\"code\":\"200\",\"orderId\":" + orderId + ",\"orderType\":" + orderId + "}";
+    }
+
+    @Test
+    public void testFanOutBatchedAndResentOnConnect() throws Exception {
+        final List<Packet> sentPackets = new ArrayList<Packet>();
+        createSendingClient(new BatchPacketFactory(), sentPackets);
+        requestQueue.setBatchWindow(50, TimeUnit.MILLISECONDS, 10);
+        int listCmd = WPBCmd.QUERY_ORDER_LIST.getValue();
+        client.addSerialSignal(new SerialSignal(OrderListSerialContext.class, listCmd, new int[]{listCmd}));
+        client.request(new Request.Builder().command(listCmd).utf8body("{}").build(), createHandler("list"));
+        waitFor(1, sentPackets);
+        assertEquals(1, sentPackets.size());
+
+        //the child requests wait for the connection
+        connected = false;
+        StringBuilder orders = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            orders.append(i == 0 ? "" : ",").append("{\"orderId\":").append(1000 + i).append("}");
+        }
+        WPBPacket listPacket = (WPBPacket) sentPackets.get(0);
+        requestQueue.processPacket(new WPBPacket(listCmd, listPacket.seq, "{\"code\":\"200\",\"result\":[" + orders + "]}"));
+        Thread.sleep(100);
+        assertEquals(1, sentPackets.size());
+        assertEquals(5, queueSize());
+
+        //sent in one batch after connecting, each batch response lets the next children go
+        connected = true;
+        requestQueue.connected(null);
+        int[] batchSizes = {4, 2};
+        for (int i = 0; i < batchSizes.length; i++) {
+            waitFor(i + 2, sentPackets);
+            WPBPacket batchPacket = (WPBPacket) sentPackets.get(i + 1);
+            assertEquals(BatchPacketFactory.BATCH_CMD, batchPacket.cmd);
+            String[] lines = batchPacket.content.split("\n");
+            assertEquals(batchSizes[i], lines.length);
+            StringBuilder response = new StringBuilder();
+            for (String line : lines) {
+                String[] fields = line.split(" ", 3);
+                response.append(fields[0]).append(' ').append(fields[1]).append(' ').append(orderTypeResponse(fields[2])).append('\n');
+            }
+            requestQueue.processPacket(new WPBPacket(BatchPacketFactory.BATCH_CMD, 0, response.toString()));
+        }
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).startsWith("list:"));
+        assertTrue(results.get(0).contains("\"orderType\":1005"));
+        assertEquals(0, queueSize());
+    }
+
+    @Test
+    public void testFanOutQuorumAndDeadline() throws Exception {
+        final List<Packet> sentPackets = new ArrayList<Packet>();
+        createSendingClient(new WPBPacketFactory(), sentPackets);
+        client.addSerialSignal(new SerialSignal(QuorumSerialContext.class, 1, new int[]{1}));
+
+        //2 of 3 responses are enough
+        request("{}", "a");
+        requestQueue.processPacket(new WPBPacket(1, ((WPBPacket) sentPackets.get(0)).seq, "{}"));
+        assertEquals(4, sentPackets.size());
+        for (int i = 3; i >= 2; i--) {
+            requestQueue.processPacket(new WPBPacket(2, ((WPBPacket) sentPackets.get(i)).seq, "{}"));
+        }
+        assertEquals(1, results.size());
+        assertEquals("a:2", results.get(0));
+        //late responses are dispatched as usual
+        requestQueue.processPacket(new WPBPacket(2, ((WPBPacket) sentPackets.get(1)).seq, "{}"));
+        assertEquals(1, results.size());
+
+        //the deadline ends the fan-out with a single response
+        request("{}", "b");
+        requestQueue.processPacket(new WPBPacket(1, ((WPBPacket) sentPackets.get(4)).seq, "{}"));
+        assertEquals(8, sentPackets.size());
+        requestQueue.processPacket(new WPBPacket(2, ((WPBPacket) sentPackets.get(5)).seq, "{}"));
+        waitFor(2, results);
+        assertEquals("b:RequestTimeoutException", results.get(1));
+        assertEquals(0, queueSize());
+    }
+
+    @Test
+    public void testFanOutQuorumUnreachable() throws Exception {
+        final List<Packet> sentPackets = new ArrayList<Packet>();
+        //only the first child request can be built
+        createSendingClient(new WPBPacketFactory() {
+            int childRequests;
+
+            @Override
+            public Packet getRequestPacket(Packet reusable, Request request) {
+                if (request.command() == 2 && ++childRequests > 1) {
+                    throw new IllegalStateException("child " + childRequests);
+                }
+                return super.getRequestPacket(reusable, request);
+            }
+        }, sentPackets);
+        client.addSerialSignal(new SerialSignal(QuorumSerialContext.class, 1, new int[]{1}));
+
+        //1 response can never reach the quorum of 2, the fan-out fails before the deadline
+        request("{}", "a");
+        requestQueue.processPacket(new WPBPacket(1, ((WPBPacket) sentPackets.get(0)).seq, "{}"));
+        assertEquals(2, sentPackets.size());
+        assertEquals(1, results.size());
+        assertEquals("a:IllegalStateException", results.get(0));
+        assertEquals(0, queueSize());
+    }
+
+    /**
+     * Sends 3 child requests of command 2 and completes after 2 responses or 200 milliseconds.
+     */
+    public static class QuorumSerialContext extends AbstractSerialContext {
+        public QuorumSerialContext(SerialSignal serialSignal, RequestContext requestContext) {
+            super(serialSignal, requestContext);
+            setDeadline(200, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public Packet processPacket(RequestQueue requestQueue, Packet packet) {
+            List<Request> requests = new ArrayList<Request>();
+            for (int i = 0; i < 3; i++) {
+                requests.add(new Request.Builder().command(2).utf8body("{}").build());
+            }
+            FanOut fanOut = new FanOut(requests);
+            fanOut.setQuorum(2);
+            fanOut(requestQueue, fanOut);
+            return null;
+        }
+
+        @Override
+        protected Packet onFanOutComplete(RequestQueue requestQueue, FanOut fanOut) {
+            if (fanOut.getResponseCount() < fanOut.getQuorum()) {
+                return null;
+            }
+            return new WPBPacket(0, 0, String.valueOf(fanOut.getResponseCount()));
+        }
+    }
+
+    /**
+     * One line per request: command, sequence and content separated by spaces.
+     */
+    static class BatchPacketFactory extends WPBPacketFactory {
+        static final int BATCH_CMD = 9999;
+
+        @Override
+        public Packet getBatchPacket(List<Packet> requestPackets) {
+            StringBuilder content = new StringBuilder();
+            for (Packet packet : requestPackets) {
+                WPBPacket wpbPacket = (WPBPacket) packet;
+                content.append(wpbPacket.cmd).append(' ').append(wpbPacket.seq).append(' ').append(wpbPacket.content).append('\n');
+            }
+            return new WPBPacket(BATCH_CMD, 0, content.toString());
+        }
+
+        @Override
+        public List<Packet> splitBatchPacket(Packet packet) {
+            if (packet.getCommand() != BATCH_CMD) {
+                return null;
+            }
+            List<Packet> packets = new ArrayList<Packet>();
+            for (String line : packet.getContent().split("\n")) {
+                String[] fields = line.split(" ", 3);
+                packets.add(new WPBPacket(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), fields[2]));
+            }
+            return packets;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package bizsocket.core;
+
+import bizsocket.core.internal.SerialContextTable;
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.Request;
+import common.WPBPacket;
+import junit.framework.TestCase;
+import org.junit.Test;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class SerialContextTableTest extends TestCase {
+    private AbstractSerialContext createSerialContext(int entranceCommand, int seq, int[] strongReferences, int[] weekReferences) {
+        SerialSignal serialSignal = new SerialSignal(TestSerialContext.class, entranceCommand, strongReferences, weekReferences);
+        Request request = new Request.Builder().command(entranceCommand).utf8body("{}").build();
+        return new TestSerialContext(serialSignal, new RequestContext(request, new WPBPacket(entranceCommand, seq, "{}"), null));
+    }
+
+    @Test
+    public void testCandidates() throws Exception {
+        SerialContextTable table = new SerialContextTable();
+        AbstractSerialContext first = createSerialContext(1, 10, new int[]{2}, new int[]{3});
+        AbstractSerialContext second = createSerialContext(1, 11, new int[]{2}, null);
+        AbstractSerialContext third = createSerialContext(4, 12, new int[]{5}, null);
+        assertTrue(table.add(first));
+        assertTrue(table.add(second));
+        assertTrue(table.add(third));
+        assertFalse(table.add(first));
+        assertEquals(3, table.size());
+
+        assertEquals(Arrays.asList(first, second), table.getCandidates(2, "99"));
+        assertEquals(Collections.singletonList(first), table.getCandidates(3, null));
+        //the response of the entrance request is found by its packet id
+        assertEquals(Collections.singletonList(third), table.getCandidates(4, "12"));
+        //matched by both command and packet id only once, still oldest first
+        assertEquals(Arrays.asList(first, second), table.getCandidates(2, "11"));
+        assertEquals(Arrays.asList(first, third), table.getCandidates(5, "10"));
+        assertTrue(table.getCandidates(6, "99").isEmpty());
+
+        assertSame(second, table.getByEntrance(1, "11"));
+        assertNull(table.getByEntrance(4, "11"));
+
+        assertTrue(table.remove(first));
+        assertFalse(table.remove(first));
+        assertEquals(Collections.singletonList(second), table.getCandidates(2, "10"));
+        assertTrue(table.getCandidates(3, "10").isEmpty());
+        table.removeAll(Arrays.asList(second, third));
+        assertEquals(0, table.size());
+        assertTrue(table.snapshot().isEmpty());
+    }
+
+    public static class TestSerialContext extends AbstractSerialContext {
+        public TestSerialContext(SerialSignal serialSignal, RequestContext requestContext) {
+            super(serialSignal, requestContext);
+        }
+
+        @Override
+        public Packet processPacket(RequestQueue requestQueue, Packet packet) {
+            return packet;
+        }
+    }
+}
@@ -29,7 +29,7 @@ public class WPBSocketClient extends AbstractBizSocket {
                 .port(9103)
                 .build());
         client.addSerialSignal(new SerialSignal(OrderListSerialContext.class, WPBCmd.QUERY_ORDER_LIST.getValue(),
-                new int[]{WPBCmd.QUERY_ORDER_LIST.getValue(), WPBCmd.QUERY_ORDER_TYPE.getValue()}));
+                new int[]{WPBCmd.QUERY_ORDER_LIST.getValue()}));
 //
 //        client.getInterceptorChain().addInterceptor(new Interceptor() {
 //            @Override
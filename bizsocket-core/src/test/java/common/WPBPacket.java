@@ -1,12 +1,11 @@
 package common;
 
 import bizsocket.tcp.Packet;
+import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ByteString;
-import okio.Okio;
 import org.json.JSONObject;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Map;
@@ -56,21 +55,23 @@ public class WPBPacket extends Packet {
 
     @Override
     public byte[] toBytes() {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        BufferedSink bufferedSink = Okio.buffer(Okio.sink(bos));
-
+        Buffer buffer = new Buffer();
         try {
-            //包长 = 内容长度 + 包头固定的12个字节
-            ByteString byteString = ByteString.encodeUtf8(content);
-            bufferedSink.writeInt(byteString.size() + 12);
-            bufferedSink.writeInt(cmd);
-            bufferedSink.writeInt(seq);
-            bufferedSink.write(byteString);
-            bufferedSink.flush();
+            writeTo(buffer);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return bos.toByteArray();
+        return buffer.readByteArray();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        //包长 = 内容长度 + 包头固定的12个字节
+        ByteString byteString = ByteString.encodeUtf8(content);
+        sink.writeInt(byteString.size() + 12);
+        sink.writeInt(cmd);
+        sink.writeInt(seq);
+        sink.write(byteString);
     }
 
     @Override
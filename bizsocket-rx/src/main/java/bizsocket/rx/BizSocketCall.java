@@ -1,6 +1,7 @@
 package bizsocket.rx;
 
 import bizsocket.core.ResponseHandler;
+import bizsocket.core.StreamResponseHandler;
 import bizsocket.tcp.Packet;
 import com.google.gson.internal.$Gson$Types;
 import okio.ByteString;
@@ -26,6 +27,38 @@ public class BizSocketCall {
         final ByteString requestBody = getRequestBody(bizSocketRxSupport,method,args);
 
         final String desc = request.desc();
+        if (request.stream()) {
+            return Observable.create(new Observable.OnSubscribe<Object>() {
+                @Override
+                public void call(final Subscriber<? super Object> subscriber) {
+                    bizsocket.tcp.Request req = new bizsocket.tcp.Request.Builder().tag(tag).command(command).body(requestBody).description(desc).build();
+                    bizSocketRxSupport.getBizSocket().request(req, new StreamResponseHandler() {
+                        @Override
+                        public void sendFragmentMessage(int command, ByteString requestBody, Packet fragment) {
+                            Object response = bizSocketRxSupport.getResponseConverter().convert(command,requestBody,getResponseType(method),fragment);
+                            subscriber.onNext(response);
+                        }
+
+                        @Override
+                        public void sendCompleteMessage(int command, ByteString requestBody) {
+                            subscriber.onCompleted();
+                        }
+
+                        @Override
+                        public void sendSuccessMessage(int command, ByteString requestBody, Packet responsePacket) {
+                            //没有分段的响应
+                            sendFragmentMessage(command, requestBody, responsePacket);
+                            sendCompleteMessage(command, requestBody);
+                        }
+
+                        @Override
+                        public void sendFailureMessage(int command, Throwable error) {
+                            subscriber.onError(error);
+                        }
+                    });
+                }
+            });
+        }
         return Observable.create(new Observable.OnSubscribe<Object>() {
             @Override
             public void call(final Subscriber<? super Object> subscriber) {
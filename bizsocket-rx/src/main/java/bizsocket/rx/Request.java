@@ -14,4 +14,6 @@ public @interface Request {
   int timeout() default 60;
   String queryString() default "";
   String desc() default "";
+  //分段的响应逐段发射,最后一段之后onCompleted
+  boolean stream() default false;
 }
@@ -1,11 +1,11 @@
 package client;
 
-import bizsocket.core.AbstractSerialContext;
+import bizsocket.core.FanOut;
 import bizsocket.core.RequestContext;
 import bizsocket.core.RequestQueue;
+import bizsocket.core.AbstractSerialContext;
 import bizsocket.core.SerialSignal;
 import bizsocket.tcp.Packet;
-import bizsocket.tcp.PacketFactory;
 import bizsocket.tcp.Request;
 import common.WPBCmd;
 import common.WPBPacket;
@@ -13,21 +13,19 @@ import common.WPBProtocolUtil;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by tong on 16/9/27.
  */
 public class OrderListSerialContext extends AbstractSerialContext {
     private static final String TAG = OrderListSerialContext.class.getSimpleName();
+    //同时查询订单类型的请求数
+    private static final int MAX_CONCURRENCY = 4;
 
     private WPBPacket orderListPacket;
-    private int[] orderIdArr;
-    private int[] orderQuerySeqArr;
-
-    private Map<Integer,Packet> orderTypeMap = new ConcurrentHashMap();
+    private JSONObject orderList;
 
     public OrderListSerialContext(SerialSignal serialSignal, RequestContext requestContext) {
         super(serialSignal, requestContext);
@@ -41,125 +39,78 @@ public class OrderListSerialContext extends AbstractSerialContext {
 
     @Override
     public boolean shouldProcess(RequestQueue requestQueue, Packet packet) {
-        boolean result = super.shouldProcess(requestQueue,packet);
-        if (!result) {
-            return false;
-        }
+        //订单类型的响应通过fan-out按包id对应,这里只处理订单列表
+        return super.shouldProcess(requestQueue,packet)
+                && packet.getCommand() == WPBCmd.QUERY_ORDER_LIST.getValue()
+                && packet.getPacketID().equals(getRequestPacketId());
+    }
 
+    @Override
+    public Packet processPacket(RequestQueue requestQueue, Packet packet) {
         WPBPacket responsePacket = (WPBPacket) packet;
-        JSONObject obj = null;
+        if (!WPBProtocolUtil.isSuccessResponsePacket(responsePacket)) {
+            return packet;
+        }
+        JSONArray resultArr;
         try {
-            obj = new JSONObject(responsePacket.getContent());
+            orderList = new JSONObject(responsePacket.getContent());
+            resultArr = orderList.optJSONArray("result");
         } catch (JSONException e) {
-            return false;
+            return packet;
+        }
+        if (resultArr == null || resultArr.length() == 0) {
+            return packet;
         }
-        if (packet.getCommand() == WPBCmd.QUERY_ORDER_LIST.getValue()) {
-            if (!WPBProtocolUtil.isSuccessResponsePacket(responsePacket)) {
-                return false;
-            }
-            //订单列表信息
-            try {
-                JSONArray resultArr = obj.optJSONArray("result");
-
-                PacketFactory packetFactory = requestQueue.getBizSocket().getPacketFactory();
-                if (resultArr == null || resultArr.length() == 0 || packetFactory == null) {
-                    throw new Exception("");
-                }
 
-                orderListPacket = (WPBPacket) packet;
-                orderIdArr = new int[resultArr.length()];
-                orderQuerySeqArr = new int[resultArr.length()];
-                for (int i = 0;i < resultArr.length();i++) {
-                    JSONObject order = resultArr.optJSONObject(i);
-                    if (order == null) {
-                        continue;
-                    }
+        //订单列表信息
+        List<Request> requests = new ArrayList<Request>();
+        for (int i = 0;i < resultArr.length();i++) {
+            JSONObject order = resultArr.optJSONObject(i);
+            requests.add(buildQueryOrderTypeRequest(order != null ? order.optInt("orderId",-1) : -1));
+        }
+        orderListPacket = responsePacket;
+        orderListPacket.setFlags(orderListPacket.getFlags() & ~Packet.FLAG_RECYCLABLE);
 
-                    int orderId = order.optInt("orderId",-1);
-                    if (orderId == -1) {
-                        continue;
-                    }
+        //发起查询订单类型的查询,订单列表等订单类型都返回后再分发
+        FanOut fanOut = new FanOut(requests);
+        fanOut.setMaxConcurrency(MAX_CONCURRENCY);
+        fanOut(requestQueue, fanOut);
+        return null;
+    }
 
-                    orderIdArr[i] = orderId;
-                    //发起查询订单类型的查询
-                    WPBPacket wpbPacket = buildQueryOrderTypePacket(requestQueue,orderId);
-                    
-                    orderQuerySeqArr[i] = Integer.valueOf(wpbPacket.getPacketID());
-                    if (wpbPacket != null) {
-                        System.out.println("同步请求订单类型: " + wpbPacket.getContent());
-                        requestQueue.getBizSocket().getSocketConnection().sendPacket(wpbPacket);
-                    }
-                }
-            } catch (Exception e) {
-                return false;
-            }
+    @Override
+    protected Packet onFanOutComplete(RequestQueue requestQueue, FanOut fanOut) {
+        if (fanOut.getResponseCount() < fanOut.size()) {
+            return null;
         }
-        else if (packet.getCommand() == WPBCmd.QUERY_ORDER_TYPE.getValue()) {
-            if (orderIdArr == null) {
-                return false;
-            }
-            WPBPacket wpbPacket = (WPBPacket) packet;
-
-            boolean contain = false;
-            int orderid = obj.optInt("orderId");
-            for (int i = 0; i < orderIdArr.length; i++) {
-                if (orderid == orderIdArr[i] && Integer.valueOf(wpbPacket.getPacketID()) == orderQuerySeqArr[i]) {
-                    contain = true;
-                    System.out.println("收到订单类型: " + wpbPacket.getContent());
-                    orderTypeMap.put(orderid,packet);
-                    break;
+        try {
+            JSONArray resultArr = orderList.optJSONArray("result");
+            for (int i = 0;i < resultArr.length();i++) {
+                JSONObject order = resultArr.optJSONObject(i);
+                if (order == null) {
+                    continue;
                 }
+                JSONObject orderType = new JSONObject(fanOut.getResponse(i).getContent());
+                order.put("orderType",orderType.optInt("orderType",0));
+                order.put("orderTypeRes",orderType);
             }
-
-            if (!contain) {
-                return false;
-            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
         }
-        return true;
+
+        orderListPacket.setContent(orderList.toString());
+        System.out.println("合并订单列表和类型: " + orderListPacket.getContent());
+        return orderListPacket;
     }
 
-    private WPBPacket buildQueryOrderTypePacket(RequestQueue requestQueue, int orderId) {
+    private Request buildQueryOrderTypeRequest(int orderId) {
         JSONObject params = new JSONObject();
         try {
             params.put("orderId",String.valueOf(orderId));
         } catch (JSONException e) {
             e.printStackTrace();
         }
-
-        try {
-            return (WPBPacket) requestQueue.getBizSocket().getPacketFactory().getRequestPacket(new Request.Builder().command(WPBCmd.QUERY_ORDER_TYPE.getValue()).utf8body(params.toString()).build());
-        } catch (Throwable e) {
-
-        }
-
-        return null;
-    }
-
-    @Override
-    public Packet processPacket(RequestQueue requestQueue, Packet packet) {
-        if (orderListPacket != null && orderIdArr != null && orderTypeMap.size() == orderIdArr.length) {
-            try {
-                JSONObject obj = new JSONObject(orderListPacket.getContent());
-                JSONArray resultArr = obj.optJSONArray("result");
-                for (int i = 0;i < resultArr.length();i++) {
-                    JSONObject order = resultArr.optJSONObject(i);
-                    int orderId = order.optInt("orderId");
-
-                    JSONObject orderType = new JSONObject(((WPBPacket)orderTypeMap.get(orderId)).getContent());
-                    order.put("orderType",orderType.optInt("ordertype",0));
-                    order.put("orderTypeRes",orderType);
-                }
-
-                WPBPacket wpbPacket = (WPBPacket) packet;
-                wpbPacket.setCommand(orderListPacket.getCommand());
-                wpbPacket.setContent(obj.toString());
-
-                System.out.println("合并订单列表和类型: " + wpbPacket.getContent());
-                return wpbPacket;
-            } catch (Throwable e) {
-                e.printStackTrace();
-            }
-        }
-        return null;
+        return new Request.Builder().command(WPBCmd.QUERY_ORDER_TYPE.getValue()).utf8body(params.toString()).build();
     }
 }
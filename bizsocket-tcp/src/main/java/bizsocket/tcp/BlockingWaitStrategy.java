@@ -0,0 +1,67 @@
+package bizsocket.tcp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Parks the consumer on a lock condition. Uses no cpu while idle; producers only
+ * take the lock when the consumer is actually waiting.
+ */
+public class BlockingWaitStrategy implements WaitStrategy {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public WaitStrategy create() {
+            return new BlockingWaitStrategy();
+        }
+    };
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile int waiters;
+
+    @Override
+    public void waitFor(Ready ready, long timeoutNanos) throws InterruptedException {
+        if (ready.isReady()) {
+            return;
+        }
+        lock.lock();
+        try {
+            waiters++;
+            long remaining = timeoutNanos;
+            while (!ready.isReady()) {
+                if (timeoutNanos == Long.MAX_VALUE) {
+                    notEmpty.await();
+                }
+                else {
+                    if (remaining <= 0) {
+                        return;
+                    }
+                    remaining = notEmpty.awaitNanos(remaining);
+                }
+            }
+        } finally {
+            waiters--;
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void signal() {
+        if (waiters == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BlockingWaitStrategy";
+    }
+}
@@ -0,0 +1,100 @@
+package bizsocket.tcp;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free stack over preallocated slots. Elements are linked by slot index,
+ * so push and pop allocate nothing.
+ *
+ * @param <E>
+ */
+class BoundedStack<E> {
+    private final AtomicReferenceArray<E> slots;
+    //indices of slots holding an element
+    private final IndexStack fullSlots;
+    //indices of empty slots
+    private final IndexStack freeSlots;
+
+    BoundedStack(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity >= 1,but: " + capacity);
+        }
+        slots = new AtomicReferenceArray<E>(capacity);
+        fullSlots = new IndexStack(capacity);
+        freeSlots = new IndexStack(capacity);
+        for (int i = capacity - 1; i >= 0; i--) {
+            freeSlots.push(i);
+        }
+    }
+
+    /**
+     * @return false if the stack is full
+     */
+    boolean push(E element) {
+        int index = freeSlots.pop();
+        if (index == IndexStack.EMPTY) {
+            return false;
+        }
+        slots.set(index, element);
+        fullSlots.push(index);
+        return true;
+    }
+
+    /**
+     * @return null if the stack is empty
+     */
+    E pop() {
+        int index = fullSlots.pop();
+        if (index == IndexStack.EMPTY) {
+            return null;
+        }
+        E element = slots.getAndSet(index, null);
+        freeSlots.push(index);
+        return element;
+    }
+
+    /**
+     * Treiber stack of slot indices. The head packs a version into the high 32 bits so a
+     * slot popped and pushed again between a read and the CAS can not be mistaken for
+     * an unchanged head.
+     */
+    static class IndexStack {
+        static final int EMPTY = -1;
+
+        private final AtomicLong head = new AtomicLong(pack(0, EMPTY));
+        private final AtomicIntegerArray next;
+
+        IndexStack(int capacity) {
+            next = new AtomicIntegerArray(capacity);
+        }
+
+        void push(int index) {
+            while (true) {
+                long current = head.get();
+                next.set(index, (int) current);
+                if (head.compareAndSet(current, pack((current >>> 32) + 1, index))) {
+                    return;
+                }
+            }
+        }
+
+        int pop() {
+            while (true) {
+                long current = head.get();
+                int index = (int) current;
+                if (index == EMPTY) {
+                    return EMPTY;
+                }
+                if (head.compareAndSet(current, pack((current >>> 32) + 1, next.get(index)))) {
+                    return index;
+                }
+            }
+        }
+
+        private static long pack(long version, int index) {
+            return (version << 32) | (index & 0xFFFFFFFFL);
+        }
+    }
+}
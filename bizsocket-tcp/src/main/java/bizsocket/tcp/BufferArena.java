@@ -0,0 +1,98 @@
+package bizsocket.tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays grouped in power of two size classes. Decoders borrow body buffers
+ * through {@link Packet#readBody(okio.BufferedSource, int, BufferArena)} and the buffers
+ * come back when the packet is recycled, so a steady stream of similar packets stops
+ * allocating on the reader thread.
+ *
+ * Requests larger than the biggest size class are served by plain allocation and are
+ * never pooled.
+ */
+public class BufferArena {
+    private static final int DEFAULT_MIN_SIZE = 64;
+    private static final int DEFAULT_MAX_SIZE = 64 * 1024;
+    private static final int DEFAULT_BUFFERS_PER_CLASS = 32;
+
+    private final int minShift;
+    private final int maxSize;
+    private final BoundedStack<byte[]>[] classes;
+    private final AtomicLong allocationCount = new AtomicLong();
+
+    public BufferArena() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param minSize size of the smallest class, rounded up to a power of two
+     * @param maxSize size of the biggest class, rounded up to a power of two
+     * @param buffersPerClass max pooled buffers of every size class
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferArena(int minSize, int maxSize, int buffersPerClass) {
+        if (minSize < 1) {
+            throw new IllegalArgumentException("minSize >= 1,but: " + minSize);
+        }
+        if (maxSize < minSize) {
+            throw new IllegalArgumentException("maxSize >= minSize,but: " + maxSize);
+        }
+        if (buffersPerClass < 1) {
+            throw new IllegalArgumentException("buffersPerClass >= 1,but: " + buffersPerClass);
+        }
+        this.minShift = shiftFor(minSize);
+        int maxShift = shiftFor(maxSize);
+        this.maxSize = 1 << maxShift;
+        this.classes = new BoundedStack[maxShift - minShift + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new BoundedStack<byte[]>(buffersPerClass);
+        }
+    }
+
+    /**
+     * Borrows a buffer of at least the given length, the array may be longer.
+     */
+    public byte[] acquire(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length >= 0,but: " + length);
+        }
+        if (length > maxSize) {
+            allocationCount.incrementAndGet();
+            return new byte[length];
+        }
+        int shift = Math.max(shiftFor(length), minShift);
+        byte[] buffer = classes[shift - minShift].pop();
+        if (buffer == null) {
+            allocationCount.incrementAndGet();
+            buffer = new byte[1 << shift];
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)}, the caller must not touch it afterwards.
+     * Arrays that do not match a size class are ignored.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int length = buffer.length;
+        if (length > maxSize || length < (1 << minShift) || (length & (length - 1)) != 0) {
+            return;
+        }
+        classes[shiftFor(length) - minShift].push(buffer);
+    }
+
+    /**
+     * Number of arrays allocated because no pooled buffer was available.
+     */
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    private static int shiftFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -0,0 +1,200 @@
+package bizsocket.tcp;
+
+import java.io.IOException;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Splits a byte stream into frames that carry their own length in a header field.
+ *
+ * <pre>
+ * frameLength = lengthFieldValue + lengthAdjustment + lengthFieldOffset + lengthFieldLength
+ * </pre>
+ *
+ * A frame is handed out as a header of {@code headerLength} bytes and the body that
+ * follows it. For example a header made of a 4 byte total length, a 4 byte command and
+ * a 4 byte sequence is described by:
+ *
+ * <pre>
+ * new LengthFieldFrameDecoder.Builder()
+ *         .lengthFieldLength(4)
+ *         .lengthAdjustment(-4)
+ *         .headerLength(12)
+ *         .build();
+ * </pre>
+ *
+ * The decoder itself keeps no state and can be shared between connections.
+ */
+public final class LengthFieldFrameDecoder {
+    private static final int DEFAULT_MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+
+    private int lengthFieldOffset;
+    private int lengthFieldLength = 4;
+    private int lengthAdjustment;
+    private int headerLength = -1;
+    private long maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+
+    private LengthFieldFrameDecoder() {
+    }
+
+    public int lengthFieldOffset() {
+        return lengthFieldOffset;
+    }
+
+    public int lengthFieldLength() {
+        return lengthFieldLength;
+    }
+
+    public int lengthAdjustment() {
+        return lengthAdjustment;
+    }
+
+    public int headerLength() {
+        return headerLength;
+    }
+
+    public long maxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * Returns the length of the first frame in the buffer without consuming anything.
+     *
+     * @return -1 if the length field has not arrived yet
+     * @throws IOException if the frame is shorter than its header or longer than the max frame length
+     */
+    public long frameLength(Buffer buffer) throws IOException {
+        int lengthFieldEnd = lengthFieldOffset + lengthFieldLength;
+        if (buffer.size() < lengthFieldEnd) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = lengthFieldOffset; i < lengthFieldEnd; i++) {
+            value = (value << 8) | (buffer.getByte(i) & 0xFF);
+        }
+        long frameLength = value + lengthAdjustment + lengthFieldEnd;
+        if (frameLength < headerLength) {
+            throw new IOException("frame length " + frameLength + " is less than the header length " + headerLength);
+        }
+        if (frameLength > maxFrameLength) {
+            throw new IOException("frame length " + frameLength + " exceeds " + maxFrameLength);
+        }
+        return frameLength;
+    }
+
+    /**
+     * Moves the first frame out of the buffer if it has arrived completely, never blocks.
+     *
+     * @return false if the frame is still incomplete, the buffer is left untouched
+     */
+    public boolean nextFrame(Buffer buffer, Frame frame) throws IOException {
+        long frameLength = frameLength(buffer);
+        if (frameLength < 0 || buffer.size() < frameLength) {
+            return false;
+        }
+        frame.header.clear();
+        frame.body.clear();
+        buffer.read(frame.header, headerLength);
+        //moves whole segments, the body is not copied
+        buffer.read(frame.body, frameLength - headerLength);
+        return true;
+    }
+
+    /**
+     * Blocks until the next frame has arrived and moves it out of the source.
+     */
+    public void readFrame(BufferedSource source, Frame frame) throws IOException {
+        Buffer buffer = source.buffer();
+        long frameLength = frameLength(buffer);
+        if (frameLength < 0) {
+            source.require(lengthFieldOffset + lengthFieldLength);
+            frameLength = frameLength(buffer);
+        }
+        source.require(frameLength);
+        nextFrame(buffer, frame);
+    }
+
+    /**
+     * The header and the body of one frame. The buffers are reused by the next decode,
+     * a decoder must consume or copy them before returning.
+     */
+    public static final class Frame {
+        private final Buffer header = new Buffer();
+        private final Buffer body = new Buffer();
+
+        public Buffer header() {
+            return header;
+        }
+
+        public Buffer body() {
+            return body;
+        }
+    }
+
+    public static class Builder {
+        private final LengthFieldFrameDecoder decoder = new LengthFieldFrameDecoder();
+
+        /**
+         * Bytes in front of the length field, default 0.
+         */
+        public Builder lengthFieldOffset(int lengthFieldOffset) {
+            if (lengthFieldOffset < 0) {
+                throw new IllegalArgumentException("lengthFieldOffset >= 0,but: " + lengthFieldOffset);
+            }
+            decoder.lengthFieldOffset = lengthFieldOffset;
+            return this;
+        }
+
+        /**
+         * Width of the big-endian length field: 1, 2, 3, 4 or 8, default 4.
+         */
+        public Builder lengthFieldLength(int lengthFieldLength) {
+            if (lengthFieldLength < 1 || lengthFieldLength > 8 || (lengthFieldLength > 4 && lengthFieldLength < 8)) {
+                throw new IllegalArgumentException("lengthFieldLength must be 1, 2, 3, 4 or 8,but: " + lengthFieldLength);
+            }
+            decoder.lengthFieldLength = lengthFieldLength;
+            return this;
+        }
+
+        /**
+         * Added to the length field value, negative if the value includes the header, default 0.
+         */
+        public Builder lengthAdjustment(int lengthAdjustment) {
+            decoder.lengthAdjustment = lengthAdjustment;
+            return this;
+        }
+
+        /**
+         * Bytes from the frame start to the body, default lengthFieldOffset + lengthFieldLength.
+         */
+        public Builder headerLength(int headerLength) {
+            if (headerLength < 0) {
+                throw new IllegalArgumentException("headerLength >= 0,but: " + headerLength);
+            }
+            decoder.headerLength = headerLength;
+            return this;
+        }
+
+        /**
+         * Frames longer than this fail with an IOException, default 4M.
+         */
+        public Builder maxFrameLength(long maxFrameLength) {
+            if (maxFrameLength < 1) {
+                throw new IllegalArgumentException("maxFrameLength >= 1,but: " + maxFrameLength);
+            }
+            decoder.maxFrameLength = maxFrameLength;
+            return this;
+        }
+
+        public LengthFieldFrameDecoder build() {
+            int lengthFieldEnd = decoder.lengthFieldOffset + decoder.lengthFieldLength;
+            if (decoder.headerLength < 0) {
+                decoder.headerLength = lengthFieldEnd;
+            }
+            if (decoder.headerLength < lengthFieldEnd) {
+                throw new IllegalArgumentException("headerLength >= lengthFieldOffset + lengthFieldLength,but: " + decoder.headerLength);
+            }
+            return decoder;
+        }
+    }
+}
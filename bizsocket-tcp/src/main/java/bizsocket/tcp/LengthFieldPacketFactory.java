@@ -0,0 +1,61 @@
+package bizsocket.tcp;
+
+import java.io.IOException;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * PacketFactory for length-prefixed protocols. Framing is done by the
+ * {@link LengthFieldFrameDecoder}, subclasses only decode a complete header and body.
+ * The non-blocking transport checks frame completeness with the decoder instead of
+ * attempting a decode on every read.
+ */
+public abstract class LengthFieldPacketFactory extends PacketFactory {
+    private final LengthFieldFrameDecoder frameDecoder;
+    private final ThreadLocal<LengthFieldFrameDecoder.Frame> frames = new ThreadLocal<LengthFieldFrameDecoder.Frame>() {
+        @Override
+        protected LengthFieldFrameDecoder.Frame initialValue() {
+            return new LengthFieldFrameDecoder.Frame();
+        }
+    };
+
+    public LengthFieldPacketFactory(LengthFieldFrameDecoder frameDecoder) {
+        this.frameDecoder = frameDecoder;
+    }
+
+    public LengthFieldPacketFactory(PacketPool packetPool, LengthFieldFrameDecoder frameDecoder) {
+        super(packetPool);
+        this.frameDecoder = frameDecoder;
+    }
+
+    public LengthFieldPacketFactory(PacketPool packetPool, BufferArena bufferArena, LengthFieldFrameDecoder frameDecoder) {
+        super(packetPool, bufferArena);
+        this.frameDecoder = frameDecoder;
+    }
+
+    public LengthFieldFrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    /**
+     * create packet from one complete frame
+     * @param reusable 可重复利用的packet
+     * @param header the frame header, exactly {@link LengthFieldFrameDecoder#headerLength()} bytes
+     * @param body the frame body, reused after this call returns
+     * @return
+     * @throws IOException
+     */
+    public abstract Packet getRemotePacket(Packet reusable, Buffer header, Buffer body) throws IOException;
+
+    @Override
+    public final Packet getRemotePacket(Packet reusable, BufferedSource source) throws IOException {
+        LengthFieldFrameDecoder.Frame frame = frames.get();
+        frameDecoder.readFrame(source, frame);
+        try {
+            return getRemotePacket(reusable, frame.header(), frame.body());
+        } finally {
+            frame.header().clear();
+            frame.body().clear();
+        }
+    }
+}
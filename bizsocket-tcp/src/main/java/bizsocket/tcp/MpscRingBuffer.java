@@ -0,0 +1,121 @@
+package bizsocket.tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer. Every slot carries
+ * a sequence number: producers claim a position with one CAS and publish the slot by
+ * advancing its sequence, the consumer takes a slot once its sequence says it has been
+ * published. Neither side takes a lock.
+ *
+ * @param <E>
+ */
+class MpscRingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerIndex = new AtomicLong();
+    //only written by the consumer
+    private volatile long consumerIndex;
+    //positions below this index are dropped by the consumer, see clear()
+    private volatile long clearIndex;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    MpscRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity >= 1,but: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        elements = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Called by producers.
+     * @return false if the queue is full
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long position = producerIndex.get();
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (producerIndex.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    //volatile store, pairs with the volatile reads of the wait strategies
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            }
+            else if (diff < 0) {
+                //the consumer has not freed this slot yet
+                return false;
+            }
+            //another producer claimed the position, retry
+        }
+    }
+
+    /**
+     * Called by the consumer only.
+     * @return null if the queue is empty
+     */
+    E poll() {
+        while (true) {
+            long position = consumerIndex;
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                return null;
+            }
+            E element = elements.get(index);
+            elements.lazySet(index, null);
+            sequences.lazySet(index, position + mask + 1);
+            consumerIndex = position + 1;
+            if (position >= clearIndex) {
+                return element;
+            }
+        }
+    }
+
+    /**
+     * Called by the consumer only.
+     */
+    boolean hasNext() {
+        long position = consumerIndex;
+        return sequences.get((int) position & mask) == position + 1;
+    }
+
+    boolean isEmpty() {
+        return consumerIndex >= producerIndex.get();
+    }
+
+    int size() {
+        long size = producerIndex.get() - consumerIndex;
+        return size < 0 ? 0 : (int) Math.min(size, capacity());
+    }
+
+    /**
+     * Drops every element offered before this call. Safe to call from any thread, the
+     * elements are discarded by the consumer on its next poll.
+     */
+    void clear() {
+        clearIndex = producerIndex.get();
+    }
+}
@@ -0,0 +1,252 @@
+package bizsocket.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import bizsocket.logger.Logger;
+import bizsocket.logger.LoggerFactory;
+import okio.Buffer;
+
+/**
+ * Non-blocking replacement of {@link PacketReader} and {@link PacketWriter}. The channel
+ * is served by one {@link SelectorLoop}; inbound bytes are accumulated until the
+ * {@link PacketFactory} can decode a whole packet and outbound packets are written
+ * whenever the socket accepts more bytes.
+ */
+class NioChannel {
+    private static final int WRITE_CHUNK_SIZE = 8 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(NioChannel.class.getSimpleName());
+    private final SocketConnection connection;
+    private final SocketChannel channel;
+    private final SelectorLoop loop;
+    private final Buffer inbound = new Buffer();
+    private final Queue<Packet> outbound = new ConcurrentLinkedQueue<Packet>();
+    //true while a flush is queued on the loop or the channel waits for OP_WRITE
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private SelectionKey key;
+    //the packet being written, its encoded bytes not yet written live in pendingBytes and writeChunk
+    private Packet pendingPacket;
+    private final Buffer pendingBytes = new Buffer();
+    private final ByteBuffer writeChunk = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+    volatile boolean done = false;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException e) {
+                handleError(e);
+            }
+        }
+    };
+
+    NioChannel(SocketConnection connection, SocketChannel channel, SelectorLoop loop) {
+        this.connection = connection;
+        this.channel = channel;
+        this.loop = loop;
+        writeChunk.limit(0);
+    }
+
+    SelectorLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Switches the channel to non-blocking mode and registers it with the loop.
+     */
+    void startup() throws IOException {
+        channel.configureBlocking(false);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (done) {
+                    return;
+                }
+                try {
+                    key = channel.register(loop.selector(), SelectionKey.OP_READ, NioChannel.this);
+                    if (pendingPacket != null) {
+                        setWriteInterest(true);
+                    } else if (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+                        flush();
+                    }
+                } catch (IOException e) {
+                    handleError(e);
+                }
+            }
+        });
+        logger.debug("channel registered to " + loop);
+    }
+
+    /**
+     * Stops reading and writing. The socket itself is closed by {@link SocketConnection#disconnect()}.
+     */
+    void shutdown() {
+        if (done) {
+            return;
+        }
+        done = true;
+        outbound.clear();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (key != null) {
+                    key.cancel();
+                }
+                inbound.clear();
+                pendingBytes.clear();
+                writeChunk.limit(0);
+                pendingPacket = null;
+            }
+        });
+    }
+
+    void sendPacket(Packet packet) {
+        if (done) {
+            return;
+        }
+        outbound.offer(packet);
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    void clearQueue() {
+        outbound.clear();
+    }
+
+    void onReadable() throws IOException {
+        byte[] bytes = loop.readBytes();
+        ByteBuffer buffer = loop.readBuffer();
+        while (!done) {
+            buffer.clear();
+            int count = channel.read(buffer);
+            if (count < 0) {
+                throw new EOFException("connection closed by peer");
+            }
+            if (count == 0) {
+                break;
+            }
+            inbound.write(bytes, 0, count);
+            if (count < bytes.length) {
+                break;
+            }
+        }
+        decodePackets();
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * Decodes every complete packet in the inbound buffer. A {@link LengthFieldPacketFactory}
+     * is only called once its frame is complete. Any other factory reads from a shallow
+     * copy, a partial packet ends in EOFException and leaves the inbound bytes untouched
+     * until the next read.
+     */
+    private void decodePackets() throws IOException {
+        PacketFactory packetFactory = connection.getPacketFactory();
+        if (packetFactory instanceof LengthFieldPacketFactory) {
+            LengthFieldFrameDecoder frameDecoder = ((LengthFieldPacketFactory) packetFactory).getFrameDecoder();
+            while (!done) {
+                long frameLength = frameDecoder.frameLength(inbound);
+                if (frameLength < 0 || inbound.size() < frameLength) {
+                    return;
+                }
+                Packet packet = packetFactory.getRemotePacket(inbound);
+                if (packet != null && !done) {
+                    connection.handlerReceivedPacket(packet);
+                }
+            }
+            return;
+        }
+        while (!done && inbound.size() > 0) {
+            Buffer source = inbound.clone();
+            Packet packet;
+            try {
+                packet = packetFactory.getRemotePacket(source);
+            } catch (EOFException e) {
+                return;
+            }
+            long consumed = inbound.size() - source.size();
+            if (consumed <= 0) {
+                return;
+            }
+            inbound.skip(consumed);
+            if (packet != null && !done) {
+                connection.handlerReceivedPacket(packet);
+            }
+        }
+    }
+
+    /**
+     * Writes queued packets until the queue is empty or the socket buffer is full. Packets
+     * are encoded into {@link #pendingBytes} and handed to the channel through a reused chunk.
+     */
+    private void flush() throws IOException {
+        while (!done) {
+            if (pendingPacket == null) {
+                pendingPacket = outbound.poll();
+                if (pendingPacket == null) {
+                    setWriteInterest(false);
+                    flushScheduled.set(false);
+                    //a packet may have been queued after the last poll
+                    if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                pendingPacket.writeTo(pendingBytes);
+            }
+            if (!writeChunk.hasRemaining()) {
+                writeChunk.clear();
+                int count = pendingBytes.read(writeChunk.array(), 0, writeChunk.capacity());
+                writeChunk.limit(Math.max(count, 0));
+            }
+            channel.write(writeChunk);
+            if (writeChunk.hasRemaining()) {
+                //socket buffer is full, wait for OP_WRITE
+                setWriteInterest(true);
+                return;
+            }
+            if (pendingBytes.size() > 0) {
+                continue;
+            }
+            Packet packet = pendingPacket;
+            pendingPacket = null;
+            connection.notifySendSuccessful(packet);
+        }
+    }
+
+    private void setWriteInterest(boolean write) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    void handleError(IOException e) {
+        if (done) {
+            return;
+        }
+        shutdown();
+        if (!(e instanceof SocketException) && !(e instanceof EOFException)) {
+            SocketException exception = new SocketException(e instanceof ClosedChannelException ? "channel closed" : e.getMessage());
+            exception.initCause(e);
+            e = exception;
+        }
+        connection.handleReadWriteError(e);
+    }
+}
@@ -1,7 +1,12 @@
 package bizsocket.tcp;
 
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 import bizsocket.logger.Logger;
 import bizsocket.logger.LoggerFactory;
+import okio.BufferedSink;
+import okio.BufferedSource;
 
 /**
  * Base class for tcp packets. Every packet has a unique ID (which is automatically
@@ -9,6 +14,7 @@ import bizsocket.logger.LoggerFactory;
  */
 public abstract class Packet {
     private static final Logger LOGGER = LoggerFactory.getLogger(Packet.class.getSimpleName());
+    private static final AtomicIntegerFieldUpdater<Packet> POOLED = AtomicIntegerFieldUpdater.newUpdater(Packet.class, "pooled");
 
     /**
      * 可被回收复用的
@@ -29,6 +35,11 @@ public abstract class Packet {
     private String description;
     private int flags = FLAG_RECYCLABLE;
     private PacketPool packetPool;
+    //1 while the packet sits in the pool, guards against recycling it twice
+    private volatile int pooled;
+    //body borrowed from the arena, returned on recycle
+    private byte[] bodyBuffer;
+    private BufferArena bodyArena;
 
     public int getFlags() {
         return flags;
@@ -43,6 +54,17 @@ public abstract class Packet {
      */
     public abstract byte[] toBytes();
 
+    /**
+     * Writes the encoded packet into the sink. The writers always encode through this
+     * method, the default implementation falls back to {@link #toBytes()}; subclasses
+     * should override it to encode straight into the sink without the intermediate array.
+     *
+     * @param sink the sink to write the packet to, it is not flushed
+     */
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.write(toBytes());
+    }
+
     public abstract String getContent();
 
     /**
@@ -101,6 +123,38 @@ public abstract class Packet {
         LOGGER.debug("packet recycled： " + toString());
     }
 
+    /**
+     * Reads the body into a buffer borrowed from the arena. The buffer is returned to the
+     * arena when the packet is recycled, so the packet must not hand it out beyond its own
+     * lifetime. The array may be longer than byteCount.
+     *
+     * @param source the stream to read from
+     * @param byteCount the body length
+     * @param arena the arena to borrow the buffer from
+     * @return the buffer holding the body in [0, byteCount)
+     */
+    protected final byte[] readBody(BufferedSource source, int byteCount, BufferArena arena) throws IOException {
+        releaseBody();
+        source.require(byteCount);
+        byte[] buffer = arena.acquire(byteCount);
+        int offset = 0;
+        while (offset < byteCount) {
+            offset += source.read(buffer, offset, byteCount - offset);
+        }
+        bodyBuffer = buffer;
+        bodyArena = arena;
+        return buffer;
+    }
+
+    private void releaseBody() {
+        byte[] buffer = bodyBuffer;
+        if (buffer != null) {
+            bodyBuffer = null;
+            bodyArena.release(buffer);
+            bodyArena = null;
+        }
+    }
+
     /**
      * 回收packet
      */
@@ -112,11 +166,28 @@ public abstract class Packet {
             return;
         }
 
+        PacketPool packetPool = this.packetPool;
         if (packetPool != null) {
+            //并发回收时只有一个线程能放回池中
+            if (!POOLED.compareAndSet(this, 0, 1)) {
+                return;
+            }
             setFlags(getFlags() | FLAG_RECYCLED);
+            onRecycle();
+            releaseBody();
             packetPool.push(this);
+            return;
         }
         onRecycle();
+        releaseBody();
+    }
+
+    /**
+     * 从池中取出后调用，清除回收状态
+     */
+    void resetRecycled() {
+        setFlags(getFlags() & ~FLAG_RECYCLED);
+        pooled = 0;
     }
 
     @Override
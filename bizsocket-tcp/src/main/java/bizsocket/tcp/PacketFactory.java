@@ -1,6 +1,7 @@
 package bizsocket.tcp;
 
 import java.io.IOException;
+import java.util.List;
 import okio.BufferedSource;
 
 /**
@@ -8,13 +9,23 @@ import okio.BufferedSource;
  */
 public abstract class PacketFactory {
     private final PacketPool packetPool;
+    private final BufferArena bufferArena;
 
     public PacketFactory() {
         this(new DisabledPacketPool());
     }
 
     public PacketFactory(PacketPool packetPool) {
+        this(packetPool, new BufferArena());
+    }
+
+    /**
+     * @param packetPool
+     * @param bufferArena 解析包体时借用的缓冲区，packet回收时归还
+     */
+    public PacketFactory(PacketPool packetPool, BufferArena bufferArena) {
         this.packetPool = packetPool;
+        this.bufferArena = bufferArena;
     }
 
     /**
@@ -41,9 +52,26 @@ public abstract class PacketFactory {
      */
     public abstract Packet getRemotePacket(Packet reusable,BufferedSource source) throws IOException;
 
+    /**
+     * merge request packets into one batch packet
+     * @param requestPackets 至少两个请求包
+     * @return 协议不支持批量请求时返回null，请求包逐个发送
+     */
+    public Packet getBatchPacket(List<Packet> requestPackets) {
+        return null;
+    }
+
+    /**
+     * split the batch response into the response of each request
+     * @param packet
+     * @return 不是批量响应时返回null
+     */
+    public List<Packet> splitBatchPacket(Packet packet) {
+        return null;
+    }
 
     public final Packet getRequestPacket(Request request) {
-        Packet packet = getRequestPacket(getPacketPool().pull(),request);
+        Packet packet = getRequestPacket(pullReusable(),request);
         if (packet != null && request.recycleOnSend()) {
             packet.setFlags(packet.getFlags() | Packet.FLAG_AUTO_RECYCLE_ON_SEND_SUCCESS);
         }
@@ -51,7 +79,7 @@ public abstract class PacketFactory {
     }
 
     public final Packet getHeartBeatPacket() {
-        Packet packet = getHeartBeatPacket(getPacketPool().pull());
+        Packet packet = getHeartBeatPacket(pullReusable());
         if (packet != null) {
             //自动回收心跳包
             packet.setFlags(packet.getFlags() | Packet.FLAG_AUTO_RECYCLE_ON_SEND_SUCCESS);
@@ -60,10 +88,22 @@ public abstract class PacketFactory {
     }
 
     public final Packet getRemotePacket(BufferedSource source) throws IOException {
-        return getRemotePacket(getPacketPool().pull(),source);
+        return getRemotePacket(pullReusable(),source);
+    }
+
+    private Packet pullReusable() {
+        Packet packet = getPacketPool().pull();
+        if (packet != null) {
+            packet.resetRecycled();
+        }
+        return packet;
     }
 
     public PacketPool getPacketPool() {
         return packetPool;
     }
+
+    public BufferArena getBufferArena() {
+        return bufferArena;
+    }
 }
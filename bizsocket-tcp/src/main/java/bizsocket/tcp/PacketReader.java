@@ -9,6 +9,8 @@ import okio.BufferedSource;
  * The packet reader also invokes all packet listeners.
  */
 class PacketReader {
+    private static final long ERROR_BACKOFF_MILLIS = 200;
+
     private Thread readerThread;
     private final SocketConnection connection;
     private BufferedSource reader;
@@ -75,32 +77,43 @@ class PacketReader {
     }
 
     /**
-     * Parse top-level packets in order to process them further.
+     * Parse top-level packets in order to process them further. The reader blocks only
+     * when no complete packet is buffered, every packet already sitting in the source
+     * is decoded and dispatched back to back.
      *
      * @param thisThread
      */
     private void parsePackets(Thread thisThread) {
+        PacketFactory packetFactory = connection.getPacketFactory();
         while (!this.done && this.readerThread == thisThread) {
-            Packet packet = null;
             try {
-                packet = connection.getPacketFactory().getRemotePacket(reader);
-                if (packet != null && !done && this.readerThread == thisThread) {
-                    connection.handlerReceivedPacket(packet);
+                //blocks until the next packet arrives
+                dispatchPacket(packetFactory.getRemotePacket(reader), thisThread);
+                //drain the packets of the same burst without blocking
+                while (!done && this.readerThread == thisThread && reader.buffer().size() > 0) {
+                    dispatchPacket(packetFactory.getRemotePacket(reader), thisThread);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
                 if (!done && this.readerThread == thisThread) {
                     connection.handleReadWriteError(e);
                 }
-            }
 
-            try {
-                if (!done) {
-                    Thread.sleep(200);
-                }
-            } catch (InterruptedException e) {
+                //back off so that a broken stream does not spin the reader
+                try {
+                    if (!done) {
+                        Thread.sleep(ERROR_BACKOFF_MILLIS);
+                    }
+                } catch (InterruptedException ie) {
 
+                }
             }
         }
     }
+
+    private void dispatchPacket(Packet packet, Thread thisThread) {
+        if (packet != null && !done && this.readerThread == thisThread) {
+            connection.handlerReceivedPacket(packet);
+        }
+    }
 }
@@ -1,8 +1,10 @@
 package bizsocket.tcp;
 
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import bizsocket.logger.Logger;
 import bizsocket.logger.LoggerFactory;
@@ -14,15 +16,25 @@ import okio.BufferedSink;
  * sent. Packet listeners can be registered to listen for all outgoing packets.
  */
 class PacketWriter {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final long FULL_QUEUE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long RETIRED_THREAD_JOIN_MILLIS = 1000;
+
     private final SocketConnection connection;
     private Thread writerThread;
+    //the thread stopped by the last shutdown, the queue allows only one consumer at a time
+    private Thread retiredThread;
     private BufferedSink writer;
-    private final BlockingQueue<Packet> queue = new ArrayBlockingQueue<Packet>(500, true);
+    private final MpscRingBuffer<Packet> queue = new MpscRingBuffer<Packet>(QUEUE_CAPACITY);
+    private final WaitStrategy waitStrategy;
     private volatile boolean done = false;
     private final Logger logger = LoggerFactory.getLogger(PacketWriter.class.getSimpleName());
+    //packets written into the sink but not flushed yet, only used by the writer thread
+    private final List<Packet> batch = new ArrayList<Packet>();
 
     public PacketWriter(SocketConnection connection) {
         this.connection = connection;
+        this.waitStrategy = connection.getWriteWaitStrategy().create();
         this.init();
     }
 
@@ -46,14 +58,21 @@ class PacketWriter {
             return;
         }
 
-        try {
-            queue.put(packet);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        synchronized (queue) {
-            queue.notifyAll();
+        int retries = 0;
+        while (!queue.offer(packet)) {
+            //queue is full, wait for the writer to free a slot
+            if (this.done) {
+                return;
+            }
+            waitStrategy.signal();
+            if (++retries < 100) {
+                Thread.yield();
+            }
+            else {
+                LockSupport.parkNanos(FULL_QUEUE_PARK_NANOS);
+            }
         }
+        waitStrategy.signal();
     }
 
     /**
@@ -68,8 +87,11 @@ class PacketWriter {
         }
 
         logger.debug("writer thread startup");
+        final Thread previousThread = retiredThread;
+        retiredThread = null;
         writerThread = new Thread() {
             public void run() {
+                awaitTermination(previousThread);
                 PacketWriter.this.writePackets(this);
             }
         };
@@ -93,48 +115,73 @@ class PacketWriter {
         logger.debug("writer thread shutdown");
         this.done = true;
 
-        synchronized (queue) {
-            queue.notifyAll();
-        }
+        waitStrategy.signal();
 
         if (writerThread != null) {
             writerThread.interrupt();
+            retiredThread = writerThread;
             writerThread = null;
         }
     }
 
+    private void awaitTermination(Thread thread) {
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(RETIRED_THREAD_JOIN_MILLIS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if (thread.isAlive()) {
+            logger.warn("previous writer thread is still alive");
+        }
+    }
+
     /**
      * Returns the next available packet from the queue for writing.
      *
-     * @return the next packet for writing.
+     * @return the next packet for writing, null once the writer is shut down.
      */
-    private Packet nextPacket() {
-        Packet packet = null;
-        while (!this.done && (packet = queue.poll()) == null) {
+    private Packet nextPacket(Thread thisThread, WaitStrategy.Ready ready) {
+        while (!this.done && this.writerThread == thisThread) {
+            Packet packet = queue.poll();
+            if (packet != null) {
+                return packet;
+            }
             try {
-                synchronized (queue) {
-                    queue.wait();
-                }
+                waitStrategy.waitFor(ready, Long.MAX_VALUE);
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                //interrupted by shutdown
             }
         }
 
-        return packet;
+        return null;
     }
 
-    private void writePackets(Thread thisThread) {
+    private void writePackets(final Thread thisThread) {
+        WaitStrategy.Ready ready = new WaitStrategy.Ready() {
+            @Override
+            public boolean isReady() {
+                return queue.hasNext() || done || writerThread != thisThread;
+            }
+        };
         while (!this.done && this.writerThread == thisThread) {
-            Packet packet = nextPacket();
+            Packet packet = nextPacket(thisThread, ready);
             if (packet != null && !done && this.writerThread == thisThread) {
                 try {
-                    byte[] st = packet.toBytes();
-                    writer.write(st);
-                    writer.flush();
+                    if (connection.isWriteCoalescing()) {
+                        writeBatch(packet, ready);
+                    }
+                    else {
+                        packet.writeTo(writer);
+                        writer.flush();
 
-                    connection.notifySendSuccessful(packet);
+                        connection.notifySendSuccessful(packet);
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
+                    batch.clear();
                     if (!done && this.writerThread == thisThread) {
                         connection.handleReadWriteError(e);
                     }
@@ -151,9 +198,48 @@ class PacketWriter {
         }
     }
 
-    public void clearQueue() {
-        if (queue != null) {
-            queue.clear();
+    /**
+     * Writes the packet and everything queued behind it into the sink and flushes once.
+     * When a linger is configured the writer waits up to the linger for more packets
+     * unless the flush threshold is reached first.
+     *
+     * @param first the packet that woke up the writer
+     */
+    private void writeBatch(Packet first, WaitStrategy.Ready ready) throws IOException {
+        long lingerNanos = TimeUnit.MICROSECONDS.toNanos(connection.getWriteLingerMicros());
+        int flushThreshold = connection.getWriteFlushThreshold();
+        long deadline = System.nanoTime() + lingerNanos;
+
+        Packet packet = first;
+        while (packet != null) {
+            packet.writeTo(writer);
+            batch.add(packet);
+            if (done || (flushThreshold > 0 && writer.buffer().size() >= flushThreshold)) {
+                break;
+            }
+
+            packet = queue.poll();
+            if (packet == null && lingerNanos > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    try {
+                        waitStrategy.waitFor(ready, remaining);
+                    } catch (InterruptedException e) {
+                        //interrupted by shutdown
+                    }
+                    packet = queue.poll();
+                }
+            }
         }
+        writer.flush();
+
+        for (Packet p : batch) {
+            connection.notifySendSuccessful(p);
+        }
+        batch.clear();
+    }
+
+    public void clearQueue() {
+        queue.clear();
     }
 }
@@ -0,0 +1,225 @@
+package bizsocket.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import bizsocket.logger.Logger;
+import bizsocket.logger.LoggerFactory;
+
+/**
+ * A single selector thread. It dispatches readiness events to the {@link NioChannel}s
+ * registered with it and runs tasks and timers submitted by other threads.
+ */
+class SelectorLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final Logger logger = LoggerFactory.getLogger(SelectorLoop.class.getSimpleName());
+    private final String name;
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<Runnable>();
+    //only accessed by the loop thread
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<ScheduledTask>();
+    //shared by all channels of this loop, reads never run concurrently
+    private final byte[] readBytes = new byte[READ_BUFFER_SIZE];
+    private final ByteBuffer readBuffer = ByteBuffer.wrap(readBytes);
+    private Selector selector;
+    private Thread loopThread;
+    private volatile boolean done = false;
+
+    SelectorLoop(String name) {
+        this.name = name;
+    }
+
+    synchronized void startup() throws IOException {
+        if (loopThread != null) {
+            return;
+        }
+        selector = Selector.open();
+        done = false;
+        loopThread = new Thread(this);
+        loopThread.setName(name);
+        loopThread.setDaemon(true);
+        loopThread.start();
+    }
+
+    synchronized void shutdown() {
+        if (done) {
+            return;
+        }
+        done = true;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    byte[] readBytes() {
+        return readBytes;
+    }
+
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     */
+    void execute(Runnable task) {
+        taskQueue.offer(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread after the delay and then every period millis.
+     *
+     * @param period 0 runs the task only once
+     */
+    ScheduledTask schedule(Runnable task, long delayMillis, long periodMillis) {
+        final ScheduledTask scheduledTask = new ScheduledTask(task, System.currentTimeMillis() + delayMillis, periodMillis);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduledTasks.add(scheduledTask);
+            }
+        });
+        return scheduledTask;
+    }
+
+    @Override
+    public void run() {
+        while (!done) {
+            try {
+                select();
+                processSelectedKeys();
+                runTasks();
+                runScheduledTasks();
+            } catch (Throwable e) {
+                logger.error("selector loop error: " + e);
+            }
+        }
+
+        try {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof NioChannel) {
+                    ((NioChannel) attachment).handleError(new IOException("selector loop shutdown"));
+                }
+            }
+            selector.close();
+        } catch (Throwable e) {
+            //ignore
+        }
+    }
+
+    private void select() throws IOException {
+        if (!taskQueue.isEmpty()) {
+            selector.selectNow();
+            return;
+        }
+        ScheduledTask next = scheduledTasks.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long delay = next.deadline - System.currentTimeMillis();
+        if (delay > 0) {
+            selector.select(delay);
+        } else {
+            selector.selectNow();
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+
+            NioChannel channel = (NioChannel) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    channel.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    channel.onWritable();
+                }
+            } catch (CancelledKeyException e) {
+                //channel closed by another thread
+            } catch (IOException e) {
+                channel.handleError(e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runScheduledTasks() {
+        long now = System.currentTimeMillis();
+        ScheduledTask task;
+        while ((task = scheduledTasks.peek()) != null && task.deadline <= now) {
+            scheduledTasks.poll();
+            if (task.cancelled) {
+                continue;
+            }
+            try {
+                task.task.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+            if (task.period > 0 && !task.cancelled) {
+                task.deadline = now + task.period;
+                scheduledTasks.add(task);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    static class ScheduledTask implements Comparable<ScheduledTask> {
+        final Runnable task;
+        final long period;
+        long deadline;
+        volatile boolean cancelled;
+
+        ScheduledTask(Runnable task, long deadline, long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask another) {
+            return deadline < another.deadline ? -1 : (deadline == another.deadline ? 0 : 1);
+        }
+    }
+}
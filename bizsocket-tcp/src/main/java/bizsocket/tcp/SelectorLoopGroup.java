@@ -0,0 +1,64 @@
+package bizsocket.tcp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed group of selector loops shared by many non-blocking connections. Every
+ * connection bound to the group is pinned to one loop, which performs all of its
+ * reads, writes and heartbeats, so the number of I/O threads no longer grows with
+ * the number of connections.
+ *
+ * <pre>
+ * SelectorLoopGroup group = new SelectorLoopGroup(2);
+ * connection.setSelectorLoopGroup(group);
+ * connection.connect();
+ * </pre>
+ */
+public class SelectorLoopGroup {
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    public SelectorLoopGroup() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public SelectorLoopGroup(int loopCount) {
+        if (loopCount <= 0) {
+            throw new IllegalArgumentException("loopCount >= 1,but: " + loopCount);
+        }
+        loops = new SelectorLoop[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new SelectorLoop("Selector Loop-" + i);
+                loops[i].startup();
+            }
+        } catch (IOException e) {
+            shutdown();
+            throw new IllegalStateException("can not open selector", e);
+        }
+    }
+
+    /**
+     * Returns the loop for the next connection, loops are handed out round robin.
+     */
+    SelectorLoop next() {
+        int index = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        return loops[index];
+    }
+
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    /**
+     * Stops all loops. Connections still bound to the group stop reading and writing.
+     */
+    public void shutdown() {
+        for (SelectorLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+}
@@ -1,61 +1,97 @@
 package bizsocket.tcp;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
-
 /**
- * Created by tong on 16/10/19.
+ * Bounded packet pool with constant time pull and push. Every thread keeps a small cache
+ * of its own, overflow goes to a shared lock-free stack. Nothing is allocated per
+ * recycle, see {@link BoundedStack}.
+ *
+ * At most {@code capacity} packets are shared plus {@code threadLocalCapacity} per thread
+ * that recycles packets.
  */
 public class SimplePacketPool implements PacketPool {
-    private static final int QUEUE_SIZE = 60;
-    private static final int COOLING_PERIOD = 10 * 1000;
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int DEFAULT_THREAD_LOCAL_CAPACITY = 8;
+
+    private final int threadLocalCapacity;
+    private final BoundedStack<Packet> sharedStack;
+    private final ThreadLocal<LocalCache> localCache = new ThreadLocal<LocalCache>() {
+        @Override
+        protected LocalCache initialValue() {
+            return new LocalCache(threadLocalCapacity);
+        }
+    };
+
+    public SimplePacketPool() {
+        this(DEFAULT_CAPACITY, DEFAULT_THREAD_LOCAL_CAPACITY);
+    }
 
-    protected final Set<Entity> queue = Collections.synchronizedSet(new HashSet<Entity>());
+    /**
+     * @param capacity max packets held by the shared stack
+     * @param threadLocalCapacity max packets cached by each thread, 0 disables the thread caches
+     */
+    public SimplePacketPool(int capacity, int threadLocalCapacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity >= 1,but: " + capacity);
+        }
+        if (threadLocalCapacity < 0) {
+            throw new IllegalArgumentException("threadLocalCapacity >= 0,but: " + threadLocalCapacity);
+        }
+        this.threadLocalCapacity = threadLocalCapacity;
+        this.sharedStack = new BoundedStack<Packet>(capacity);
+    }
 
     @Override
     public Packet pull() {
-        synchronized (queue) {
-            Entity entity = null;
-            for (Entity e : queue) {
-                if (e.isEnable()) {
-                    entity = e;
-                    break;
-                }
-            }
-            if (entity != null) {
-                queue.remove(entity);
-                Packet packet = entity.packet;
-                packet.setFlags(packet.getFlags() & ~Packet.FLAG_RECYCLED);
-                packet.onPrepareReuse();
-                return packet;
+        Packet packet = null;
+        if (threadLocalCapacity > 0) {
+            packet = localCache.get().pop();
+        }
+        if (packet == null) {
+            packet = sharedStack.pop();
+            if (packet == null) {
+                return null;
             }
         }
-        return null;
+        packet.resetRecycled();
+        packet.onPrepareReuse();
+        return packet;
     }
 
     @Override
     public void push(Packet packet) {
-        if (queue.size() == QUEUE_SIZE) {
+        if (packet == null) {
             return;
         }
-        synchronized (queue) {
-            queue.add(new Entity(packet));
+        if (threadLocalCapacity > 0 && localCache.get().push(packet)) {
+            return;
         }
+        //dropped if the pool is full
+        sharedStack.push(packet);
     }
 
-    static class Entity {
-        long saveMillis;
-        Packet packet;
+    static class LocalCache {
+        final Packet[] packets;
+        int size;
 
-        public Entity(Packet packet) {
-            this.packet = packet;
-            saveMillis = System.currentTimeMillis();
+        LocalCache(int capacity) {
+            packets = new Packet[capacity];
         }
 
-        boolean isEnable() {
-            long current = System.currentTimeMillis();
-            return current >= saveMillis + COOLING_PERIOD && (packet.getFlags() & Packet.FLAG_RECYCLED) != 0;
+        boolean push(Packet packet) {
+            if (size == packets.length) {
+                return false;
+            }
+            packets[size++] = packet;
+            return true;
+        }
+
+        Packet pop() {
+            if (size == 0) {
+                return null;
+            }
+            Packet packet = packets[--size];
+            packets[size] = null;
+            return packet;
         }
     }
 }
@@ -2,8 +2,10 @@ package bizsocket.tcp;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.util.Collection;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -37,8 +39,15 @@ public abstract class SocketConnection implements Connection, ReconnectionManage
 
     private PacketWriter packetWriter;
     private PacketReader packetReader;
+    private SelectorLoopGroup selectorLoopGroup;
+    private volatile NioChannel nioChannel;
     private Timer timer;
+    private SelectorLoop.ScheduledTask heartbeatTask;
     private int heartbeat = DEFAULT_HEART_BEAT_INTERVAL;//心跳间隔
+    private volatile boolean writeCoalescing;//合并写出
+    private volatile long writeLingerMicros;
+    private volatile int writeFlushThreshold;
+    private WaitStrategy.Factory writeWaitStrategy = BlockingWaitStrategy.FACTORY;
     private ReconnectionManager reconnectionManager;
     private Object lock = new Object();
 
@@ -100,6 +109,10 @@ public abstract class SocketConnection implements Connection, ReconnectionManage
             } catch (Throwable e) {
                 //e.printStackTrace();
             }
+            if (nioChannel != null) {
+                nioChannel.shutdown();
+                nioChannel = null;
+            }
             stopHeartBeat();
             try {
                 socket.close();
@@ -174,6 +187,81 @@ public abstract class SocketConnection implements Connection, ReconnectionManage
         this.heartbeat = heartbeat;
     }
 
+    /**
+     * Lets the writer drain every queued packet into the socket buffer and flush once
+     * per batch instead of once per packet. {@link PacketListener#onSendSuccessful(Packet)}
+     * is still called for every packet, after the batch has been flushed.
+     */
+    public void setWriteCoalescing(boolean writeCoalescing) {
+        this.writeCoalescing = writeCoalescing;
+    }
+
+    public boolean isWriteCoalescing() {
+        return writeCoalescing;
+    }
+
+    /**
+     * How long a coalescing writer waits for more packets before it flushes.
+     * @param writeLingerMicros 0 flushes as soon as the queue is empty
+     */
+    public void setWriteLingerMicros(long writeLingerMicros) {
+        if (writeLingerMicros < 0) {
+            throw new IllegalArgumentException("writeLingerMicros >= 0,but: " + writeLingerMicros);
+        }
+        this.writeLingerMicros = writeLingerMicros;
+    }
+
+    public long getWriteLingerMicros() {
+        return writeLingerMicros;
+    }
+
+    /**
+     * A coalescing writer flushes as soon as this many bytes are buffered, even if
+     * the linger has not expired.
+     * @param writeFlushThreshold 0 means no byte limit
+     */
+    public void setWriteFlushThreshold(int writeFlushThreshold) {
+        if (writeFlushThreshold < 0) {
+            throw new IllegalArgumentException("writeFlushThreshold >= 0,but: " + writeFlushThreshold);
+        }
+        this.writeFlushThreshold = writeFlushThreshold;
+    }
+
+    public int getWriteFlushThreshold() {
+        return writeFlushThreshold;
+    }
+
+    /**
+     * How the writer thread waits for packets, must be called before the first {@link #connect()}.
+     * Every writer gets its own instance from the factory, so one factory can be shared by many connections.
+     * @see BlockingWaitStrategy#FACTORY
+     * @see YieldingWaitStrategy#FACTORY
+     * @see SpinThenParkWaitStrategy#FACTORY
+     */
+    public void setWriteWaitStrategy(WaitStrategy.Factory writeWaitStrategy) {
+        if (writeWaitStrategy == null) {
+            throw new IllegalArgumentException("writeWaitStrategy can not be null");
+        }
+        this.writeWaitStrategy = writeWaitStrategy;
+    }
+
+    public WaitStrategy.Factory getWriteWaitStrategy() {
+        return writeWaitStrategy;
+    }
+
+    /**
+     * Switches the connection to the non-blocking transport. Must be called before
+     * {@link #connect()}; null restores the blocking reader and writer threads.
+     * @param selectorLoopGroup the loops serving this connection, usually shared by many connections
+     */
+    public void setSelectorLoopGroup(SelectorLoopGroup selectorLoopGroup) {
+        this.selectorLoopGroup = selectorLoopGroup;
+    }
+
+    public SelectorLoopGroup getSelectorLoopGroup() {
+        return selectorLoopGroup;
+    }
+
     public void reconnect() {
         try {
             connect();
@@ -206,6 +294,14 @@ public abstract class SocketConnection implements Connection, ReconnectionManage
     }
 
     protected Socket createSocket(String host, int port) throws Exception {
+        if (selectorLoopGroup != null) {
+            //the socket of a channel is served by the selector loops after initConnection
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            Socket socket = channel.socket();
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
         Socket socket = new Socket(host, port);
         socket.setKeepAlive(true);
         socket.setTcpNoDelay(true);
@@ -227,10 +323,17 @@ public abstract class SocketConnection implements Connection, ReconnectionManage
         }
     }
 
-    private void initConnection() {
+    private void initConnection() throws IOException {
         if (isSocketClosed()) {
             return;
         }
+        SocketChannel channel = socket.getChannel();
+        if (selectorLoopGroup != null && channel != null) {
+            NioChannel nioChannel = new NioChannel(this, channel, selectorLoopGroup.next());
+            nioChannel.startup();
+            this.nioChannel = nioChannel;
+            return;
+        }
         boolean isFirstInitialization = packetReader == null || packetWriter == null;
 
         initReaderAndWriter();
@@ -248,33 +351,56 @@ public abstract class SocketConnection implements Connection, ReconnectionManage
         if (isSocketClosed()) {
             return;
         }
-        packetWriter.sendPacket(packet);
         packet.setPacketPool(getPacketFactory().getPacketPool());
+        NioChannel nioChannel = this.nioChannel;
+        if (nioChannel != null) {
+            nioChannel.sendPacket(packet);
+        } else {
+            packetWriter.sendPacket(packet);
+        }
     }
 
     public void startHeartBeat() {
         stopHeartBeat();
         synchronized (lock) {
+            if (selectorLoopGroup != null) {
+                //no timer thread per connection, the heartbeat runs on a selector loop
+                heartbeatTask = selectorLoopGroup.next().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendHeartBeat();
+                    }
+                }, 0, heartbeat);
+                return;
+            }
             timer = new Timer();
             timer.scheduleAtFixedRate(new TimerTask() {
                 @Override
                 public void run() {
-                    Packet packet = packetFactory.getHeartBeatPacket();
-                    if (packet == null) {
-                        return;
-                    }
-                    sendPacket(packet);
+                    sendHeartBeat();
                 }
             }, 0, heartbeat);
         }
     }
 
+    private void sendHeartBeat() {
+        Packet packet = packetFactory.getHeartBeatPacket();
+        if (packet == null) {
+            return;
+        }
+        sendPacket(packet);
+    }
+
     private void stopHeartBeat() {
         synchronized (lock) {
             if (null != timer) {
                 timer.cancel();
             }
             timer = null;
+            if (null != heartbeatTask) {
+                heartbeatTask.cancel();
+            }
+            heartbeatTask = null;
         }
     }
 
@@ -286,8 +412,15 @@ public abstract class SocketConnection implements Connection, ReconnectionManage
 
     void notifyConnectionError(Exception exception) {
         stopHeartBeat();
-        packetReader.shutdown();
-        packetWriter.shutdown();
+        if (packetReader != null) {
+            packetReader.shutdown();
+        }
+        if (packetWriter != null) {
+            packetWriter.shutdown();
+        }
+        if (nioChannel != null) {
+            nioChannel.shutdown();
+        }
 
         // Notify connection listeners of the error.
         for (ConnectionListener connectionListener : connectionListeners) {
@@ -338,6 +471,9 @@ public abstract class SocketConnection implements Connection, ReconnectionManage
         if (packetWriter != null) {
             packetWriter.clearQueue();
         }
+        if (nioChannel != null) {
+            nioChannel.clearQueue();
+        }
     }
 
     @Override
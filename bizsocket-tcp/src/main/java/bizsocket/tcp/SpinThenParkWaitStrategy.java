@@ -0,0 +1,82 @@
+package bizsocket.tcp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spins, then yields and finally parks the consumer thread until a producer unparks
+ * it. Bursts are picked up without a context switch while an idle writer costs no cpu.
+ * Only one waiter is remembered, so an instance must not be shared by several consumers.
+ */
+public class SpinThenParkWaitStrategy implements WaitStrategy {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public WaitStrategy create() {
+            return new SpinThenParkWaitStrategy();
+        }
+    };
+
+    private static final int DEFAULT_SPIN_TRIES = 200;
+    private static final int DEFAULT_YIELD_TRIES = 20;
+
+    private final int spinTries;
+    private final int yieldTries;
+    private volatile Thread waiter;
+
+    public SpinThenParkWaitStrategy() {
+        this(DEFAULT_SPIN_TRIES, DEFAULT_YIELD_TRIES);
+    }
+
+    public SpinThenParkWaitStrategy(int spinTries, int yieldTries) {
+        this.spinTries = spinTries;
+        this.yieldTries = yieldTries;
+    }
+
+    @Override
+    public void waitFor(Ready ready, long timeoutNanos) throws InterruptedException {
+        long deadline = timeoutNanos == Long.MAX_VALUE ? 0 : System.nanoTime() + timeoutNanos;
+        int counter = 0;
+        while (!ready.isReady()) {
+            if (counter < spinTries) {
+                counter++;
+                continue;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline == 0 ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            if (counter < spinTries + yieldTries) {
+                counter++;
+                Thread.yield();
+                continue;
+            }
+
+            //publish the waiter before the last check, producers read it after publishing
+            waiter = Thread.currentThread();
+            if (!ready.isReady()) {
+                if (remaining == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                }
+                else {
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            waiter = null;
+        }
+    }
+
+    @Override
+    public void signal() {
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SpinThenParkWaitStrategy";
+    }
+}
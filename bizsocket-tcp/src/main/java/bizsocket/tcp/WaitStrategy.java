@@ -0,0 +1,36 @@
+package bizsocket.tcp;
+
+/**
+ * Decides how the packet writer waits for producers when the outbound queue is empty.
+ * An instance serves a single consumer, connections create their own through a {@link Factory}.
+ *
+ * @see BlockingWaitStrategy
+ * @see YieldingWaitStrategy
+ * @see SpinThenParkWaitStrategy
+ */
+public interface WaitStrategy {
+    /**
+     * Called by the single consumer. Returns once {@code ready} reports true or the
+     * timeout elapsed; may also return early, callers always check again.
+     *
+     * @param ready        whether the consumer has work to do
+     * @param timeoutNanos {@link Long#MAX_VALUE} waits without timeout
+     */
+    void waitFor(Ready ready, long timeoutNanos) throws InterruptedException;
+
+    /**
+     * Called by a producer after it published an element or asked the consumer to stop.
+     */
+    void signal();
+
+    interface Ready {
+        boolean isReady();
+    }
+
+    interface Factory {
+        /**
+         * Called once per packet writer, must not hand out a shared instance.
+         */
+        WaitStrategy create();
+    }
+}
@@ -0,0 +1,45 @@
+package bizsocket.tcp;
+
+/**
+ * Spins briefly and then keeps yielding the cpu. Lowest latency, but an idle writer
+ * keeps one core busy; only suitable for a few latency critical connections.
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public WaitStrategy create() {
+            return new YieldingWaitStrategy();
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public void waitFor(Ready ready, long timeoutNanos) throws InterruptedException {
+        long deadline = timeoutNanos == Long.MAX_VALUE ? 0 : System.nanoTime() + timeoutNanos;
+        int counter = 0;
+        while (!ready.isReady()) {
+            if (counter < SPIN_TRIES) {
+                counter++;
+                continue;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public void signal() {
+
+    }
+
+    @Override
+    public String toString() {
+        return "YieldingWaitStrategy";
+    }
+}
@@ -0,0 +1,107 @@
+import bizsocket.tcp.LengthFieldFrameDecoder;
+import junit.framework.TestCase;
+import okio.Buffer;
+import org.junit.Test;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Framing of complete, partial and oversized frames.
+ */
+public class LengthFieldFrameDecoderTest extends TestCase {
+    private final LengthFieldFrameDecoder wpbDecoder = new LengthFieldFrameDecoder.Builder()
+            .lengthFieldLength(4)
+            .lengthAdjustment(-4)
+            .headerLength(12)
+            .maxFrameLength(1024)
+            .build();
+
+    @Test
+    public void testPartialFrames() throws Exception {
+        byte[] bytes = new WPBPacket(WPBPacket.CMD_PRICE, 7, "{\"price\":\"4.321\"}").toBytes();
+        Buffer buffer = new Buffer();
+        LengthFieldFrameDecoder.Frame frame = new LengthFieldFrameDecoder.Frame();
+
+        //feed one byte at a time, the frame only appears with its last byte
+        for (int i = 0; i < bytes.length - 1; i++) {
+            buffer.writeByte(bytes[i]);
+            assertFalse(wpbDecoder.nextFrame(buffer, frame));
+            assertEquals(i + 1, buffer.size());
+        }
+        buffer.writeByte(bytes[bytes.length - 1]);
+        assertEquals(bytes.length, wpbDecoder.frameLength(buffer));
+        assertTrue(wpbDecoder.nextFrame(buffer, frame));
+        assertEquals(0, buffer.size());
+
+        WPBPacket packet = WPBPacket.build(null, frame.header(), frame.body());
+        assertEquals(WPBPacket.CMD_PRICE, packet.cmd);
+        assertEquals(7, packet.seq);
+        assertEquals("{\"price\":\"4.321\"}", packet.content);
+    }
+
+    @Test
+    public void testConsecutiveFrames() throws Exception {
+        Buffer buffer = new Buffer();
+        for (int i = 0; i < 100; i++) {
+            buffer.write(new WPBPacket(WPBPacket.CMD_PRICE, i, "body" + i).toBytes());
+        }
+        buffer.write(new WPBPacket(WPBPacket.CMD_PRICE, 100, "tail").toBytes(), 0, 14);
+
+        LengthFieldFrameDecoder.Frame frame = new LengthFieldFrameDecoder.Frame();
+        for (int i = 0; i < 100; i++) {
+            wpbDecoder.readFrame(buffer, frame);
+            assertEquals("body" + i, WPBPacket.build(null, frame.header(), frame.body()).content);
+        }
+        assertFalse(wpbDecoder.nextFrame(buffer, frame));
+        try {
+            wpbDecoder.readFrame(buffer, frame);
+            fail();
+        } catch (EOFException e) {
+            //a Buffer can not block for the rest of the frame
+        }
+    }
+
+    @Test
+    public void testOffsetAndWidth() throws Exception {
+        //2 byte magic, 2 byte body length, body
+        LengthFieldFrameDecoder decoder = new LengthFieldFrameDecoder.Builder()
+                .lengthFieldOffset(2)
+                .lengthFieldLength(2)
+                .build();
+        assertEquals(4, decoder.headerLength());
+
+        Buffer buffer = new Buffer();
+        buffer.writeShort(0xCAFE);
+        buffer.writeShort(3);
+        buffer.writeUtf8("abc");
+        buffer.writeShort(0xCAFE);
+
+        LengthFieldFrameDecoder.Frame frame = new LengthFieldFrameDecoder.Frame();
+        assertTrue(decoder.nextFrame(buffer, frame));
+        assertEquals(0xCAFE, frame.header().readShort() & 0xFFFF);
+        assertEquals(3, frame.header().readShort());
+        assertEquals("abc", frame.body().readUtf8());
+        assertEquals(-1, decoder.frameLength(buffer));
+    }
+
+    @Test
+    public void testMaxFrameLength() throws Exception {
+        Buffer buffer = new Buffer();
+        buffer.writeInt(2048);
+        try {
+            wpbDecoder.frameLength(buffer);
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+
+        buffer.clear();
+        buffer.writeInt(8);
+        try {
+            wpbDecoder.frameLength(buffer);
+            fail();
+        } catch (IOException e) {
+            //shorter than the header
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.PacketListener;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how many WPBPacket frames per second the blocking packet reader decodes
+ * when the server pushes a burst of price notifications.
+ *
+ * usage: PacketReaderBenchmark [frameCount] [seconds]
+ */
+public class PacketReaderBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int frameCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    //encode once, push the whole burst
+                    Buffer frames = new Buffer();
+                    String content = "{\"code\":\"200\",\"result\":\"4.321\",\"lastPrice\":\"4.123\"}";
+                    for (int i = 0; i < frameCount; i++) {
+                        frames.write(new WPBPacket(WPBPacket.CMD_PRICE, i, content).toBytes());
+                    }
+                    BufferedSink writer = Okio.buffer(Okio.sink(socket.getOutputStream()));
+                    writer.writeAll(frames);
+                    writer.flush();
+                } catch (Exception e) {
+                    //client disconnected
+                }
+            }
+        };
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        final AtomicInteger received = new AtomicInteger();
+        WPBClientForMockServer client = new WPBClientForMockServer("127.0.0.1", serverSocket.getLocalPort());
+        client.addPacketListener(new PacketListener() {
+            @Override
+            public void onSendSuccessful(Packet packet) {
+
+            }
+
+            @Override
+            public void processPacket(Packet packet) {
+                received.incrementAndGet();
+            }
+        });
+
+        long start = System.nanoTime();
+        client.connect();
+        long deadline = start + seconds * 1000000000L;
+        while (received.get() < frameCount && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        client.disconnect();
+        serverSocket.close();
+
+        int count = received.get();
+        System.out.println("frames: " + count + "/" + frameCount
+                + ", elapsed: " + (elapsedNanos / 1000000) + "ms"
+                + ", frames/sec: " + (long) (count * 1000000000.0 / elapsedNanos));
+    }
+}
@@ -0,0 +1,124 @@
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.PacketListener;
+import bizsocket.tcp.Request;
+import bizsocket.tcp.SelectorLoopGroup;
+import junit.framework.TestCase;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.Test;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many non-blocking connections served by a single selector loop.
+ */
+public class SelectorLoopGroupTest extends TestCase {
+    private static final int CONNECTION_COUNT = 8;
+    private static final int PACKET_COUNT = 50;
+
+    private ServerSocket serverSocket;
+    private SelectorLoopGroup selectorLoopGroup;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        serverSocket = new ServerSocket(0);
+        selectorLoopGroup = new SelectorLoopGroup(1);
+        //echo every packet back to the client
+        Thread acceptThread = new Thread() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    BufferedSource reader = Okio.buffer(Okio.source(socket.getInputStream()));
+                                    BufferedSink writer = Okio.buffer(Okio.sink(socket.getOutputStream()));
+                                    while (true) {
+                                        writer.write(WPBPacket.build(reader).toBytes());
+                                        writer.flush();
+                                    }
+                                } catch (IOException e) {
+                                    //client closed
+                                }
+                            }
+                        }.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        serverSocket.close();
+        selectorLoopGroup.shutdown();
+        super.tearDown();
+    }
+
+    @Test
+    public void testManyConnectionsOnOneLoop() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(CONNECTION_COUNT * PACKET_COUNT);
+        final AtomicInteger sendCount = new AtomicInteger();
+        WPBClientForMockServer[] clients = new WPBClientForMockServer[CONNECTION_COUNT];
+        for (int i = 0; i < CONNECTION_COUNT; i++) {
+            final int cmd = i + 1;
+            clients[i] = new WPBClientForMockServer("127.0.0.1", serverSocket.getLocalPort());
+            clients[i].setSelectorLoopGroup(selectorLoopGroup);
+            clients[i].addPacketListener(new PacketListener() {
+                @Override
+                public void onSendSuccessful(Packet packet) {
+                    sendCount.incrementAndGet();
+                }
+
+                @Override
+                public void processPacket(Packet packet) {
+                    assertEquals(cmd, packet.getCommand());
+                    latch.countDown();
+                }
+            });
+            clients[i].connect();
+            assertTrue(clients[i].isConnected());
+        }
+
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            for (int j = 0; j < CONNECTION_COUNT; j++) {
+                Packet packet = clients[j].getPacketFactory().getRequestPacket(new Request.Builder().command(j + 1).utf8body("{\"index\" : " + i + "}").build());
+                clients[j].sendPacket(packet);
+            }
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(CONNECTION_COUNT * PACKET_COUNT, sendCount.get());
+
+        for (Thread thread : getAllThreads()) {
+            assertFalse("Packet Reader".equals(thread.getName()) || "Packet Writer".equals(thread.getName()));
+        }
+
+        for (WPBClientForMockServer client : clients) {
+            client.disconnect();
+            assertFalse(client.isConnected());
+        }
+    }
+
+    private Thread[] getAllThreads() {
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        int count = Thread.enumerate(threads);
+        Thread[] result = new Thread[count];
+        System.arraycopy(threads, 0, result, 0, count);
+        return result;
+    }
+}
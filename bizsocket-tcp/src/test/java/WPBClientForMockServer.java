@@ -1,5 +1,5 @@
 import bizsocket.tcp.*;
-import okio.BufferedSource;
+import okio.Buffer;
 import okio.ByteString;
 
 import java.io.IOException;
@@ -49,7 +49,16 @@ public class WPBClientForMockServer extends SocketConnection {
         }
     }
 
-    public static class WPBPacketFactory extends PacketFactory {
+    public static class WPBPacketFactory extends LengthFieldPacketFactory {
+        public WPBPacketFactory() {
+            //包长包含12个字节的包头
+            super(new LengthFieldFrameDecoder.Builder()
+                    .lengthFieldLength(4)
+                    .lengthAdjustment(-4)
+                    .headerLength(12)
+                    .build());
+        }
+
         @Override
         public Packet getRequestPacket(Packet reusable,Request request) {
             return new WPBPacket(request.command(),request.body());
@@ -67,8 +76,8 @@ public class WPBClientForMockServer extends SocketConnection {
         }
 
         @Override
-        public Packet getRemotePacket(Packet reusable,BufferedSource source) throws IOException {
-            return WPBPacket.build(source);
+        public Packet getRemotePacket(Packet reusable, Buffer header, Buffer body) throws IOException {
+            return WPBPacket.build(reusable, header, body);
         }
     }
 }
@@ -1,9 +1,8 @@
 import bizsocket.tcp.Packet;
+import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ByteString;
-import okio.Okio;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Map;
@@ -55,21 +54,23 @@ public class WPBPacket extends Packet {
 
     @Override
     public byte[] toBytes() {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        BufferedSink bufferedSink = Okio.buffer(Okio.sink(bos));
-
+        Buffer buffer = new Buffer();
         try {
-            //包长 = 内容长度 + 包头固定的12个字节
-            ByteString byteString = ByteString.encodeUtf8(content);
-            bufferedSink.writeInt(byteString.size() + 12);
-            bufferedSink.writeInt(cmd);
-            bufferedSink.writeInt(seq);
-            bufferedSink.write(byteString);
-            bufferedSink.flush();
+            writeTo(buffer);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return bos.toByteArray();
+        return buffer.readByteArray();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        //包长 = 内容长度 + 包头固定的12个字节
+        ByteString byteString = ByteString.encodeUtf8(content);
+        sink.writeInt(byteString.size() + 12);
+        sink.writeInt(cmd);
+        sink.writeInt(seq);
+        sink.write(byteString);
     }
 
     @Override
@@ -129,4 +130,13 @@ public class WPBPacket extends Packet {
         packet.content = reader.readString(packet.length - 12, Charset.forName("utf-8"));
         return packet;
     }
+
+    public static WPBPacket build(Packet reusable, Buffer header, Buffer body) {
+        WPBPacket packet = reusable instanceof WPBPacket ? (WPBPacket) reusable : new WPBPacket();
+        packet.length = header.readInt();
+        packet.cmd = header.readInt();
+        packet.seq = header.readInt();
+        packet.content = body.readUtf8();
+        return packet;
+    }
 }
@@ -0,0 +1,119 @@
+import bizsocket.tcp.Packet;
+import bizsocket.tcp.PacketListener;
+import bizsocket.tcp.Request;
+import junit.framework.TestCase;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.Test;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Packets queued within the linger window leave the writer in a single flush.
+ */
+public class WriteCoalescingTest extends TestCase {
+    private static final int PACKET_COUNT = 200;
+
+    private ServerSocket serverSocket;
+    private final List<Integer> received = new CopyOnWriteArrayList<Integer>();
+    private final AtomicInteger flushCount = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        serverSocket = new ServerSocket(0);
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    BufferedSource reader = Okio.buffer(Okio.source(socket.getInputStream()));
+                    while (true) {
+                        received.add(WPBPacket.build(reader).seq);
+                    }
+                } catch (IOException e) {
+                    //client closed
+                }
+            }
+        };
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        serverSocket.close();
+        super.tearDown();
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(PACKET_COUNT);
+        WPBClientForMockServer client = new WPBClientForMockServer("127.0.0.1", serverSocket.getLocalPort()) {
+            @Override
+            protected Socket createSocket(String host, int port) throws Exception {
+                return new Socket(host, port) {
+                    @Override
+                    public OutputStream getOutputStream() throws IOException {
+                        return new FilterOutputStream(super.getOutputStream()) {
+                            @Override
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                out.write(b, off, len);
+                            }
+
+                            @Override
+                            public void flush() throws IOException {
+                                flushCount.incrementAndGet();
+                                super.flush();
+                            }
+                        };
+                    }
+                };
+            }
+        };
+        client.setWriteCoalescing(true);
+        client.setWriteLingerMicros(TimeUnit.MILLISECONDS.toMicros(500));
+        client.addPacketListener(new PacketListener() {
+            @Override
+            public void onSendSuccessful(Packet packet) {
+                latch.countDown();
+            }
+
+            @Override
+            public void processPacket(Packet packet) {
+
+            }
+        });
+        client.connect();
+
+        int firstSeq = -1;
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            Packet packet = client.getPacketFactory().getRequestPacket(new Request.Builder().command(WPBPacket.CMD_PRICE).utf8body("{}").build());
+            if (firstSeq == -1) {
+                firstSeq = Integer.valueOf(packet.getPacketID());
+            }
+            client.sendPacket(packet);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue("flush count: " + flushCount.get(), flushCount.get() < PACKET_COUNT / 10);
+
+        for (int i = 0; i < 50 && received.size() < PACKET_COUNT; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(PACKET_COUNT, received.size());
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            assertEquals(firstSeq + i, received.get(i).intValue());
+        }
+        client.disconnect();
+    }
+}
@@ -0,0 +1,82 @@
+package bizsocket.tcp;
+
+import junit.framework.TestCase;
+import okio.Buffer;
+import okio.BufferedSource;
+import org.junit.Test;
+import java.io.IOException;
+
+/**
+ * Size classes of the arena and buffers returned through Packet.recycle().
+ */
+public class BufferArenaTest extends TestCase {
+    static class QuotePacket extends Packet {
+        byte[] body;
+        int length;
+
+        @Override
+        public byte[] toBytes() {
+            return new byte[0];
+        }
+
+        @Override
+        public String getContent() {
+            return new String(body, 0, length);
+        }
+
+        @Override
+        public String getPacketID() {
+            return null;
+        }
+
+        @Override
+        public void setPacketID(String packetID) {
+
+        }
+
+        static QuotePacket build(Packet reusable, BufferedSource source, BufferArena arena) throws IOException {
+            QuotePacket packet = reusable instanceof QuotePacket ? (QuotePacket) reusable : new QuotePacket();
+            packet.length = source.readInt();
+            packet.body = packet.readBody(source, packet.length, arena);
+            return packet;
+        }
+    }
+
+    @Test
+    public void testSizeClasses() throws Exception {
+        BufferArena arena = new BufferArena(64, 1024, 2);
+        assertEquals(64, arena.acquire(0).length);
+        assertEquals(64, arena.acquire(64).length);
+        assertEquals(128, arena.acquire(65).length);
+
+        byte[] buffer = arena.acquire(100);
+        arena.release(buffer);
+        assertSame(buffer, arena.acquire(128));
+
+        //larger than the biggest class, never pooled
+        byte[] large = arena.acquire(2000);
+        assertEquals(2000, large.length);
+        arena.release(large);
+        assertNotSame(large, arena.acquire(2000));
+    }
+
+    @Test
+    public void testReleasedOnRecycle() throws Exception {
+        BufferArena arena = new BufferArena();
+        SimplePacketPool pool = new SimplePacketPool(4, 0);
+        String content = "{\"code\":\"200\",\"result\":\"4.321\"}";
+
+        for (int i = 0; i < 1000; i++) {
+            Buffer source = new Buffer();
+            source.writeInt(content.length());
+            source.writeUtf8(content);
+
+            QuotePacket packet = QuotePacket.build(pool.pull(), source, arena);
+            packet.setPacketPool(pool);
+            assertEquals(content, packet.getContent());
+            packet.recycle();
+        }
+        //the first packet allocated the only buffer ever needed
+        assertEquals(1, arena.getAllocationCount());
+    }
+}
@@ -0,0 +1,161 @@
+package bizsocket.tcp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the outbound queue of the packet writer: the old fair ArrayBlockingQueue with
+ * a wait/notify handoff against the MpscRingBuffer under each wait strategy, with 1, 4
+ * and 16 producers feeding a single consumer.
+ *
+ * usage: PacketQueueBenchmark [messagesPerRun] [rounds]
+ */
+public class PacketQueueBenchmark {
+    private static final int CAPACITY = 512;
+    private static final int[] PRODUCERS = {1, 4, 16};
+    private static final Object ITEM = new Object();
+
+    interface Queue {
+        void put(Object item) throws InterruptedException;
+
+        Object take() throws InterruptedException;
+    }
+
+    /**
+     * The queue as used by PacketWriter before the ring buffer.
+     */
+    static class BlockingQueueAdapter implements Queue {
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(CAPACITY, true);
+
+        @Override
+        public void put(Object item) throws InterruptedException {
+            queue.put(item);
+            synchronized (queue) {
+                queue.notifyAll();
+            }
+        }
+
+        @Override
+        public Object take() throws InterruptedException {
+            Object item;
+            while ((item = queue.poll()) == null) {
+                synchronized (queue) {
+                    queue.wait(1);
+                }
+            }
+            return item;
+        }
+    }
+
+    /**
+     * The queue as used by PacketWriter now.
+     */
+    static class RingBufferAdapter implements Queue {
+        private final MpscRingBuffer<Object> queue = new MpscRingBuffer<Object>(CAPACITY);
+        private final WaitStrategy waitStrategy;
+        private final WaitStrategy.Ready ready = new WaitStrategy.Ready() {
+            @Override
+            public boolean isReady() {
+                return queue.hasNext();
+            }
+        };
+
+        RingBufferAdapter(WaitStrategy waitStrategy) {
+            this.waitStrategy = waitStrategy;
+        }
+
+        @Override
+        public void put(Object item) {
+            int retries = 0;
+            while (!queue.offer(item)) {
+                waitStrategy.signal();
+                if (++retries < 100) {
+                    Thread.yield();
+                }
+                else {
+                    LockSupport.parkNanos(50000);
+                }
+            }
+            waitStrategy.signal();
+        }
+
+        @Override
+        public Object take() throws InterruptedException {
+            Object item;
+            while ((item = queue.poll()) == null) {
+                waitStrategy.waitFor(ready, Long.MAX_VALUE);
+            }
+            return item;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        for (int producers : PRODUCERS) {
+            for (String name : new String[]{"ArrayBlockingQueue", "Blocking", "Yielding", "SpinThenPark"}) {
+                long best = 0;
+                //first round is warm-up
+                for (int round = 0; round <= rounds; round++) {
+                    long opsPerSec = run(create(name), producers, messages);
+                    if (round > 0) {
+                        best = Math.max(best, opsPerSec);
+                    }
+                }
+                System.out.println(String.format("producers: %2d  %-20s %,14d ops/sec", producers, name, best));
+            }
+        }
+    }
+
+    private static Queue create(String name) {
+        if ("Blocking".equals(name)) {
+            return new RingBufferAdapter(new BlockingWaitStrategy());
+        }
+        if ("Yielding".equals(name)) {
+            return new RingBufferAdapter(new YieldingWaitStrategy());
+        }
+        if ("SpinThenPark".equals(name)) {
+            return new RingBufferAdapter(new SpinThenParkWaitStrategy());
+        }
+        return new BlockingQueueAdapter();
+    }
+
+    private static long run(final Queue queue, int producers, int messages) throws Exception {
+        final int perProducer = messages / producers;
+        final int total = perProducer * producers;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < perProducer; j++) {
+                            queue.put(ITEM);
+                        }
+                    } catch (InterruptedException e) {
+                        //benchmark aborted
+                    }
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (int i = 0; i < total; i++) {
+            queue.take();
+        }
+        long elapsed = System.nanoTime() - begin;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return (long) (total * (double) TimeUnit.SECONDS.toNanos(1) / elapsed);
+    }
+}
@@ -0,0 +1,129 @@
+package bizsocket.tcp;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reuse, capacity bound and double-recycle protection of the packet pool.
+ */
+public class SimplePacketPoolTest extends TestCase {
+    static class TestPacket extends Packet {
+        @Override
+        public byte[] toBytes() {
+            return new byte[0];
+        }
+
+        @Override
+        public String getContent() {
+            return null;
+        }
+
+        @Override
+        public String getPacketID() {
+            return null;
+        }
+
+        @Override
+        public void setPacketID(String packetID) {
+
+        }
+    }
+
+    private TestPacket newPacket(PacketPool pool) {
+        TestPacket packet = new TestPacket();
+        packet.setPacketPool(pool);
+        return packet;
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        SimplePacketPool pool = new SimplePacketPool(4, 2);
+        assertNull(pool.pull());
+
+        TestPacket packet = newPacket(pool);
+        packet.recycle();
+        assertTrue((packet.getFlags() & Packet.FLAG_RECYCLED) != 0);
+
+        assertSame(packet, pool.pull());
+        assertEquals(0, packet.getFlags() & Packet.FLAG_RECYCLED);
+        assertNull(pool.pull());
+
+        //a reused packet can be recycled again
+        packet.recycle();
+        assertSame(packet, pool.pull());
+    }
+
+    @Test
+    public void testDoubleRecycle() throws Exception {
+        SimplePacketPool pool = new SimplePacketPool(4, 0);
+        TestPacket packet = newPacket(pool);
+        packet.recycle();
+        packet.recycle();
+        //FLAG_RECYCLED cleared by someone else must not let the packet in twice
+        packet.setFlags(packet.getFlags() & ~Packet.FLAG_RECYCLED);
+        packet.recycle();
+
+        assertSame(packet, pool.pull());
+        assertNull(pool.pull());
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        SimplePacketPool pool = new SimplePacketPool(3, 2);
+        for (int i = 0; i < 10; i++) {
+            newPacket(pool).recycle();
+        }
+        int count = 0;
+        while (pool.pull() != null) {
+            count++;
+        }
+        assertEquals(5, count);
+    }
+
+    @Test
+    public void testConcurrentPullPush() throws Exception {
+        final int threadCount = 8;
+        final int iterations = 100000;
+        final SimplePacketPool pool = new SimplePacketPool(16, 2);
+        for (int i = 0; i < 16; i++) {
+            newPacket(pool).recycle();
+        }
+
+        final Set<Packet> inUse = Collections.newSetFromMap(new IdentityHashMap<Packet, Boolean>());
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < iterations; j++) {
+                        Packet packet = pool.pull();
+                        if (packet == null) {
+                            packet = newPacket(pool);
+                        }
+                        synchronized (inUse) {
+                            if (!inUse.add(packet)) {
+                                duplicates.incrementAndGet();
+                            }
+                        }
+                        Thread.yield();
+                        synchronized (inUse) {
+                            inUse.remove(packet);
+                        }
+                        //the second recycle must not put the packet in the pool twice
+                        packet.recycle();
+                        packet.recycle();
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+        latch.await();
+        assertEquals(0, duplicates.get());
+    }
+}